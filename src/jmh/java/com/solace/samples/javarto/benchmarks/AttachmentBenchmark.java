@@ -0,0 +1,96 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+
+/**
+ * Cost of copying a binary attachment into and out of a message, heap versus
+ * direct ByteBuffers, across payload sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AttachmentBenchmark {
+
+	@Param({ "16", "100", "1024", "16384", "1048576" })
+	int size;
+
+	private MessageHandle txMessageHandle = Solclient.Allocator
+			.newMessageHandle();
+	private MessageHandle rxMessageHandle = Solclient.Allocator
+			.newMessageHandle();
+
+	private ByteBuffer heapBuffer;
+	private ByteBuffer directBuffer;
+	private ByteBuffer rxBuffer;
+
+	@Setup
+	public void setUp() {
+		SolclientBenchmarkSupport.init();
+
+		SolclientBenchmarkSupport.assertOK("Solclient.createMessage()",
+				Solclient.createMessageForHandle(txMessageHandle));
+		SolclientBenchmarkSupport.assertOK("Solclient.createMessage()",
+				Solclient.createMessageForHandle(rxMessageHandle));
+
+		heapBuffer = ByteBuffer.allocate(size);
+		directBuffer = ByteBuffer.allocateDirect(size);
+		for (int i = 0; i < size; i++) {
+			heapBuffer.put((byte) i);
+			directBuffer.put((byte) i);
+		}
+		heapBuffer.flip();
+		directBuffer.flip();
+
+		// The message read back by getBinaryAttachment
+		rxMessageHandle.setBinaryAttachment(directBuffer);
+		directBuffer.rewind();
+		rxBuffer = ByteBuffer.allocateDirect(size);
+	}
+
+	@TearDown
+	public void tearDown() {
+		txMessageHandle.destroy();
+		rxMessageHandle.destroy();
+	}
+
+	@Benchmark
+	public MessageHandle setBinaryAttachmentHeap() {
+		heapBuffer.rewind();
+		txMessageHandle.setBinaryAttachment(heapBuffer);
+		return txMessageHandle;
+	}
+
+	@Benchmark
+	public MessageHandle setBinaryAttachmentDirect() {
+		directBuffer.rewind();
+		txMessageHandle.setBinaryAttachment(directBuffer);
+		return txMessageHandle;
+	}
+
+	@Benchmark
+	public ByteBuffer getBinaryAttachmentReused() {
+		rxBuffer.clear();
+		rxMessageHandle.getBinaryAttachment(rxBuffer);
+		rxBuffer.flip();
+		return rxBuffer;
+	}
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.solace.samples.javarto.features.CorrelationArrayUtil;
+
+/**
+ * Cost of a correlate/uncorrelate round trip with CorrelationArrayUtil, on
+ * its own and with several publishing threads sharing the same instance, and
+ * with a deep window of messages in flight, each thread acknowledging the
+ * oldest of its own before publishing the next.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CorrelationBenchmark {
+
+	private final CorrelationArrayUtil<Object> correlationArray = new CorrelationArrayUtil<Object>(
+			Object.class);
+
+	private final Object msgInfo = new Object();
+
+	@Benchmark
+	@Threads(1)
+	public Object correlateUncorrelate() {
+		return correlationArray.uncorrelate(correlationArray
+				.correlate(msgInfo));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object correlateUncorrelateContended() {
+		return correlationArray.uncorrelate(correlationArray
+				.correlate(msgInfo));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object correlateWithWindowInFlight(Window window) {
+		Object acked = correlationArray.uncorrelate(window.keys[window.next]);
+		window.keys[window.next] = correlationArray.correlate(msgInfo);
+		window.next = (window.next + 1) % window.keys.length;
+		return acked;
+	}
+
+	/**
+	 * The keys of the messages a publishing thread has in flight, 4 threads
+	 * keeping over 100k in flight together.
+	 */
+	@State(Scope.Thread)
+	public static class Window {
+
+		final long[] keys = new long[32 * 1024];
+		int next;
+	}
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.solace.samples.javarto.features.SampleUtils;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
+import com.solacesystems.solclientj.core.resource.Topic;
+
+/**
+ * Cost of setting the destination of a message from a Topic, which is
+ * converted on every call, versus a pre-created NativeDestinationHandle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DestinationBenchmark {
+
+	private MessageHandle txMessageHandle = Solclient.Allocator
+			.newMessageHandle();
+	private Topic topic = Solclient.Allocator
+			.newTopic(SampleUtils.SAMPLE_TOPIC);
+	private NativeDestinationHandle topicHandle = Solclient.Allocator
+			.newNativeDestinationHandle();
+
+	@Setup
+	public void setUp() {
+		SolclientBenchmarkSupport.init();
+
+		SolclientBenchmarkSupport.assertOK("Solclient.createMessage()",
+				Solclient.createMessageForHandle(txMessageHandle));
+		SolclientBenchmarkSupport.assertOK(
+				"Solclient.createNativeDestination()",
+				Solclient.createNativeDestinationForHandle(topicHandle, topic));
+	}
+
+	@TearDown
+	public void tearDown() {
+		txMessageHandle.destroy();
+		topicHandle.destroy();
+	}
+
+	@Benchmark
+	public MessageHandle setDestinationTopic() {
+		txMessageHandle.setDestination(topic);
+		return txMessageHandle;
+	}
+
+	@Benchmark
+	public MessageHandle setDestinationNativeHandle() {
+		txMessageHandle.setDestination(topicHandle);
+		return txMessageHandle;
+	}
+
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.benchmarks;
+
+import java.util.logging.Level;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+
+/**
+ * Shared set up for the benchmarks, none of which needs a connected session:
+ * messages and destinations are plain API objects.
+ */
+final class SolclientBenchmarkSupport {
+
+	private static boolean initialized = false;
+
+	private SolclientBenchmarkSupport() {
+	}
+
+	static synchronized void init() {
+		if (initialized)
+			return;
+		int rc = Solclient.init(new String[0]);
+		if (rc != SolEnum.ReturnCode.OK)
+			throw new IllegalStateException("Solclient.init() returned " + rc);
+		Solclient.setLogLevel(Level.SEVERE);
+		initialized = true;
+	}
+
+	static void assertOK(String operation, int rc) {
+		if (rc != SolEnum.ReturnCode.OK)
+			throw new IllegalStateException(String.format(
+					"'%s' returned unexpected returnCode %d:%s", operation,
+					rc, SolEnum.ReturnCode.toString(rc)));
+	}
+
+}
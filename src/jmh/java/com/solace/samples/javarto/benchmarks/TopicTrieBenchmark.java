@@ -0,0 +1,113 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.solace.samples.javarto.features.TopicTrie;
+import com.solace.samples.javarto.features.TopicUniverse;
+
+/**
+ * Cost of finding the handlers of a received topic as the number of handlers
+ * grows: a {@link TopicTrie} lookup, versus checking one registration per
+ * topic in turn, as a list of dispatch targets would be. Every handler has a
+ * topic of its own, and a catch-all "&gt;" subscription matches every topic.
+ * <p>
+ * The end to end comparison with the native MessageDispatchTargetHandle
+ * needs a message router, it is the -handlers mode of TopicDispatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TopicTrieBenchmark {
+
+	private static final String PREFIX = "bench/h";
+	private static final int TOPIC_COUNT = 1024;
+
+	@Param({ "10", "1000", "10000", "100000" })
+	public int handlerCount;
+
+	private TopicTrie<Object> trie;
+	private byte[][] registrations;
+	private ByteBuffer[] topics;
+	private int next;
+	private final Counter counter = new Counter();
+
+	@Setup
+	public void setUp() {
+		TopicUniverse universe = new TopicUniverse(PREFIX, handlerCount,
+				TopicUniverse.Distribution.UNIFORM, 1.0, 250);
+
+		trie = new TopicTrie<Object>();
+		registrations = new byte[handlerCount][];
+		for (int i = 0; i < handlerCount; i++) {
+			String topic = universe.getTopic(i);
+			trie.add(topic, new Object());
+			registrations[i] = topic.getBytes(StandardCharsets.UTF_8);
+		}
+		trie.add(PREFIX + "/>", new Object());
+
+		topics = new ByteBuffer[TOPIC_COUNT];
+		for (int i = 0; i < TOPIC_COUNT; i++) {
+			byte[] topic = universe.getTopic(universe.nextKey()).getBytes(
+					StandardCharsets.UTF_8);
+			topics[i] = ByteBuffer.allocateDirect(topic.length);
+			topics[i].put(topic);
+			topics[i].flip();
+		}
+	}
+
+	private ByteBuffer nextTopic() {
+		return topics[next++ & (TOPIC_COUNT - 1)];
+	}
+
+	@Benchmark
+	public int trieMatch() {
+		return trie.match(nextTopic(), counter);
+	}
+
+	@Benchmark
+	public int linearMatch() {
+		ByteBuffer topic = nextTopic();
+		int matched = 1; // the catch-all
+		for (int i = 0; i < registrations.length; i++) {
+			if (equals(registrations[i], topic))
+				matched++;
+		}
+		return matched;
+	}
+
+	private static boolean equals(byte[] registration, ByteBuffer topic) {
+		if (registration.length != topic.remaining())
+			return false;
+		for (int i = 0; i < registration.length; i++) {
+			if (registration[i] != topic.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	static class Counter implements TopicTrie.Visitor<Object> {
+
+		long count;
+
+		@Override
+		public void onMatch(Object handler) {
+			count++;
+		}
+	}
+
+}
@@ -4,18 +4,28 @@
  */
 package com.solace.samples.javarto.features;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
 import com.solace.samples.javarto.features.SessionConfiguration.AuthenticationScheme;
 import com.solacesystems.solclientj.core.SolEnum;
 import com.solacesystems.solclientj.core.Solclient;
@@ -34,7 +44,6 @@ import com.solacesystems.solclientj.core.handle.SessionHandle;
 import com.solacesystems.solclientj.core.resource.Destination;
 import com.solacesystems.solclientj.core.resource.Endpoint;
 import com.solacesystems.solclientj.core.resource.Queue;
-import com.solacesystems.solclientj.core.resource.Topic;
 
 public abstract class AbstractSample {
 
@@ -63,6 +72,17 @@ public abstract class AbstractSample {
 
 	private ByteBuffer messageContentBuffer = ByteBuffer.allocateDirect(512);
 
+	private int destinationCacheCapacity = DestinationCache.DEFAULT_CAPACITY;
+
+	private DestinationCache destinationCache;
+
+	// The cache statistics are printed with -dc or -mm only
+	private boolean reportDestinationCache = false;
+
+	private int keptMessagesCapacity = MessageHandlePool.DEFAULT_CAPACITY;
+
+	private MessageHandlePool.OverflowPolicy keptMessagesPolicy = MessageHandlePool.OverflowPolicy.DROP;
+
 	protected static void beSilent() {
 		printAssertionSuccess = false;
 		logCallbacks = false;
@@ -136,7 +156,24 @@ public abstract class AbstractSample {
 				}
 			}
 
+			String dcStr = configuration.getArgBag().get("-dc");
+			if (dcStr != null) {
+				destinationCacheCapacity = Integer.parseInt(dcStr);
+			}
+			reportDestinationCache = dcStr != null || monitorMemory;
+
+			String kpStr = configuration.getArgBag().get("-kp");
+			if (kpStr != null) {
+				keptMessagesCapacity = Integer.parseInt(kpStr);
+			}
+			String koStr = configuration.getArgBag().get("-ko");
+			if (koStr != null) {
+				keptMessagesPolicy = MessageHandlePool.OverflowPolicy
+						.parse(koStr);
+			}
+
 			if (monitorMemory) {
+				monitor.start();
 				scheduler.scheduleAtFixedRate(monitor, 0, intervalInSeconds,
 						TimeUnit.SECONDS);
 			}
@@ -150,10 +187,17 @@ public abstract class AbstractSample {
 			finishCode = 1;
 		} finally {
 			finish(finishCode);
+			// The sample is done with the cached destinations once finished
+			if (destinationCache != null) {
+				if (reportDestinationCache)
+					print(destinationCache.toString());
+				destinationCache.clear();
+			}
 			if (monitorMemory) {
 				scheduler.shutdown();
 				// Once last check
 				monitor.checkUsedMemory();
+				monitor.stop();
 				monitor.report();
 			}
 			print("Exited.");
@@ -193,8 +237,14 @@ public abstract class AbstractSample {
 
 	}
 
+	/**
+	 * @param keepRxMessages
+	 *            keep the received messages, at most -kp of them at a time
+	 *            and according to the -ko policy beyond
+	 */
 	protected MessageCallbackSample getMessageCallback(boolean keepRxMessages) {
-		_defaultMessageCallbackSample.keepRxMessages(keepRxMessages);
+		_defaultMessageCallbackSample.keepRxMessages(keepRxMessages,
+				keptMessagesCapacity, keptMessagesPolicy);
 		return _defaultMessageCallbackSample;
 	}
 
@@ -400,47 +450,98 @@ public abstract class AbstractSample {
 			MessageHandle aMessageHandle, String topicStr,
 			int messageDeliveryModeFlags) {
 
-		Topic topic = Solclient.Allocator.newTopic(topicStr);
-		common_publishMessage(aSessionHandle, aMessageHandle, topic,
+		publishCachedTopic(aSessionHandle, aMessageHandle,
+				getDestinationCache().get(topicStr), messageDeliveryModeFlags);
+
+	}
+
+	/**
+	 * Publishes on a topic of the destination cache, without building a Topic
+	 * nor the message content. The entry is looked up again if it was evicted
+	 * since it was obtained.
+	 */
+	protected void common_publishMessage(SessionHandle aSessionHandle,
+			MessageHandle aMessageHandle, DestinationCache.Entry cachedTopic,
+			int messageDeliveryModeFlags) {
+
+		if (cachedTopic == null)
+			throw new IllegalArgumentException("Cached topic may not be null");
+
+		publishCachedTopic(aSessionHandle, aMessageHandle,
+				getDestinationCache().resolve(cachedTopic),
 				messageDeliveryModeFlags);
+	}
 
+	/**
+	 * @return the cache of the native destinations of
+	 *         {@link #common_publishMessage(SessionHandle, MessageHandle, String, int)}
+	 *         , of -dc entries at most
+	 */
+	protected DestinationCache getDestinationCache() {
+		if (destinationCache == null)
+			destinationCache = new DestinationCache(destinationCacheCapacity);
+		return destinationCache;
+	}
+
+	private void publishCachedTopic(SessionHandle aSessionHandle,
+			MessageHandle aMessageHandle, DestinationCache.Entry entry,
+			int messageDeliveryModeFlags) {
+
+		prepareMessage(aSessionHandle, aMessageHandle, messageDeliveryModeFlags);
+
+		// Set the destination/topic
+		aMessageHandle.setDestination(entry.getDestination());
+
+		ByteBuffer content = entry.getContent();
+		content.rewind();
+		sendContent(aSessionHandle, aMessageHandle, content);
 	}
 
 	protected void common_publishMessage(SessionHandle aSessionHandle,
 			MessageHandle aMessageHandle, Destination destination,
 			int messageDeliveryModeFlags) {
 
+		prepareMessage(aSessionHandle, aMessageHandle, messageDeliveryModeFlags);
+
+		// Set the destination/topic
+		aMessageHandle.setDestination(destination);
+
+		String message = "Some message about topic " + destination.getName();
+		messageContentBuffer.clear();
+		messageContentBuffer.put(message.getBytes(Charset.defaultCharset()));
+		messageContentBuffer.flip();
+
+		sendContent(aSessionHandle, aMessageHandle, messageContentBuffer);
+	}
+
+	private void prepareMessage(SessionHandle aSessionHandle,
+			MessageHandle aMessageHandle, int messageDeliveryModeFlags) {
+
 		if (aSessionHandle == null)
 			throw new IllegalArgumentException("SessionHandle may not be null");
 
 		if (aMessageHandle == null)
 			throw new IllegalArgumentException("MessageHandle may not be null");
 
-		int rc = 0;
-
 		if (!aMessageHandle.isBound()) {
 			// Allocate the message
-			rc = Solclient.createMessageForHandle(aMessageHandle);
+			int rc = Solclient.createMessageForHandle(aMessageHandle);
 			assertReturnCode("Solclient.createMessageForHandle()", rc,
 					SolEnum.ReturnCode.OK);
 		}
 
 		/* Set the message delivery mode. */
 		aMessageHandle.setMessageDeliveryMode(messageDeliveryModeFlags);
+	}
 
-		// Set the destination/topic
-		aMessageHandle.setDestination(destination);
-
-		String message = "Some message about topic " + destination.getName();
-		messageContentBuffer.clear();
-		messageContentBuffer.put(message.getBytes(Charset.defaultCharset()));
-		messageContentBuffer.flip();
+	private void sendContent(SessionHandle aSessionHandle,
+			MessageHandle aMessageHandle, ByteBuffer content) {
 
 		/* Add some content to the message. */
-		aMessageHandle.setBinaryAttachment(messageContentBuffer);
+		aMessageHandle.setBinaryAttachment(content);
 
 		/* Send the message. */
-		rc = aSessionHandle.send(aMessageHandle);
+		int rc = aSessionHandle.send(aMessageHandle);
 		assertReturnCode("SessionHandle.send()", rc, SolEnum.ReturnCode.OK,
 				SolEnum.ReturnCode.OK);
 	}
@@ -507,11 +608,19 @@ public abstract class AbstractSample {
 		}
 	}
 
+	/**
+	 * Prints or keeps the received messages. Kept messages are taken into the
+	 * handles of a {@link MessageHandlePool}, so no more than its capacity
+	 * are held at a time, and are given back with
+	 * {@link #releaseRxMessage(MessageHandle)}.
+	 */
 	public static class MessageCallbackSample implements MessageCallback {
 
 		private boolean _keepRxMessage = false;
 		private java.util.List<MessageHandle> _rxMessages = new java.util.LinkedList<MessageHandle>();
-		private int messageCount = 0;
+		private MessageHandlePool _rxMessagePool;
+		// Written by the context thread, read by the waiting thread
+		private volatile int messageCount = 0;
 
 		String m_id;
 
@@ -525,13 +634,21 @@ public abstract class AbstractSample {
 			setMessageCount(getMessageCount() + 1);
 
 			if (this._keepRxMessage) {
+				MessageHandle takenMessage = _rxMessagePool.take(handle);
+				if (takenMessage == null) {
+					if (logCallbacks)
+						print(m_id + " -> Received message [" + messageCount
+								+ "], not kept as the "
+								+ _rxMessagePool.getCapacity()
+								+ " handles are in use");
+					return;
+				}
 				if (logCallbacks)
 					print(m_id + " -> Received message [" + messageCount
 							+ "], adding it to received messages list");
-				MessageHandle takenMessage = Solclient.Allocator
-						.newMessageHandle();
-				messageSupport.takeRxMessage(takenMessage);
-				this._rxMessages.add(takenMessage);
+				synchronized (_rxMessages) {
+					this._rxMessages.add(takenMessage);
+				}
 			} else {
 				if (logCallbacks) {
                                     MessageHandle rxMessage = messageSupport.getRxMessage();
@@ -550,13 +667,48 @@ public abstract class AbstractSample {
 		}
 
 		public void keepRxMessages(boolean keep) {
+			keepRxMessages(keep, MessageHandlePool.DEFAULT_CAPACITY,
+					MessageHandlePool.OverflowPolicy.DROP);
+		}
+
+		/**
+		 * @param capacity
+		 *            the most messages kept at a time
+		 * @param policy
+		 *            what to do with the messages received while capacity
+		 *            messages are kept
+		 */
+		public void keepRxMessages(boolean keep, int capacity,
+				MessageHandlePool.OverflowPolicy policy) {
+			if (keep && _rxMessagePool == null)
+				_rxMessagePool = new MessageHandlePool(capacity, policy);
 			this._keepRxMessage = keep;
 		}
 
+		/**
+		 * Frees a kept message once processed, so that its handle can take
+		 * another one. May be called from any thread.
+		 */
+		public void releaseRxMessage(MessageHandle messageHandle) {
+			boolean kept;
+			synchronized (_rxMessages) {
+				kept = _rxMessages.remove(messageHandle);
+			}
+			if (kept)
+				_rxMessagePool.release(messageHandle);
+		}
+
+		public MessageHandlePool getRxMessagePool() {
+			return _rxMessagePool;
+		}
+
 		public void setId(String id) {
 			this.m_id = id;
 		}
 
+		/**
+		 * @return the kept messages, to synchronize on while iterating
+		 */
 		public java.util.List<MessageHandle> getRxMessages() {
 			return this._rxMessages;
 		}
@@ -570,22 +722,27 @@ public abstract class AbstractSample {
 		}
 
 		public void destroy() {
-			if (_rxMessages.size() > 0) {
-				print(String.format("Destroying %d kept messages",
-						_rxMessages.size()));
-				for (Iterator<MessageHandle> iterator = _rxMessages.iterator(); iterator
-						.hasNext();) {
-
-					MessageHandle messageHandle = (MessageHandle) iterator
-							.next();
-					try {
-						messageHandle.destroy();
-					} catch (Throwable t) {
-						error("Unable to destroy a messageHandle ", t);
+			synchronized (_rxMessages) {
+				if (_rxMessages.size() > 0) {
+					print(String.format("Destroying %d kept messages",
+							_rxMessages.size()));
+					for (Iterator<MessageHandle> iterator = _rxMessages
+							.iterator(); iterator.hasNext();) {
+
+						MessageHandle messageHandle = (MessageHandle) iterator
+								.next();
+						try {
+							_rxMessagePool.release(messageHandle);
+						} catch (Throwable t) {
+							error("Unable to destroy a messageHandle ", t);
+						}
+						print(".");
 					}
-					print(".");
+					_rxMessages.clear();
 				}
 			}
+			if (_rxMessagePool != null)
+				print(_rxMessagePool.toString());
 		}
 
 	}
@@ -675,36 +832,276 @@ public abstract class AbstractSample {
 
 	}
 
-	public static class Monitor implements Runnable {
+	/**
+	 * Samples memory use at a fixed interval and records every GC pause, to
+	 * tell when and why a pause happened during a long run.
+	 * <p>
+	 * Each sample holds the used heap, the memory used by the direct
+	 * ByteBuffer pool and the resident set size of the process (Linux only,
+	 * -1 elsewhere). Samples, pauses and latency outliers are kept in
+	 * fixed-capacity rings of primitives allocated up front, the oldest
+	 * entries are overwritten, so monitoring does not allocate on the path it
+	 * observes.
+	 * <p>
+	 * Pauses come from the GarbageCollectionNotificationInfo notifications of
+	 * the garbage collectors, with their duration, collector, action and cause.
+	 * Samples that measure latency report outliers with
+	 * {@link #recordOutlier(long, long)}, the report lists which of them
+	 * overlap each pause.
+	 */
+	public static class Monitor implements Runnable, NotificationListener {
+
+		static final int SAMPLE_CAPACITY = 4096;
+		static final int PAUSE_CAPACITY = 1024;
+		static final int OUTLIER_CAPACITY = 4096;
+
+		// Assumed page size of the pages counted by /proc/self/statm
+		private static final long PAGE_SIZE = 4096;
 
 		Runtime runtime = Runtime.getRuntime();
-		List<Long> usedMemoryHistory = new ArrayList<Long>();
 
-		@Override
-		public void run() {
-			checkUsedMemory();
-		}
+		private final long startMillis = System.currentTimeMillis();
+		private final long jvmStartMillis = ManagementFactory
+				.getRuntimeMXBean().getStartTime();
+
+		private final long[] sampleTimes = new long[SAMPLE_CAPACITY];
+		private final long[] heapUsed = new long[SAMPLE_CAPACITY];
+		private final long[] directUsed = new long[SAMPLE_CAPACITY];
+		private final long[] rssBytes = new long[SAMPLE_CAPACITY];
+		private long sampleCount;
+
+		private final long[] pauseStarts = new long[PAUSE_CAPACITY];
+		private final long[] pauseDurations = new long[PAUSE_CAPACITY];
+		private final String[] pauseCollectors = new String[PAUSE_CAPACITY];
+		private final String[] pauseActions = new String[PAUSE_CAPACITY];
+		private final String[] pauseCauses = new String[PAUSE_CAPACITY];
+		private long pauseCount;
+
+		private final long[] outlierTimes = new long[OUTLIER_CAPACITY];
+		private final long[] outlierLatencies = new long[OUTLIER_CAPACITY];
+		private long outlierCount;
+
+		private final BufferPoolMXBean directPool;
+		private RandomAccessFile statm;
+		private final byte[] statmBuffer = new byte[128];
 
 		long lastTotalMemory;
 		long lastFreeMemory;
 		long lastUsedMemory;
 
-		public void checkUsedMemory() {
+		public Monitor() {
+			BufferPoolMXBean direct = null;
+			for (BufferPoolMXBean pool : ManagementFactory
+					.getPlatformMXBeans(BufferPoolMXBean.class)) {
+				if ("direct".equals(pool.getName()))
+					direct = pool;
+			}
+			directPool = direct;
+		}
+
+		/**
+		 * Subscribes to the GC notifications, to be called once before the
+		 * sampling is scheduled.
+		 */
+		public void start() {
+			for (GarbageCollectorMXBean gc : ManagementFactory
+					.getGarbageCollectorMXBeans()) {
+				if (gc instanceof NotificationEmitter)
+					((NotificationEmitter) gc).addNotificationListener(this,
+							null, null);
+			}
+			try {
+				statm = new RandomAccessFile("/proc/self/statm", "r");
+			} catch (IOException e) {
+				// Not Linux, no RSS
+				statm = null;
+			}
+		}
+
+		/**
+		 * Unsubscribes from the GC notifications.
+		 */
+		public void stop() {
+			for (GarbageCollectorMXBean gc : ManagementFactory
+					.getGarbageCollectorMXBeans()) {
+				if (gc instanceof NotificationEmitter) {
+					try {
+						((NotificationEmitter) gc)
+								.removeNotificationListener(this);
+					} catch (ListenerNotFoundException e) {
+						// was not started
+					}
+				}
+			}
+			if (statm != null) {
+				try {
+					statm.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			checkUsedMemory();
+		}
+
+		public synchronized void checkUsedMemory() {
 			// Checked used memory
 			lastTotalMemory = runtime.totalMemory();
 			lastFreeMemory = runtime.freeMemory();
 			lastUsedMemory = lastTotalMemory - lastFreeMemory;
-			usedMemoryHistory.add(lastUsedMemory);
+
+			int slot = (int) (sampleCount % SAMPLE_CAPACITY);
+			sampleTimes[slot] = System.currentTimeMillis();
+			heapUsed[slot] = lastUsedMemory;
+			directUsed[slot] = directPool == null ? -1 : directPool
+					.getMemoryUsed();
+			rssBytes[slot] = readRss();
+			sampleCount++;
+		}
+
+		/**
+		 * Reads the resident set size, the second field of /proc/self/statm,
+		 * into the preallocated buffer.
+		 */
+		private long readRss() {
+			if (statm == null)
+				return -1;
+			try {
+				statm.seek(0);
+				int length = statm.read(statmBuffer);
+				int i = 0;
+				// Skip the total program size
+				while (i < length && statmBuffer[i] != ' ')
+					i++;
+				i++;
+				long pages = 0;
+				while (i < length && statmBuffer[i] >= '0'
+						&& statmBuffer[i] <= '9') {
+					pages = pages * 10 + (statmBuffer[i] - '0');
+					i++;
+				}
+				return pages * PAGE_SIZE;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * Invoked by the garbage collectors on the JMX notification thread.
+		 */
+		@Override
+		public void handleNotification(Notification notification,
+				Object handback) {
+			if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+					.equals(notification.getType()))
+				return;
+			GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+					.from((CompositeData) notification.getUserData());
+			recordPause(jvmStartMillis + info.getGcInfo().getStartTime(), info
+					.getGcInfo().getDuration(), info.getGcName(),
+					info.getGcAction(), info.getGcCause());
+		}
+
+		synchronized void recordPause(long startMillis, long durationMillis,
+				String collector, String action, String cause) {
+			int slot = (int) (pauseCount % PAUSE_CAPACITY);
+			pauseStarts[slot] = startMillis;
+			pauseDurations[slot] = durationMillis;
+			pauseCollectors[slot] = collector;
+			pauseActions[slot] = action;
+			pauseCauses[slot] = cause;
+			pauseCount++;
+		}
+
+		/**
+		 * Records a latency outlier, does not allocate.
+		 *
+		 * @param receiveMillis
+		 *            System.currentTimeMillis() when the message was received
+		 * @param latencyNanos
+		 *            the latency of the message
+		 */
+		public synchronized void recordOutlier(long receiveMillis,
+				long latencyNanos) {
+			int slot = (int) (outlierCount % OUTLIER_CAPACITY);
+			outlierTimes[slot] = receiveMillis;
+			outlierLatencies[slot] = latencyNanos;
+			outlierCount++;
 		}
 
-		public void report() {
-			for (int i = 0; i < usedMemoryHistory.size(); i++) {
-				System.out.println("UsedMemory:" + usedMemoryHistory.get(i));
+		public synchronized void report() {
+			long first = Math.max(0, sampleCount - SAMPLE_CAPACITY);
+			System.out.printf("%nMemory samples (%d of %d kept):%n",
+					sampleCount - first, sampleCount);
+			for (long n = first; n < sampleCount; n++) {
+				int i = (int) (n % SAMPLE_CAPACITY);
+				System.out.printf(
+						"\t t+%9.3fs UsedMemory:%d DirectMemory:%d RSS:%d%n",
+						(sampleTimes[i] - startMillis) / 1000.0, heapUsed[i],
+						directUsed[i], rssBytes[i]);
+			}
+
+			long firstOutlier = Math.max(0, outlierCount - OUTLIER_CAPACITY);
+			long firstPause = Math.max(0, pauseCount - PAUSE_CAPACITY);
+			System.out.printf("%nGC pauses (%d of %d kept):%n", pauseCount
+					- firstPause, pauseCount);
+			for (long n = firstPause; n < pauseCount; n++) {
+				int p = (int) (n % PAUSE_CAPACITY);
+				long pauseEnd = pauseStarts[p] + pauseDurations[p];
+				int overlapping = 0;
+				long worst = 0;
+				for (long m = firstOutlier; m < outlierCount; m++) {
+					int o = (int) (m % OUTLIER_CAPACITY);
+					if (overlaps(o, pauseStarts[p], pauseEnd)) {
+						overlapping++;
+						worst = Math.max(worst, outlierLatencies[o]);
+					}
+				}
+				System.out.printf(
+						"\t t+%9.3fs %d ms %s (%s, cause: %s)%s%n",
+						(pauseStarts[p] - startMillis) / 1000.0,
+						pauseDurations[p], pauseCollectors[p],
+						pauseActions[p], pauseCauses[p],
+						overlapping == 0 ? "" : String.format(
+								", %d latency outliers up to %.2f us",
+								overlapping, worst / 1000.0));
+			}
+
+			if (outlierCount > 0) {
+				long correlated = 0;
+				for (long m = firstOutlier; m < outlierCount; m++) {
+					int o = (int) (m % OUTLIER_CAPACITY);
+					for (long n = firstPause; n < pauseCount; n++) {
+						int p = (int) (n % PAUSE_CAPACITY);
+						if (overlaps(o, pauseStarts[p], pauseStarts[p]
+								+ pauseDurations[p])) {
+							correlated++;
+							break;
+						}
+					}
+				}
+				System.out.printf(
+						"%n%d latency outliers recorded, %d of the %d kept overlap a GC pause%n",
+						outlierCount, correlated, outlierCount - firstOutlier);
 			}
 
 			printGCStats();
 		}
 
+		/**
+		 * @return whether the outlier, which was in flight from its receive
+		 *         time minus its latency until its receive time, overlaps the
+		 *         given pause
+		 */
+		private boolean overlaps(int outlier, long pauseStart, long pauseEnd) {
+			long received = outlierTimes[outlier];
+			long sent = received - outlierLatencies[outlier] / 1000000;
+			return sent <= pauseEnd && received >= pauseStart;
+		}
+
 	}
 
 	public static void printGCStats() {
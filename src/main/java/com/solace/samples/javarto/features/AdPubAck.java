@@ -34,10 +34,11 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * the message.
  * 
  * In this specific sample, the publisher is using a sparse array utility, the
- * array index is the correlation key, the array bucket holds whatever structure
- * is desired for tracking the message and its state. In the callback,
- * correlated objects are cleared from the array and further processing can
- * occur with them as desired.
+ * correlation key holds the array index and a generation, the array bucket
+ * holds whatever structure is desired for tracking the message and its state.
+ * In the callback, correlated objects are cleared from the array and further
+ * processing can occur with them as desired. A duplicate or stale
+ * acknowledgement finds no object, and is counted.
  * 
  * For simplicity, this sample treats both message acceptance and rejection the
  * same way: the message is freed. In real world applications, the client should
@@ -310,6 +311,8 @@ public class AdPubAck extends AbstractSample {
 			e.printStackTrace();
 		}
 
+		print(adPubAckEventAdapter.getCorrelationArrayMsgInfo().toString());
+
 		assertExpectedCount("Acknowledged count ", numberOfMessageToPublish,
 				adPubAckEventAdapter.getAcknowledgedCount());
 
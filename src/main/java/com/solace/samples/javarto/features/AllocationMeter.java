@@ -0,0 +1,147 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap bytes allocated by the publishing thread and by the
+ * context (callback) thread over a measured region, using the per-thread
+ * allocation counters of the HotSpot ThreadMXBean, and checks them against a
+ * budget in bytes per message.
+ * <p>
+ * The publishing thread is the one calling {@link #start()}. The context
+ * thread is not known up front, it is captured the first time a callback
+ * calls {@link #onCallback()}. When that happens after {@link #start()}, its
+ * baseline is taken at that point.
+ * <p>
+ * Reading the counters allocates a little on the calling thread, this only
+ * happens at the edges of the region and is spread over all its messages.
+ */
+public class AllocationMeter {
+
+	private final com.sun.management.ThreadMXBean threadBean;
+	private final double budgetBytesPerMessage;
+
+	private long publisherThreadId = -1;
+	private long publisherStartBytes;
+	private long publisherBytes;
+
+	private volatile long callbackThreadId = -1;
+	private volatile long callbackStartBytes = -1;
+	private long callbackBytes;
+
+	private volatile boolean started;
+	private long messageCount;
+
+	/**
+	 * @param budgetBytesPerMessage
+	 *            the most each thread may allocate per message on average
+	 */
+	public AllocationMeter(double budgetBytesPerMessage) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			throw new IllegalStateException(
+					"Per-thread allocation counters are not available on this JVM");
+		threadBean = (com.sun.management.ThreadMXBean) bean;
+		if (!threadBean.isThreadAllocatedMemorySupported())
+			throw new IllegalStateException(
+					"Per-thread allocation counters are not supported on this JVM");
+		if (!threadBean.isThreadAllocatedMemoryEnabled())
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		this.budgetBytesPerMessage = budgetBytesPerMessage;
+	}
+
+	/**
+	 * To be called from the message and event callbacks, remembers the
+	 * context thread. Does not allocate.
+	 */
+	public void onCallback() {
+		if (callbackThreadId != -1)
+			return;
+		callbackThreadId = Thread.currentThread().getId();
+		if (started)
+			callbackStartBytes = threadBean
+					.getThreadAllocatedBytes(callbackThreadId);
+	}
+
+	/**
+	 * Starts the measured region on the calling (publishing) thread.
+	 */
+	public void start() {
+		publisherThreadId = Thread.currentThread().getId();
+		long id = callbackThreadId;
+		if (id != -1)
+			callbackStartBytes = threadBean.getThreadAllocatedBytes(id);
+		started = true;
+		publisherStartBytes = threadBean
+				.getThreadAllocatedBytes(publisherThreadId);
+	}
+
+	/**
+	 * Ends the measured region, to be called from the publishing thread once
+	 * the messages were sent (and received, when the callback counts).
+	 *
+	 * @param messageCount
+	 *            the number of messages of the region
+	 */
+	public void stop(long messageCount) {
+		publisherBytes = threadBean.getThreadAllocatedBytes(publisherThreadId)
+				- publisherStartBytes;
+		started = false;
+		long id = callbackThreadId;
+		if (id != -1 && callbackStartBytes != -1) {
+			long end = threadBean.getThreadAllocatedBytes(id);
+			// -1 when the context thread is gone
+			callbackBytes = end < 0 ? 0 : end - callbackStartBytes;
+		}
+		this.messageCount = messageCount;
+	}
+
+	public long getPublisherBytes() {
+		return publisherBytes;
+	}
+
+	public long getCallbackBytes() {
+		return callbackBytes;
+	}
+
+	public double getPublisherBytesPerMessage() {
+		return messageCount == 0 ? 0 : (double) publisherBytes / messageCount;
+	}
+
+	public double getCallbackBytesPerMessage() {
+		return messageCount == 0 ? 0 : (double) callbackBytes / messageCount;
+	}
+
+	/**
+	 * Prints the allocations of both threads, then fails when either of them
+	 * is over budget.
+	 *
+	 * @throws IllegalStateException
+	 *             when the budget is exceeded
+	 */
+	public void printAndCheck() {
+		System.out.printf(
+				"%nAllocated: publisher thread %d bytes (%.3f bytes/message), context thread %s, budget %.3f bytes/message%n",
+				publisherBytes, getPublisherBytesPerMessage(),
+				callbackThreadId == -1 ? "not seen" : String.format(
+						"%d bytes (%.3f bytes/message)", callbackBytes,
+						getCallbackBytesPerMessage()), budgetBytesPerMessage);
+
+		if (getPublisherBytesPerMessage() > budgetBytesPerMessage) {
+			throw new IllegalStateException(String.format(
+					"The publisher thread allocated %.3f bytes/message, over the budget of %.3f",
+					getPublisherBytesPerMessage(), budgetBytesPerMessage));
+		}
+		if (getCallbackBytesPerMessage() > budgetBytesPerMessage) {
+			throw new IllegalStateException(String.format(
+					"The context thread allocated %.3f bytes/message, over the budget of %.3f",
+					getCallbackBytesPerMessage(), budgetBytesPerMessage));
+		}
+	}
+
+}
@@ -101,6 +101,10 @@ public class ArgumentsParser {
 			return 1; // err
 		}
 
+		if (!isPositiveInteger("-mm") || !isPositiveInteger("-dc")
+				|| !isPositiveInteger("-kp") || !isOverflowPolicy("-ko"))
+			return 1;
+
 		if (sc.getHost() == null
 				|| (sc.getRouterUserVpn() == null && sc
 						.getAuthenticationScheme()
@@ -132,6 +136,44 @@ public class ArgumentsParser {
 		return 0; // success
 	}
 
+	/**
+	 * @return true when the option is absent or given a positive integer,
+	 *         false after printing why otherwise
+	 */
+	private boolean isPositiveInteger(String option) {
+		String value = sc.getArgBag().get(option);
+		if (value == null)
+			return true;
+		try {
+			if (Integer.parseInt(value) > 0)
+				return true;
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		System.err.println("Invalid value for " + option
+				+ " : Must be a positive integer");
+		return false;
+	}
+
+	/**
+	 * @return true when the option is absent or names a
+	 *         {@link MessageHandlePool.OverflowPolicy}, false after printing
+	 *         why otherwise
+	 */
+	private boolean isOverflowPolicy(String option) {
+		String value = sc.getArgBag().get(option);
+		if (value == null)
+			return true;
+		try {
+			MessageHandlePool.OverflowPolicy.parse(value);
+			return true;
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid value for " + option
+					+ " : Must be one of DROP, BLOCK, STOP_FLOW");
+			return false;
+		}
+	}
+
 	public int parseCacheSampleArgs(String[] args) {
 		CacheSessionConfiguration cf = new CacheSessionConfiguration();
 		this.sc = cf;
@@ -277,7 +319,10 @@ public class ArgumentsParser {
 		str += "\t[-z]             Enable compression\n";
 		str += "\t[-x AUTH_METHOD] authentication scheme (One of : BASIC, KERBEROS). (Default: BASIC).  Specifying USER is mandatory when BASIC is used.\n";
 		str += "\t[-l logLevel ]   Java Log Level to override file based configuration\n";
-		str += "\t[-mm interval]   Monitor and record used memory at interval in seconds, prints a report at the end.\n";
+		str += "\t[-mm interval]   Monitor and record heap, direct and resident memory at interval in seconds, and GC pauses, prints a report at the end.\n";
+		str += "\t[-dc size]       Most native topic destinations cached for the published topics (Default: 4096)\n";
+		str += "\t[-kp size]       Most received messages kept at a time by samples keeping them (Default: 1024)\n";
+		str += "\t[-ko POLICY]     What happens to received messages once -kp are kept (One of : DROP, BLOCK, STOP_FLOW). (Default: DROP)\n";
 		if (secure) {
 			str += getSecureArgUsage();
 		}
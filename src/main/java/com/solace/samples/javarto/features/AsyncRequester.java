@@ -0,0 +1,477 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Destination;
+import com.solacesystems.solclientj.core.resource.Topic;
+
+/**
+ * Direct request/reply without waiting for each reply in turn: every
+ * {@link #request(Destination, ByteBuffer, long)} sends at once and returns a
+ * CompletableFuture, completed with the reply payload by the context thread,
+ * or exceptionally with a TimeoutException.
+ * <p>
+ * Up to maxOutstanding requests are in flight, further requests wait for a
+ * reply. Each one holds a slot of a fixed table, and its correlation id is
+ * made of the slot and of a generation bumped at every reuse, so a reply is
+ * matched with one array read and a late reply to a reused slot is
+ * recognized. Timeouts are driven by a {@link HashedTimingWheel}.
+ * <p>
+ * With hedging, a request still waiting for its reply after a percentile of
+ * the recent primary latencies is sent again to an alternate destination. The
+ * first reply wins, the other one is discarded as late by its correlation id.
+ * The hedge delay follows the latencies of the last replies from the primary
+ * destination, counting those coming after their hedge won or their request
+ * timed out, so that it does not drift down as hedging cuts the slow ones
+ * short. Hedging only starts once enough replies were seen, and the delay is
+ * no finer than a tick of the timing wheel.
+ * <p>
+ * Requests are sent from one application thread at a time. The requester is
+ * the MessageCallback of the session; messages which are not replies to it go
+ * to the fallback callback, if any. The repliers must copy the correlation id
+ * into the reply, as SessionHandle.sendReply() does.
+ */
+public class AsyncRequester implements MessageCallback {
+
+	static final String CORRELATION_PREFIX = "#AR";
+	// The same request sent again to the alternate destination
+	static final String HEDGE_PREFIX = "#AH";
+
+	// The primary replies the hedge delay is taken from, and how often it is
+	// updated
+	static final int HEDGE_WINDOW = 1024;
+	static final int HEDGE_UPDATE_INTERVAL = 128;
+
+	// The largest reply payload
+	static final int MAX_REPLY_SIZE = 8192;
+
+	private final SessionHandle sessionHandle;
+	private final Topic replyTo;
+	private final HashedTimingWheel timingWheel;
+	private final MessageCallback fallback;
+	private final MessageHandle txMessageHandle = Solclient.Allocator
+			.newMessageHandle();
+	// Written by the context thread only
+	private final ByteBuffer rxContent = ByteBuffer
+			.allocateDirect(MAX_REPLY_SIZE);
+
+	private final AtomicReferenceArray<Pending> slots;
+	private final int[] generations;
+	private final int[] freeSlots;
+	private int freeCount;
+	private final Semaphore window;
+
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong repliedCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong lateReplyCount = new AtomicLong();
+
+	private Destination hedgeDestination;
+	private double hedgePercentile;
+	// Negative until enough replies were seen
+	private volatile long hedgeDelayNanos = -1;
+	// The latencies of the last primary replies, context thread only
+	private long[] recentLatencies;
+	private long[] sortedLatencies;
+	private long latencyCount;
+	// Sends the hedges, timing wheel thread only
+	private MessageHandle hedgeMessageHandle;
+	private ByteBuffer hedgeContent;
+	private final AtomicLong hedgeCount = new AtomicLong();
+	private final AtomicLong hedgeWonCount = new AtomicLong();
+	// By slot, the last request hedged or timed out, until its primary reply
+	private AtomicReferenceArray<Pending> awaitingPrimary;
+
+	/**
+	 * @param replyTo
+	 *            a topic the session is subscribed to, for the replies
+	 * @param fallback
+	 *            receives the messages which are not replies, may be null
+	 */
+	public AsyncRequester(SessionHandle sessionHandle, Topic replyTo,
+			int maxOutstanding, HashedTimingWheel timingWheel,
+			MessageCallback fallback) {
+		if (maxOutstanding < 1)
+			throw new IllegalArgumentException(
+					"At least one outstanding request is needed, got "
+							+ maxOutstanding);
+		this.sessionHandle = sessionHandle;
+		this.replyTo = replyTo;
+		this.timingWheel = timingWheel;
+		this.fallback = fallback;
+		this.slots = new AtomicReferenceArray<Pending>(maxOutstanding);
+		this.generations = new int[maxOutstanding];
+		this.freeSlots = new int[maxOutstanding];
+		for (int i = 0; i < maxOutstanding; i++)
+			freeSlots[i] = maxOutstanding - 1 - i;
+		this.freeCount = maxOutstanding;
+		this.window = new Semaphore(maxOutstanding);
+	}
+
+	/**
+	 * Sends the requests still waiting for their reply after the given
+	 * percentile of the recent reply latencies again, to the alternate
+	 * destination. To be called before the first request.
+	 *
+	 * @param percentile
+	 *            from 0 to 100, 95 hedges about one request in twenty
+	 */
+	public void enableHedging(Destination alternate, double percentile) {
+		if (percentile <= 0 || percentile >= 100)
+			throw new IllegalArgumentException(
+					"The hedge percentile must be between 0 and 100, got "
+							+ percentile);
+		this.hedgePercentile = percentile;
+		this.recentLatencies = new long[HEDGE_WINDOW];
+		this.sortedLatencies = new long[HEDGE_WINDOW];
+		this.hedgeMessageHandle = Solclient.Allocator.newMessageHandle();
+		this.hedgeContent = ByteBuffer.allocateDirect(MAX_REPLY_SIZE);
+		this.awaitingPrimary = new AtomicReferenceArray<Pending>(
+				slots.length());
+		this.hedgeDestination = alternate;
+	}
+
+	/**
+	 * Sends a request, waiting first while maxOutstanding requests are in
+	 * flight.
+	 *
+	 * @return completed with a copy of the reply payload, or exceptionally
+	 *         after timeoutMs
+	 */
+	public CompletableFuture<ByteBuffer> request(Destination destination,
+			ByteBuffer payload, long timeoutMs) throws InterruptedException {
+		window.acquire();
+		Pending pending = new Pending(acquireSlot());
+		slots.set(pending.slot, pending);
+
+		if (!txMessageHandle.isBound()) {
+			int rc = Solclient.createMessageForHandle(txMessageHandle);
+			if (rc != SolEnum.ReturnCode.OK)
+				throw new IllegalStateException(
+						"Solclient.createMessageForHandle() returned " + rc);
+			txMessageHandle
+					.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.DIRECT);
+			txMessageHandle.setReplyTo(replyTo);
+		}
+		txMessageHandle.setDestination(destination);
+		txMessageHandle.setCorrelationId(CORRELATION_PREFIX
+				+ Long.toString(pending.id));
+		txMessageHandle.setBinaryAttachment(payload);
+
+		pending.timeout = timingWheel.schedule(pending, timeoutMs,
+				TimeUnit.MILLISECONDS);
+		pending.sentNanos = System.nanoTime();
+		int rc = sessionHandle.send(txMessageHandle);
+		if (rc != SolEnum.ReturnCode.OK && rc != SolEnum.ReturnCode.IN_PROGRESS) {
+			if (remove(pending)) {
+				pending.cancelTimers();
+				pending.future.completeExceptionally(new IllegalStateException(
+						"sessionHandle.send() returned "
+								+ SolEnum.ReturnCode.toString(rc)));
+			}
+			return pending.future;
+		}
+		sentCount.incrementAndGet();
+		// Only a request actually sent is hedged, unless already replied to
+		long hedgeDelay = hedgeDelayNanos;
+		if (hedgeDestination != null && hedgeDelay >= 0
+				&& payload.remaining() <= MAX_REPLY_SIZE
+				&& slots.get(pending.slot) == pending) {
+			pending.payload = copyOf(payload);
+			pending.hedge = timingWheel.schedule(new Hedge(pending),
+					hedgeDelay, TimeUnit.NANOSECONDS);
+		}
+		return pending.future;
+	}
+
+	@Override
+	public void onMessage(Handle handle) {
+		MessageHandle rxMessage = ((MessageSupport) handle).getRxMessage();
+		String correlationId = rxMessage.getCorrelationId();
+		long id = parseCorrelationId(correlationId);
+		boolean hedgeReply = false;
+		if (id < 0 && hedgeDestination != null) {
+			id = parseCorrelationId(correlationId, HEDGE_PREFIX);
+			hedgeReply = id >= 0;
+		}
+		if (id < 0) {
+			if (fallback != null)
+				fallback.onMessage(handle);
+			return;
+		}
+		Pending pending = lookup(id);
+		if (pending == null || !remove(pending)) {
+			// Timed out or already replied to, and maybe its slot reused since
+			lateReplyCount.incrementAndGet();
+			if (hedgeDestination != null && !hedgeReply)
+				recordLatePrimary(id);
+			return;
+		}
+		pending.cancelTimers();
+		if (hedgeReply) {
+			hedgeWonCount.incrementAndGet();
+			// Its primary reply still counts towards the hedge delay
+			awaitingPrimary.set(pending.slot, pending);
+		} else if (hedgeDestination != null) {
+			recordLatency(System.nanoTime() - pending.sentNanos);
+		}
+		rxContent.clear();
+		rxMessage.getBinaryAttachment(rxContent);
+		rxContent.flip();
+		ByteBuffer reply = ByteBuffer.allocate(rxContent.remaining());
+		reply.put(rxContent);
+		reply.flip();
+		repliedCount.incrementAndGet();
+		pending.future.complete(reply);
+	}
+
+	/**
+	 * Records the latency of a primary reply which came after its hedge won or
+	 * its request timed out, as long as its slot was not reused since.
+	 */
+	private void recordLatePrimary(long id) {
+		int slot = (int) (id & 0xffffffffL);
+		if (slot < 0 || slot >= awaitingPrimary.length())
+			return;
+		Pending pending = awaitingPrimary.get(slot);
+		if (pending != null && pending.id == id
+				&& awaitingPrimary.compareAndSet(slot, pending, null))
+			recordLatency(System.nanoTime() - pending.sentNanos);
+	}
+
+	/**
+	 * Keeps the latency of the last primary replies, and takes the hedge delay
+	 * from them every HEDGE_UPDATE_INTERVAL replies.
+	 */
+	private void recordLatency(long latencyNanos) {
+		recentLatencies[(int) (latencyCount++ % HEDGE_WINDOW)] = latencyNanos;
+		if (latencyCount % HEDGE_UPDATE_INTERVAL != 0)
+			return;
+		int count = (int) Math.min(latencyCount, HEDGE_WINDOW);
+		System.arraycopy(recentLatencies, 0, sortedLatencies, 0, count);
+		Arrays.sort(sortedLatencies, 0, count);
+		int index = (int) Math.ceil(hedgePercentile / 100 * count) - 1;
+		hedgeDelayNanos = sortedLatencies[Math.max(0, index)];
+	}
+
+	private static ByteBuffer copyOf(ByteBuffer payload) {
+		ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+		int position = payload.position();
+		copy.put(payload);
+		payload.position(position);
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * Sends the request again to the alternate destination, on the timing
+	 * wheel thread.
+	 */
+	private void sendHedge(Pending pending) {
+		if (slots.get(pending.slot) != pending)
+			return;
+		if (!hedgeMessageHandle.isBound()) {
+			int rc = Solclient.createMessageForHandle(hedgeMessageHandle);
+			if (rc != SolEnum.ReturnCode.OK)
+				throw new IllegalStateException(
+						"Solclient.createMessageForHandle() returned " + rc);
+			hedgeMessageHandle
+					.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.DIRECT);
+			hedgeMessageHandle.setReplyTo(replyTo);
+			hedgeMessageHandle.setDestination(hedgeDestination);
+		}
+		hedgeMessageHandle.setCorrelationId(HEDGE_PREFIX
+				+ Long.toString(pending.id));
+		hedgeContent.clear();
+		hedgeContent.put(pending.payload);
+		hedgeContent.flip();
+		hedgeMessageHandle.setBinaryAttachment(hedgeContent);
+		int rc = sessionHandle.send(hedgeMessageHandle);
+		if (rc == SolEnum.ReturnCode.OK || rc == SolEnum.ReturnCode.IN_PROGRESS)
+			hedgeCount.incrementAndGet();
+	}
+
+	private Pending lookup(long id) {
+		int slot = (int) (id & 0xffffffffL);
+		if (slot < 0 || slot >= slots.length())
+			return null;
+		Pending pending = slots.get(slot);
+		return pending != null && pending.id == id ? pending : null;
+	}
+
+	/**
+	 * Takes the request out of its slot, once only, whether replied, timed
+	 * out or failed to send.
+	 *
+	 * @return false when that already happened
+	 */
+	private boolean remove(Pending pending) {
+		if (!slots.compareAndSet(pending.slot, pending, null))
+			return false;
+		releaseSlot(pending.slot);
+		window.release();
+		return true;
+	}
+
+	private synchronized int acquireSlot() {
+		// The window guarantees a free slot
+		return freeSlots[--freeCount];
+	}
+
+	private synchronized void releaseSlot(int slot) {
+		generations[slot]++;
+		freeSlots[freeCount++] = slot;
+	}
+
+	private synchronized int generation(int slot) {
+		return generations[slot];
+	}
+
+	/**
+	 * @return the request id, or -1 when not one of ours
+	 */
+	static long parseCorrelationId(String correlationId) {
+		return parseCorrelationId(correlationId, CORRELATION_PREFIX);
+	}
+
+	/**
+	 * @return the number following the prefix, or -1 when there is none
+	 */
+	static long parseCorrelationId(String correlationId, String prefix) {
+		if (correlationId == null || !correlationId.startsWith(prefix))
+			return -1;
+		try {
+			return Long.parseLong(correlationId.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public int getOutstanding() {
+		return slots.length() - window.availablePermits();
+	}
+
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	public long getRepliedCount() {
+		return repliedCount.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * @return the replies which came after their request timed out
+	 */
+	public long getLateReplyCount() {
+		return lateReplyCount.get();
+	}
+
+	/**
+	 * @return the requests sent again to the alternate destination
+	 */
+	public long getHedgeCount() {
+		return hedgeCount.get();
+	}
+
+	/**
+	 * @return the requests first replied to from the alternate destination
+	 */
+	public long getHedgeWonCount() {
+		return hedgeWonCount.get();
+	}
+
+	/**
+	 * @return the current hedge delay, negative while hedging has not started
+	 */
+	public long getHedgeDelayNanos() {
+		return hedgeDelayNanos;
+	}
+
+	public void destroy() {
+		if (txMessageHandle.isBound())
+			txMessageHandle.destroy();
+		if (hedgeMessageHandle != null && hedgeMessageHandle.isBound())
+			hedgeMessageHandle.destroy();
+	}
+
+	/**
+	 * An outstanding request, also its own timeout task.
+	 */
+	private class Pending implements HashedTimingWheel.TimerTask {
+
+		final int slot;
+		final long id;
+		final CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		volatile HashedTimingWheel.Timeout timeout;
+		volatile HashedTimingWheel.Timeout hedge;
+		// A copy of the request, when it may be hedged
+		volatile ByteBuffer payload;
+		volatile long sentNanos;
+
+		Pending(int slot) {
+			this.slot = slot;
+			this.id = ((long) (generation(slot) & 0x7fffffff) << 32) | slot;
+		}
+
+		void cancelTimers() {
+			timeout.cancel();
+			HashedTimingWheel.Timeout hedgeTimeout = hedge;
+			if (hedgeTimeout != null)
+				hedgeTimeout.cancel();
+		}
+
+		@Override
+		public void run(HashedTimingWheel.Timeout expired) {
+			if (!remove(this))
+				return;
+			HashedTimingWheel.Timeout hedgeTimeout = hedge;
+			if (hedgeTimeout != null)
+				hedgeTimeout.cancel();
+			if (awaitingPrimary != null && sentNanos != 0)
+				awaitingPrimary.set(slot, this);
+			timeoutCount.incrementAndGet();
+			future.completeExceptionally(new TimeoutException("Request " + id
+					+ " got no reply in time"));
+		}
+	}
+
+	/**
+	 * The hedge timer of a request.
+	 */
+	private class Hedge implements HashedTimingWheel.TimerTask {
+
+		private final Pending pending;
+
+		Hedge(Pending pending) {
+			this.pending = pending;
+		}
+
+		@Override
+		public void run(HashedTimingWheel.Timeout expired) {
+			sendHedge(pending);
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * Publishes messages in batches: a fixed array of preallocated messages is
+ * filled by the application through {@link #next()}, then submitted at once
+ * by {@link #flush(SessionHandle)}.
+ * <p>
+ * The messages are allocated and given their delivery mode once, the
+ * application only sets what changes from one message to the next, usually
+ * the binary attachment. A destination common to all the messages is best
+ * set once on each of {@link #getMessages()}.
+ * <p>
+ * solclientj has no multi-message send, so flush() sends the filled messages
+ * in a tight loop, one SessionHandle.send() each, the batch being the unit of
+ * work of the publishing thread: the messages are prepared while the
+ * previous batch is on its way, and the publishing loop only leaves the
+ * filling of the array once per batch. flush() is the one place to submit
+ * the whole array in a single call should the API offer a vector send.
+ */
+public class BatchPublisher {
+
+	private final MessageHandle[] messages;
+	private int filled;
+
+	private long batchCount;
+	private long sentCount;
+	private long failedCount;
+
+	/**
+	 * @param batchSize
+	 *            the number of messages submitted together
+	 * @param deliveryMode
+	 *            one of SolEnum.MessageDeliveryMode, set on every message
+	 */
+	public BatchPublisher(int batchSize, int deliveryMode) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException(
+					"Batch size must be at least 1, got " + batchSize);
+		messages = new MessageHandle[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			messages[i] = Solclient.Allocator.newMessageHandle();
+			int rc = Solclient.createMessageForHandle(messages[i]);
+			if (rc != SolEnum.ReturnCode.OK) {
+				destroy();
+				throw new IllegalStateException(String.format(
+						"Solclient.createMessageForHandle() returned %d for message %d of the batch",
+						rc, i));
+			}
+			messages[i].setMessageDeliveryMode(deliveryMode);
+		}
+	}
+
+	/**
+	 * @return all the messages of the batch, to set what they have in common
+	 */
+	public MessageHandle[] getMessages() {
+		return messages;
+	}
+
+	public int getBatchSize() {
+		return messages.length;
+	}
+
+	/**
+	 * @return the next message of the batch to fill, the batch must not be
+	 *         full
+	 */
+	public MessageHandle next() {
+		if (filled == messages.length)
+			throw new IllegalStateException("The batch is full, flush it first");
+		return messages[filled++];
+	}
+
+	public boolean isFull() {
+		return filled == messages.length;
+	}
+
+	/**
+	 * @return the number of messages filled and not sent yet
+	 */
+	public int size() {
+		return filled;
+	}
+
+	/**
+	 * Sends the filled messages, in order. The batch is empty afterwards,
+	 * the messages after a failed send are dropped and counted as failed.
+	 *
+	 * @return the number of messages sent
+	 */
+	public int flush(SessionHandle sessionHandle) {
+		int count = filled;
+		filled = 0;
+		if (count == 0)
+			return 0;
+		batchCount++;
+		for (int i = 0; i < count; i++) {
+			if (sessionHandle.send(messages[i]) != SolEnum.ReturnCode.OK) {
+				sentCount += i;
+				failedCount += count - i;
+				return i;
+			}
+		}
+		sentCount += count;
+		return count;
+	}
+
+	public long getBatchCount() {
+		return batchCount;
+	}
+
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	public long getFailedCount() {
+		return failedCount;
+	}
+
+	/**
+	 * Destroys the messages of the batch.
+	 */
+	public void destroy() {
+		filled = 0;
+		for (int i = 0; i < messages.length; i++) {
+			if (messages[i] != null && messages[i].isBound())
+				messages[i].destroy();
+		}
+	}
+
+}
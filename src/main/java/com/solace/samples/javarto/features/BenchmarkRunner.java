@@ -0,0 +1,272 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.solacesystems.solclientj.core.Solclient;
+
+/**
+ * Runs a {@link Workload} over a sweep of message sizes and message counts,
+ * with warmup iterations followed by measured iterations timed with
+ * System.nanoTime().
+ * <p>
+ * Every measured point is reported with its mean rate, standard deviation and
+ * 95% confidence interval, on stdout and optionally in a CSV or JSON file
+ * (picked from the file extension) along with the JVM, its arguments and the
+ * solclientj version, so that runs can be compared across upgrades and JVM
+ * flags.
+ */
+public class BenchmarkRunner {
+
+	/**
+	 * What gets measured, typically publishing a number of messages.
+	 */
+	public interface Workload {
+
+		/**
+		 * Called before the iterations of every message size, not timed.
+		 */
+		void setUp(int msgSize);
+
+		/**
+		 * One timed iteration.
+		 *
+		 * @return the number of messages processed
+		 */
+		long run(int msgSize, int numMessages);
+	}
+
+	public static final int[] DEFAULT_SIZES = { 0, 16, 64, 256, 1024, 4096,
+			16384, 65536, 262144, 1048576 };
+
+	// Two-sided 95% Student's t values for 1 to 30 degrees of freedom
+	private static final double[] T_95 = { 12.706, 4.303, 3.182, 2.776,
+			2.571, 2.447, 2.365, 2.306, 2.262, 2.228, 2.201, 2.179, 2.160,
+			2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074,
+			2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+
+	private final String name;
+	private int warmupIterations = 2;
+	private int measuredIterations = 5;
+	private int[] sizes = DEFAULT_SIZES;
+	private int[] counts = { 100000 };
+	private String outputFile;
+
+	private final List<Result> results = new ArrayList<Result>();
+
+	public BenchmarkRunner(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Reads the benchmark options from the sample arguments: -wi, -mi,
+	 * -sizes, -counts and -bench (the output file).
+	 *
+	 * @param argBag
+	 * @param defaultCount
+	 *            the message count used when -counts is absent
+	 */
+	public BenchmarkRunner configure(Map<String, String> argBag,
+			int defaultCount) {
+		counts = new int[] { defaultCount };
+		if (argBag.containsKey("-wi"))
+			warmupIterations = Integer.parseInt(argBag.get("-wi"));
+		if (argBag.containsKey("-mi"))
+			measuredIterations = Integer.parseInt(argBag.get("-mi"));
+		if (argBag.containsKey("-sizes"))
+			sizes = parseList(argBag.get("-sizes"));
+		if (argBag.containsKey("-counts"))
+			counts = parseList(argBag.get("-counts"));
+		String file = argBag.get("-bench");
+		if (file != null && file.length() > 0)
+			outputFile = file;
+		if (measuredIterations < 1)
+			throw new IllegalArgumentException(
+					"At least one measured iteration is needed");
+		return this;
+	}
+
+	public static String getUsage() {
+		return "\t -bench [file.csv|file.json] : run the benchmark sweep, optionally writing the results to a file\n"
+				+ "\t -wi n : warmup iterations per point [default: 2]\n"
+				+ "\t -mi n : measured iterations per point [default: 5]\n"
+				+ "\t -sizes s1,s2,... : message sizes to sweep [default: 0 to 1048576]\n"
+				+ "\t -counts c1,c2,... : message counts to sweep [default: -n]\n";
+	}
+
+	/**
+	 * Runs the whole sweep, then prints and writes the results.
+	 */
+	public List<Result> run(Workload workload) throws IOException {
+		results.clear();
+		for (int s = 0; s < sizes.length; s++) {
+			int msgSize = sizes[s];
+			workload.setUp(msgSize);
+			for (int c = 0; c < counts.length; c++) {
+				int numMessages = counts[c];
+
+				for (int w = 0; w < warmupIterations; w++) {
+					workload.run(msgSize, numMessages);
+				}
+
+				double[] rates = new double[measuredIterations];
+				for (int m = 0; m < measuredIterations; m++) {
+					long start = System.nanoTime();
+					long processed = workload.run(msgSize, numMessages);
+					long elapsed = System.nanoTime() - start;
+					rates[m] = processed / (elapsed / 1e9);
+				}
+
+				Result result = new Result(msgSize, numMessages, rates);
+				results.add(result);
+				System.out.println(result);
+			}
+		}
+
+		if (outputFile != null) {
+			write(outputFile);
+			System.out.println("Benchmark results written to " + outputFile);
+		}
+		return results;
+	}
+
+	private void write(String file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			if (file.toLowerCase().endsWith(".json"))
+				writeJson(out);
+			else
+				writeCsv(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * The reports are read by tools, so their numbers are written in
+	 * Locale.ROOT, with a '.' whatever the default locale.
+	 */
+	private void writeCsv(PrintWriter out) {
+		out.println("benchmark,msgSize,numMessages,iterations,meanMsgPerSec,stdDevMsgPerSec,ci95LowMsgPerSec,ci95HighMsgPerSec,meanMbitPerSec,javaVersion,solclientjVersion,jvmArgs");
+		String jvmArgs = ManagementFactory.getRuntimeMXBean()
+				.getInputArguments().toString().replace('"', '\'');
+		for (Result r : results) {
+			out.printf(Locale.ROOT,
+					"%s,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.3f,%s,%s,\"%s\"%n",
+					name, r.msgSize, r.numMessages, r.rates.length, r.mean,
+					r.stdDev, r.mean - r.ci95, r.mean + r.ci95,
+					r.mean * r.msgSize * 8 / 1e6,
+					System.getProperty("java.version"), getSolclientVersion(),
+					jvmArgs);
+		}
+	}
+
+	private void writeJson(PrintWriter out) {
+		out.println("{");
+		out.printf(Locale.ROOT, "  \"benchmark\": \"%s\",%n", escape(name));
+		out.printf(Locale.ROOT, "  \"javaVersion\": \"%s\",%n",
+				escape(System.getProperty("java.version")));
+		out.printf(Locale.ROOT, "  \"javaVm\": \"%s\",%n",
+				escape(System.getProperty("java.vm.name")));
+		out.printf(Locale.ROOT, "  \"solclientjVersion\": \"%s\",%n",
+				escape(getSolclientVersion()));
+		out.print("  \"jvmArgs\": [");
+		List<String> jvmArgs = ManagementFactory.getRuntimeMXBean()
+				.getInputArguments();
+		for (int i = 0; i < jvmArgs.size(); i++) {
+			out.printf(Locale.ROOT, "%s\"%s\"", i == 0 ? "" : ", ",
+					escape(jvmArgs.get(i)));
+		}
+		out.println("],");
+		out.printf(Locale.ROOT, "  \"warmupIterations\": %d,%n",
+				warmupIterations);
+		out.println("  \"results\": [");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			out.printf(Locale.ROOT,
+					"    { \"msgSize\": %d, \"numMessages\": %d, \"meanMsgPerSec\": %.1f, \"stdDevMsgPerSec\": %.1f, \"ci95LowMsgPerSec\": %.1f, \"ci95HighMsgPerSec\": %.1f, \"meanMbitPerSec\": %.3f, \"msgPerSec\": [",
+					r.msgSize, r.numMessages, r.mean, r.stdDev, r.mean
+							- r.ci95, r.mean + r.ci95, r.mean * r.msgSize * 8
+							/ 1e6);
+			for (int m = 0; m < r.rates.length; m++) {
+				out.printf(Locale.ROOT, "%s%.1f", m == 0 ? "" : ", ", r.rates[m]);
+			}
+			out.printf(Locale.ROOT, "] }%s%n",
+					i == results.size() - 1 ? "" : ",");
+		}
+		out.println("  ]");
+		out.println("}");
+	}
+
+	private static String getSolclientVersion() {
+		Package p = Solclient.class.getPackage();
+		String version = p == null ? null : p.getImplementationVersion();
+		return version == null ? "unknown" : version;
+	}
+
+	private static String escape(String value) {
+		if (value == null)
+			return "";
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static int[] parseList(String value) {
+		String[] parts = value.split(",");
+		int[] list = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			list[i] = Integer.parseInt(parts[i].trim());
+		}
+		return list;
+	}
+
+	/**
+	 * The measured rates of one point of the sweep.
+	 */
+	public static class Result {
+
+		public final int msgSize;
+		public final int numMessages;
+		public final double[] rates;
+		public final double mean;
+		public final double stdDev;
+		public final double ci95;
+
+		Result(int msgSize, int numMessages, double[] rates) {
+			this.msgSize = msgSize;
+			this.numMessages = numMessages;
+			this.rates = rates;
+
+			double sum = 0;
+			for (int i = 0; i < rates.length; i++)
+				sum += rates[i];
+			mean = sum / rates.length;
+
+			double squares = 0;
+			for (int i = 0; i < rates.length; i++)
+				squares += (rates[i] - mean) * (rates[i] - mean);
+			int df = rates.length - 1;
+			stdDev = df > 0 ? Math.sqrt(squares / df) : 0;
+			double t = df == 0 ? 0 : (df <= T_95.length ? T_95[df - 1]
+					: 1.96);
+			ci95 = t * stdDev / Math.sqrt(rates.length);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"size %8d count %9d: %12.1f msg/second +/- %.1f (95%% CI), %.3f Mbit/second",
+					msgSize, numMessages, mean, ci95, mean * msgSize * 8 / 1e6);
+		}
+	}
+
+}
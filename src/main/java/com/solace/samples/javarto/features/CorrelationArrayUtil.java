@@ -1,69 +1,265 @@
-/**
- * Copyright 2004-2021 Solace Corporation. All rights reserved.
- *
- */
-package com.solace.samples.javarto.features;
-
-import java.lang.reflect.Array;
-
-/**
- * An example of using a sparse array to bind and object and a long correlation
- * key
- * 
- * @param <T>
- */
-public class CorrelationArrayUtil<T> {
-
-	private static final int WINDOWSIZE = 255;
-
-	// Just make it big enough to feel safe and avoid any roll backs
-	private static final int ARRAYSIZE = (WINDOWSIZE * 2) + 2;
-
-	private T[] correlationArray;
-
-	// Using a start position of 1 to ensure Zero values are reserved for null
-	// representation.
-	private long correlationKey = 1;
-
-	@SuppressWarnings("unchecked")
-	public CorrelationArrayUtil(Class<T> clazz) {
-		this.correlationArray = (T[]) Array.newInstance(clazz, ARRAYSIZE);
-	}
-
-	/**
-	 * Given a correlationKey, remove the correlation and return whatever was
-	 * correlated with the correlationKey
-	 * 
-	 * @param key
-	 *            a correlationKey
-	 * @return What ever was correlated to the correlationKey (could be null)
-	 */
-	public T uncorrelate(long key) {
-		T t = correlationArray[(int) key];
-		correlationArray[(int) key] = null;
-		return t;
-	}
-
-	/**
-	 * Given an object of type t, it will be stored into a correlation array, and
-	 * a correlationKey is returned, access to the correlation array is
-	 * synchronized.
-	 * 
-	 * @param t
-	 * @return a correlationKey
-	 */
-	public long correlate(T t) {
-
-		synchronized (correlationArray) {
-			if (correlationKey == ARRAYSIZE-1) {
-				correlationKey = 1;
-			} else
-				correlationKey++;
-
-			correlationArray[(int) correlationKey] = t;
-		}
-
-		return correlationKey;
-	}
-
-}
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An example of using a sparse array to bind an object and a long correlation
+ * key, for tracking the guaranteed messages in flight until they are
+ * acknowledged.
+ * <p>
+ * The key is made of the slot of the object, in its low 32 bits, and of the
+ * generation of that slot, in its high bits, bumped every time the slot is
+ * freed. A key thus never names two objects, and an acknowledgement for a key
+ * which was already uncorrelated, a duplicate, or whose slot was reused since,
+ * a stale one, is recognized, counted and returns null. Zero is never a key.
+ * <p>
+ * Neither correlate nor uncorrelate take a lock: a slot is claimed and freed
+ * with a compare and swap of its state. The table is a power of two in size,
+ * made of segments so that it can grow without moving anything. Once it
+ * reaches its maximum capacity, correlate waits for a slot to be freed, up to
+ * the block timeout, and then fails rather than overwriting a slot in use.
+ *
+ * @param <T>
+ */
+public class CorrelationArrayUtil<T> {
+
+	public static final int DEFAULT_INITIAL_CAPACITY = 512;
+	public static final int DEFAULT_MAX_CAPACITY = 1 << 20;
+	public static final long DEFAULT_BLOCK_TIMEOUT_MS = 1000;
+
+	// The state of a slot is its generation, shifted, and one of these
+	private static final long FREE = 0;
+	private static final long IN_USE = 1;
+	private static final long RELEASING = 2;
+	private static final long PHASE_MASK = 3;
+	private static final int MAX_GENERATION = 0x7fffffff;
+
+	private final int segmentShift;
+	private final int segmentMask;
+	private final AtomicReferenceArray<Segment<T>> segments;
+	private final int maxCapacity;
+	private final long blockTimeoutNanos;
+	// Always a power of two, segments are installed before it grows
+	private volatile int capacity;
+	private final AtomicBoolean growing = new AtomicBoolean();
+	private final AtomicLong cursor = new AtomicLong();
+
+	private final AtomicLong inFlight = new AtomicLong();
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong staleCount = new AtomicLong();
+	private final AtomicLong growCount = new AtomicLong();
+	private final AtomicLong blockedCount = new AtomicLong();
+
+	public CorrelationArrayUtil(Class<T> clazz) {
+		this(clazz, DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_CAPACITY,
+				DEFAULT_BLOCK_TIMEOUT_MS);
+	}
+
+	/**
+	 * @param initialCapacity
+	 *            the slots to start with, rounded up to a power of two, also
+	 *            the size of the segments the table grows by
+	 * @param maxCapacity
+	 *            the most objects correlated at a time, rounded up to a power
+	 *            of two
+	 * @param blockTimeoutMs
+	 *            how long correlate waits for a free slot at maxCapacity
+	 */
+	public CorrelationArrayUtil(Class<T> clazz, int initialCapacity,
+			int maxCapacity, long blockTimeoutMs) {
+		if (initialCapacity < 1 || maxCapacity < initialCapacity
+				|| maxCapacity > 1 << 30)
+			throw new IllegalArgumentException("Capacities from "
+					+ initialCapacity + " to " + maxCapacity
+					+ " are not possible");
+		int segmentSize = powerOfTwo(initialCapacity);
+		this.segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+		this.segmentMask = segmentSize - 1;
+		this.maxCapacity = Math.max(segmentSize, powerOfTwo(maxCapacity));
+		this.segments = new AtomicReferenceArray<Segment<T>>(this.maxCapacity
+				/ segmentSize);
+		this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+		segments.set(0, new Segment<T>(segmentSize));
+		this.capacity = segmentSize;
+	}
+
+	private static int powerOfTwo(int value) {
+		int size = 1;
+		while (size < value)
+			size <<= 1;
+		return size;
+	}
+
+	/**
+	 * Given a correlationKey, remove the correlation and return whatever was
+	 * correlated with the correlationKey
+	 *
+	 * @param key
+	 *            a correlationKey
+	 * @return What ever was correlated to the correlationKey, null when the
+	 *         key was already uncorrelated or is stale
+	 */
+	public T uncorrelate(long key) {
+		if (key == 0)
+			return null;
+		long index = key & 0xffffffffL;
+		int generation = (int) (key >>> 32);
+		if (index >= capacity || generation <= 0) {
+			staleCount.incrementAndGet();
+			return null;
+		}
+		Segment<T> segment = segments.get((int) (index >>> segmentShift));
+		int offset = (int) index & segmentMask;
+		long inUse = state(generation, IN_USE);
+		if (!segment.states.compareAndSet(offset, inUse,
+				state(generation, RELEASING))) {
+			if (segment.states.get(offset) == state(nextGeneration(generation),
+					FREE))
+				duplicateCount.incrementAndGet();
+			else
+				staleCount.incrementAndGet();
+			return null;
+		}
+		T t = segment.values.get(offset);
+		segment.values.set(offset, null);
+		segment.states.set(offset, state(nextGeneration(generation), FREE));
+		inFlight.decrementAndGet();
+		return t;
+	}
+
+	/**
+	 * Given an object of type t, it will be stored into a correlation array, and
+	 * a correlationKey is returned. The array grows when full, up to its
+	 * maximum capacity, where this waits for a slot to be uncorrelated.
+	 *
+	 * @param t
+	 * @return a correlationKey
+	 * @throws IllegalStateException
+	 *             when no slot was freed within the block timeout
+	 */
+	public long correlate(T t) {
+		long deadline = 0;
+		for (;;) {
+			int size = capacity;
+			for (int probe = 0; probe < size; probe++) {
+				long index = cursor.getAndIncrement() & (size - 1);
+				Segment<T> segment = segments
+						.get((int) (index >>> segmentShift));
+				int offset = (int) index & segmentMask;
+				long state = segment.states.get(offset);
+				if ((state & PHASE_MASK) == FREE
+						&& segment.states.compareAndSet(offset, state, state
+								| IN_USE)) {
+					segment.values.set(offset, t);
+					inFlight.incrementAndGet();
+					return ((state >>> 2) << 32) | index;
+				}
+			}
+			if (grow(size))
+				continue;
+			// At the maximum capacity, wait for an acknowledgement
+			if (deadline == 0) {
+				blockedCount.incrementAndGet();
+				deadline = System.nanoTime() + blockTimeoutNanos;
+			} else if (System.nanoTime() - deadline > 0) {
+				throw new IllegalStateException("All " + size
+						+ " correlation slots are in use, none was freed within "
+						+ TimeUnit.NANOSECONDS.toMillis(blockTimeoutNanos)
+						+ " ms");
+			}
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+		}
+	}
+
+	/**
+	 * Doubles the capacity, unless at the maximum.
+	 *
+	 * @return false when the table is at its maximum capacity
+	 */
+	private boolean grow(int size) {
+		if (size >= maxCapacity)
+			return capacity != size;
+		if (!growing.compareAndSet(false, true)) {
+			// Another thread is growing it
+			Thread.yield();
+			return true;
+		}
+		try {
+			if (capacity == size) {
+				int segmentSize = segmentMask + 1;
+				for (int i = size / segmentSize; i < 2 * size / segmentSize; i++)
+					segments.set(i, new Segment<T>(segmentSize));
+				capacity = 2 * size;
+				growCount.incrementAndGet();
+			}
+		} finally {
+			growing.set(false);
+		}
+		return true;
+	}
+
+	private static long state(int generation, long phase) {
+		return ((long) generation << 2) | phase;
+	}
+
+	private static int nextGeneration(int generation) {
+		return generation == MAX_GENERATION ? 1 : generation + 1;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the objects correlated and not uncorrelated yet
+	 */
+	public long getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return the keys uncorrelated more than once
+	 */
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	/**
+	 * @return the keys unknown, or whose slot was reused since
+	 */
+	public long getStaleCount() {
+		return staleCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"CorrelationArrayUtil: %d in flight of %d slots, %d grows, %d blocked, %d duplicate and %d stale keys",
+				inFlight.get(), capacity, growCount.get(), blockedCount.get(),
+				duplicateCount.get(), staleCount.get());
+	}
+
+	private static final class Segment<T> {
+
+		final AtomicLongArray states;
+		final AtomicReferenceArray<T> values;
+
+		Segment(int size) {
+			this.states = new AtomicLongArray(size);
+			this.values = new AtomicReferenceArray<T>(size);
+			// Generations start at 1, so that no key is 0
+			for (int i = 0; i < size; i++)
+				states.set(i, state(1, FREE));
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
+
+/**
+ * A bounded cache from topic string to a pre-created
+ * {@link NativeDestinationHandle}, kept in least recently used order.
+ * <p>
+ * Each entry also holds the content published by
+ * AbstractSample.common_publishMessage() for its topic, encoded once in a
+ * direct buffer, so that publishing on a cached topic neither builds a Topic
+ * nor a String nor a byte array. When the cache is full, the least recently
+ * used entry is evicted and its native destination is destroyed.
+ * <p>
+ * An {@link Entry} may be kept by the application as the cached key of a
+ * topic, {@link #resolve(Entry)} gives back a live entry for it should it
+ * have been evicted in the meantime.
+ * <p>
+ * The cache is not thread safe, it is meant to be used by the publishing
+ * thread.
+ */
+public class DestinationCache {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private final int capacity;
+	private final LinkedHashMap<String, Entry> entries;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public DestinationCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException(
+					"Destination cache capacity must be at least 1, got "
+							+ capacity);
+		this.capacity = capacity;
+		// Access ordered, the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap<String, Entry>(
+				(int) (capacity / 0.75f) + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() <= DestinationCache.this.capacity)
+					return false;
+				evictions++;
+				eldest.getValue().destroy();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return the entry of the topic, created on a miss
+	 */
+	public Entry get(String topic) {
+		Entry entry = entries.get(topic);
+		if (entry != null) {
+			hits++;
+			return entry;
+		}
+		misses++;
+		entry = new Entry(topic);
+		entries.put(topic, entry);
+		return entry;
+	}
+
+	/**
+	 * @return the entry itself while it is cached, a new one for its topic
+	 *         once it was evicted
+	 */
+	public Entry resolve(Entry entry) {
+		if (entry.isValid()) {
+			// Keeps the access order right
+			entries.get(entry.topic);
+			hits++;
+			return entry;
+		}
+		return get(entry.topic);
+	}
+
+	/**
+	 * Destroys every native destination and empties the cache.
+	 */
+	public void clear() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			it.next().destroy();
+			it.remove();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"DestinationCache [size=%d, capacity=%d, hits=%d, misses=%d, evictions=%d]",
+				entries.size(), capacity, hits, misses, evictions);
+	}
+
+	/**
+	 * A cached topic: its native destination and its encoded content.
+	 */
+	public static class Entry {
+
+		private final String topic;
+		private final NativeDestinationHandle destination = Solclient.Allocator
+				.newNativeDestinationHandle();
+		private final ByteBuffer content;
+
+		Entry(String topic) {
+			this.topic = topic;
+			int rc = Solclient.createNativeDestinationForHandle(destination,
+					Solclient.Allocator.newTopic(topic));
+			if (rc != SolEnum.ReturnCode.OK)
+				throw new IllegalStateException(String.format(
+						"Solclient.createNativeDestinationForHandle() returned %d for topic [%s]",
+						rc, topic));
+			byte[] bytes = ("Some message about topic " + topic)
+					.getBytes(CHARSET);
+			content = ByteBuffer.allocateDirect(bytes.length);
+			content.put(bytes);
+			content.flip();
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		public NativeDestinationHandle getDestination() {
+			return destination;
+		}
+
+		/**
+		 * @return the content to publish, positioned from 0 to its length
+		 */
+		public ByteBuffer getContent() {
+			return content;
+		}
+
+		/**
+		 * @return false once the entry was evicted and its destination
+		 *         destroyed
+		 */
+		public boolean isValid() {
+			return destination.isBound();
+		}
+
+		void destroy() {
+			if (destination.isBound())
+				destination.destroy();
+		}
+	}
+
+}
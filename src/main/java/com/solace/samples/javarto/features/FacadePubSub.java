@@ -0,0 +1,232 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.solace.samples.javarto.features.facade.MessageListener;
+import com.solace.samples.javarto.features.facade.MessagingFacade;
+import com.solace.samples.javarto.features.facade.MessagingFacades;
+import com.solace.samples.javarto.features.facade.ReceivedMessage;
+import com.solacesystems.solclientj.core.SolclientException;
+
+/**
+ *
+ * FacadePubSub.java
+ *
+ * This sample goes through the {@link MessagingFacade} instead of calling
+ * solclientj directly, so it runs against a message router or, with a host
+ * of the form <code>-h mem://[?latency=micros&amp;loss=fraction]</code>,
+ * against the in-process broker of the facade, without any router. It
+ * demonstrates:
+ * <ul>
+ * <li>Subscribing with a wildcard and publishing Direct messages on several
+ * topics, reporting the throughput, the loss and the round trip latency.
+ * <li>Provisioning a queue, adding a topic subscription to it, publishing
+ * persistent messages on that topic and consuming them on a Flow with client
+ * acknowledgements.
+ * </ul>
+ *
+ * The payload header is the one of {@link PerfPubSub}: the sequence number
+ * followed by the send time.
+ *
+ */
+public class FacadePubSub extends AbstractSample {
+
+	private static final int TOPIC_COUNT = 8;
+
+	private MessagingFacade facade;
+	private int numOfMessages = 100000;
+	private int numOfPersistentMessages = 1000;
+	private int msgSize = 100;
+
+	@Override
+	protected void printUsage(boolean secureSession) {
+		String usage = ArgumentsParser.getCommonUsage(secureSession);
+		System.out.println(usage);
+		System.out
+				.println("\t -h mem://[name][?latency=micros&loss=fraction&window=size] : use the in-memory broker instead of a router\n");
+		System.out.println("\t -n messages: number of Direct messages to send [default "
+				+ numOfMessages + "] \n");
+		System.out
+				.println("\t -g messages: number of persistent messages to send [default "
+						+ numOfPersistentMessages + "] \n");
+		System.out
+				.println("\t -s messagesize: message size to publish [default "
+						+ msgSize + "] \n");
+	}
+
+	/**
+	 * This is the main method of the sample
+	 */
+	@Override
+	protected void run(String[] args, SessionConfiguration config,
+			Level logLevel) throws SolclientException {
+		Map<String, String> cmdLineArgs = config.getArgBag();
+		if (cmdLineArgs.containsKey("-n")) {
+			numOfMessages = Integer.parseInt(cmdLineArgs.get("-n"));
+		}
+		if (cmdLineArgs.containsKey("-g")) {
+			numOfPersistentMessages = Integer.parseInt(cmdLineArgs.get("-g"));
+		}
+		if (cmdLineArgs.containsKey("-s")) {
+			msgSize = Integer.parseInt(cmdLineArgs.get("-s"));
+		}
+		if (msgSize < PerfPubSub.LATENCY_HEADER_SIZE) {
+			throw new IllegalArgumentException(
+					"The message size must be at least "
+							+ PerfPubSub.LATENCY_HEADER_SIZE + " bytes");
+		}
+
+		print(" Connecting to " + config.getHost() + " ...");
+		facade = MessagingFacades.create(config.getHost(),
+				getSessionProps(config, 0));
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		SequenceTracker tracker = new SequenceTracker(0, 1 << 16);
+		CountingListener directListener = new CountingListener(histogram,
+				tracker, ByteBuffer.allocate(msgSize));
+		facade.connect(directListener);
+
+		/*************************************************************************
+		 * Direct messages on several topics, one wildcard subscription
+		 *************************************************************************/
+		String[] topics = new String[TOPIC_COUNT];
+		for (int i = 0; i < TOPIC_COUNT; i++) {
+			topics[i] = SampleUtils.SAMPLE_TOPIC + "/" + i;
+		}
+		print(" Adding subscription " + SampleUtils.SAMPLE_TOPIC + "/* ...");
+		facade.subscribe(SampleUtils.SAMPLE_TOPIC + "/*");
+
+		PayloadPool payloads = new PayloadPool(PayloadPool.Mode.POOL, 64,
+				msgSize, false);
+
+		long startTime = System.nanoTime();
+		for (int i = 0; i < numOfMessages; i++) {
+			ByteBuffer payload = payloads.next(i);
+			payload.putLong(PerfPubSub.TIMESTAMP_OFFSET, System.nanoTime());
+			facade.send(topics[i % TOPIC_COUNT], payload);
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		System.out.printf("%nSent %d messages in %f seconds = %f msg/second%n",
+				numOfMessages, seconds, numOfMessages / seconds);
+
+		directListener.awaitMessages(numOfMessages, 2000);
+		tracker.finish(numOfMessages - 1);
+		tracker.printReport(numOfMessages);
+		histogram.printPercentiles("Round trip latency");
+
+		/*************************************************************************
+		 * Persistent messages spooled to a queue through a topic subscription
+		 *************************************************************************/
+		String queueName = SampleUtils.SAMPLE_QUEUE;
+		String persistentTopic = SampleUtils.SAMPLE_TOPIC + "/persistent";
+		print(" Provisioning queue [" + queueName + "] ...");
+		facade.provisionQueue(queueName);
+		facade.subscribeQueue(queueName, persistentTopic);
+
+		CountingListener flowListener = new CountingListener(null, null, null);
+		MessagingFacade.Flow flow = facade.bindQueue(queueName, flowListener);
+
+		for (int i = 0; i < numOfPersistentMessages; i++) {
+			facade.sendPersistent(persistentTopic, payloads.next(i));
+		}
+
+		flowListener.awaitMessages(numOfPersistentMessages, 5000);
+		flow.close();
+		facade.deprovisionQueue(queueName);
+
+		if (flowListener.getMessageCount() != numOfPersistentMessages) {
+			throw new IllegalStateException(numOfPersistentMessages
+					+ " persistent messages were expected, got ["
+					+ flowListener.getMessageCount() + "] instead");
+		}
+		print("Received and acknowledged " + numOfPersistentMessages
+				+ " persistent messages");
+	}
+
+	/**
+	 * Invoked when the sample finishes
+	 */
+	@Override
+	protected void finish(int status) {
+		if (facade != null) {
+			try {
+				facade.close();
+			} catch (Throwable t) {
+				error("Unable to close the facade", t);
+			}
+		}
+		finish_Solclient();
+	}
+
+	/**
+	 * Counts the received messages, and acknowledges them. When given a
+	 * histogram and a tracker, it also accounts for the latency and the
+	 * sequence of every message.
+	 */
+	static class CountingListener implements MessageListener {
+
+		private final LatencyHistogram histogram;
+		private final SequenceTracker tracker;
+		private final ByteBuffer rxContent;
+		private volatile long messageCount;
+
+		CountingListener(LatencyHistogram histogram, SequenceTracker tracker,
+				ByteBuffer rxContent) {
+			this.histogram = histogram;
+			this.tracker = tracker;
+			this.rxContent = rxContent;
+		}
+
+		@Override
+		public void onMessage(ReceivedMessage message) {
+			if (rxContent != null) {
+				rxContent.clear();
+				message.getPayload(rxContent);
+				rxContent.flip();
+				int size = rxContent.remaining();
+				if (size >= PerfPubSub.LATENCY_HEADER_SIZE) {
+					histogram.record(System.nanoTime()
+							- rxContent.getLong(PerfPubSub.TIMESTAMP_OFFSET));
+					tracker.onReceive(
+							rxContent.getInt(PerfPubSub.SEQUENCE_OFFSET), size);
+				}
+			}
+			message.ack();
+			messageCount++;
+		}
+
+		public long getMessageCount() {
+			return messageCount;
+		}
+
+		/**
+		 * Waits until the expected number of messages came back, or until
+		 * nothing was received for idleTimeoutMs.
+		 */
+		public void awaitMessages(long expected, long idleTimeoutMs) {
+			ProgressWait.await(new ProgressWait.Progress() {
+				@Override
+				public long get() {
+					return messageCount;
+				}
+			}, expected, idleTimeoutMs, TimeUnit.MILLISECONDS.toNanos(10));
+		}
+	}
+
+	/**
+	 * Boilerplate, calls {@link #run(String[])
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		FacadePubSub sample = new FacadePubSub();
+		sample.run(args);
+	}
+
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A preallocated ring of slots handing work from one producer, usually the
+ * context thread, over to a pool of worker threads, in the manner of the
+ * Disruptor.
+ * <p>
+ * The producer claims the next sequence with {@link #next()}, fills the slot
+ * returned by {@link #get(long)} and makes it visible with
+ * {@link #publish(long)}, a single ordered write of the cursor. Slots are
+ * created once by a {@link SlotFactory} and reused, so handing off neither
+ * allocates nor locks. Each published slot is processed by exactly one
+ * worker, the workers claiming sequences with a CAS.
+ * <p>
+ * When the ring is full, the producer waits for the slowest worker. Idle
+ * workers wait for the next slot according to the {@link WaitStrategy}. A
+ * slot whose handler throws is counted as failed, the first failure of each
+ * worker is logged, and the worker moves on to the next slot.
+ * <p>
+ * The ring reports the depth seen at every publish, the number of times
+ * the producer found it full and, per worker, the handoff latency from
+ * publish to the start of processing.
+ *
+ * @param <T>
+ *            the type of the slots
+ */
+public class HandoffRingBuffer<T> {
+
+	public enum WaitStrategy {
+		/** Burns a core per worker, lowest handoff latency */
+		SPIN,
+		/** Spins with Thread.yield(), lets other threads run */
+		YIELD,
+		/** Sleeps on a condition signalled by the producer */
+		BLOCK;
+
+		public static WaitStrategy parse(String value) {
+			if (value == null || value.length() == 0)
+				return SPIN;
+			return WaitStrategy.valueOf(value.toUpperCase());
+		}
+	}
+
+	public interface SlotFactory<T> {
+		T newSlot();
+	}
+
+	public interface Handler<T> {
+		/**
+		 * Processes a slot on a worker thread, the slot is reused once this
+		 * returns.
+		 */
+		void onSlot(T slot, long sequence);
+	}
+
+	private static final Logger LOGGER = Logger
+			.getLogger(HandoffRingBuffer.class.getName());
+
+	// Bounds a wait on the condition, should a signal be missed
+	private static final long BLOCK_TIMEOUT_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+
+	private final Object[] slots;
+	private final long[] publishNanos;
+	private final int mask;
+	private final WaitStrategy waitStrategy;
+
+	// Last published sequence
+	private final Sequence cursor = new Sequence(-1);
+	// Last sequence claimed by a worker
+	private final Sequence workSequence = new Sequence(-1);
+	private Worker[] workers;
+	private Thread[] threads;
+	private volatile boolean running;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition published = lock.newCondition();
+	private volatile int blockedWorkers;
+
+	// Producer side, written by the producing thread only
+	private long nextSequence = -1;
+	private long cachedGatingSequence = -1;
+	private long fullCount;
+	private long depthSum;
+	private long maxDepth;
+
+	/**
+	 * @param capacity
+	 *            the number of slots, a power of two
+	 */
+	public HandoffRingBuffer(int capacity, SlotFactory<T> factory,
+			WaitStrategy waitStrategy) {
+		if (capacity < 1 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException(
+					"Ring capacity must be a power of two, got " + capacity);
+		this.slots = new Object[capacity];
+		for (int i = 0; i < capacity; i++)
+			slots[i] = factory.newSlot();
+		this.publishNanos = new long[capacity];
+		this.mask = capacity - 1;
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Starts one worker thread per handler, before anything is published.
+	 */
+	@SuppressWarnings("unchecked")
+	public void start(String name, Handler<T>[] handlers) {
+		if (workers != null)
+			throw new IllegalStateException("Already started");
+		running = true;
+		workers = (Worker[]) new HandoffRingBuffer<?>.Worker[handlers.length];
+		threads = new Thread[handlers.length];
+		for (int i = 0; i < handlers.length; i++) {
+			workers[i] = new Worker(handlers[i]);
+			threads[i] = new Thread(workers[i], name + "-" + i);
+			threads[i].setDaemon(true);
+		}
+		for (int i = 0; i < threads.length; i++)
+			threads[i].start();
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Claims the next slot, waiting for the workers while the ring is full.
+	 * To be called by the producing thread only.
+	 */
+	public long next() {
+		long sequence = nextSequence + 1;
+		long wrapPoint = sequence - slots.length;
+		if (wrapPoint > cachedGatingSequence) {
+			long gatingSequence = minimumWorkerSequence();
+			if (wrapPoint > gatingSequence) {
+				fullCount++;
+				do {
+					if (waitStrategy != WaitStrategy.SPIN)
+						Thread.yield();
+					gatingSequence = minimumWorkerSequence();
+				} while (wrapPoint > gatingSequence);
+			}
+			cachedGatingSequence = gatingSequence;
+		}
+		nextSequence = sequence;
+		return sequence;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(long sequence) {
+		return (T) slots[(int) (sequence & mask)];
+	}
+
+	/**
+	 * Hands a filled slot over to the workers.
+	 */
+	public void publish(long sequence) {
+		publishNanos[(int) (sequence & mask)] = System.nanoTime();
+		// Workers waiting for a slot have claimed ahead of the cursor
+		long depth = Math.max(0, sequence - workSequence.get());
+		depthSum += depth;
+		if (depth > maxDepth)
+			maxDepth = depth;
+		if (waitStrategy == WaitStrategy.BLOCK) {
+			cursor.set(sequence);
+			if (blockedWorkers > 0) {
+				lock.lock();
+				try {
+					published.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		} else {
+			cursor.lazySet(sequence);
+		}
+	}
+
+	public long getPublishedCount() {
+		return cursor.get() + 1;
+	}
+
+	public long getProcessedCount() {
+		long processed = 0;
+		for (int i = 0; i < workers.length; i++)
+			processed += workers[i].processedCount;
+		return processed;
+	}
+
+	/**
+	 * @return the slots whose handler threw
+	 */
+	public long getFailedCount() {
+		long failed = 0;
+		for (int i = 0; i < workers.length; i++)
+			failed += workers[i].failedCount;
+		return failed;
+	}
+
+	/**
+	 * Waits until the workers have processed every published slot, or for
+	 * timeoutMs, then stops them.
+	 *
+	 * @return true when every slot was processed
+	 */
+	public boolean drainAndStop(long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (getProcessedCount() < getPublishedCount()
+				&& System.currentTimeMillis() < deadline) {
+			LockSupport.parkNanos(100000);
+		}
+		boolean drained = getProcessedCount() >= getPublishedCount();
+		running = false;
+		lock.lock();
+		try {
+			published.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			try {
+				threads[i].join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return drained;
+	}
+
+	/**
+	 * @return the handoff latency of all the workers, once they are stopped
+	 */
+	public LatencyHistogram getHandoffLatency() {
+		LatencyHistogram all = new LatencyHistogram();
+		for (int i = 0; i < workers.length; i++)
+			all.add(workers[i].handoffLatency);
+		return all;
+	}
+
+	public void printReport() {
+		long published = getPublishedCount();
+		System.out.printf(
+				"%nHandoff ring of %d slots, %d workers (%s): %d published, %d processed%n",
+				slots.length, workers.length, waitStrategy, published,
+				getProcessedCount());
+		System.out.printf(
+				"Depth at publish: mean %.1f, max %d, ring full %d times%n",
+				published == 0 ? 0.0 : (double) depthSum / published,
+				maxDepth, fullCount);
+		for (int i = 0; i < workers.length; i++)
+			System.out.printf("Worker %d processed %d, %d failed%n", i,
+					workers[i].processedCount, workers[i].failedCount);
+		getHandoffLatency().printPercentiles("Handoff latency");
+	}
+
+	private long minimumWorkerSequence() {
+		long minimum = cursor.get();
+		for (int i = 0; i < workers.length; i++) {
+			long sequence = workers[i].sequence.get();
+			if (sequence < minimum)
+				minimum = sequence;
+		}
+		return minimum;
+	}
+
+	/**
+	 * Waits until the sequence is published.
+	 *
+	 * @return false when stopped first
+	 */
+	private boolean waitFor(long sequence) {
+		while (cursor.get() < sequence) {
+			if (!running)
+				return false;
+			switch (waitStrategy) {
+			case SPIN:
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			case BLOCK:
+				lock.lock();
+				try {
+					blockedWorkers++;
+					if (cursor.get() < sequence && running)
+						published.awaitNanos(BLOCK_TIMEOUT_NANOS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} finally {
+					blockedWorkers--;
+					lock.unlock();
+				}
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A sequence padded against false sharing with the fields that follow.
+	 */
+	static class Sequence extends AtomicLong {
+
+		private static final long serialVersionUID = 1L;
+
+		long p1, p2, p3, p4, p5, p6, p7;
+
+		Sequence(long initialValue) {
+			super(initialValue);
+		}
+	}
+
+	class Worker implements Runnable {
+
+		// Last sequence this worker is done with
+		final Sequence sequence = new Sequence(-1);
+		final Handler<T> handler;
+		final LatencyHistogram handoffLatency = new LatencyHistogram();
+		volatile long processedCount;
+		volatile long failedCount;
+
+		Worker(Handler<T> handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					// Everything before the claimed sequence may be reused
+					long next;
+					do {
+						next = workSequence.get() + 1;
+						sequence.set(next - 1);
+					} while (!workSequence.compareAndSet(next - 1, next));
+
+					if (!waitFor(next)) {
+						// Nothing published to claim
+						return;
+					}
+					int index = (int) (next & mask);
+					handoffLatency.record(System.nanoTime()
+							- publishNanos[index]);
+					try {
+						handler.onSlot(get(next), next);
+					} catch (RuntimeException e) {
+						if (failedCount++ == 0)
+							LOGGER.log(Level.SEVERE, Thread.currentThread()
+									.getName() + " failed on slot " + next, e);
+					} finally {
+						// The slot may be reused whatever the handler did
+						sequence.set(next);
+						processedCount++;
+					}
+				}
+			} finally {
+				// A worker gone for good must not hold the producer back
+				sequence.set(Long.MAX_VALUE);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timeouts for many outstanding operations, expired by a single thread
+ * ticking through a wheel of buckets, in the manner of the hashed timing
+ * wheels of Varghese and Lauck.
+ * <p>
+ * Scheduling and cancelling are O(1) and only touch a queue, the ticker
+ * thread moves the new timeouts into their bucket and expires the bucket of
+ * the current tick. A timeout fires up to one tick late, never early. Delays
+ * longer than a turn of the wheel wait for the extra rounds in their bucket.
+ */
+public class HashedTimingWheel {
+
+	public interface TimerTask {
+		/**
+		 * Runs on the ticker thread, should be short.
+		 */
+		void run(Timeout timeout);
+	}
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long tickNanos;
+	private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicLong pendingCount = new AtomicLong();
+
+	private final Thread ticker;
+	private volatile boolean running;
+	private volatile long startNanos;
+	private long tick;
+
+	private long expiredCount;
+
+	/**
+	 * @param tickDuration
+	 *            the resolution of the timeouts
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two
+	 */
+	public HashedTimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("The tick must be positive, got "
+					+ tickDuration);
+		int size = 1;
+		while (size < wheelSize)
+			size <<= 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+		this.mask = size - 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.ticker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				tickUntilStopped();
+			}
+		}, "HashedTimingWheel");
+		ticker.setDaemon(true);
+	}
+
+	public void start() {
+		if (running)
+			return;
+		startNanos = System.nanoTime();
+		running = true;
+		ticker.start();
+	}
+
+	/**
+	 * Stops the ticker thread, the pending timeouts never fire.
+	 */
+	public void stop() {
+		running = false;
+		ticker.interrupt();
+		try {
+			ticker.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs the task after the delay, from any thread.
+	 */
+	public Timeout schedule(TimerTask task, long delay, TimeUnit unit) {
+		if (!running)
+			throw new IllegalStateException("The timing wheel is not started");
+		long deadline = System.nanoTime() - startNanos + unit.toNanos(delay);
+		Timeout timeout = new Timeout(task, deadline);
+		pendingCount.incrementAndGet();
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	public long getPendingCount() {
+		return pendingCount.get();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount;
+	}
+
+	private void tickUntilStopped() {
+		while (running) {
+			long deadline = tickNanos * (tick + 1);
+			long sleepNanos = deadline - (System.nanoTime() - startNanos);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					if (!running)
+						return;
+				}
+				continue;
+			}
+			removeCancelled();
+			transferScheduled();
+			wheel[(int) (tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+		}
+	}
+
+	/**
+	 * Places the newly scheduled timeouts in their bucket, at most a bounded
+	 * number per tick so that a flood of them cannot stall expiry.
+	 */
+	private void transferScheduled() {
+		for (int i = 0; i < 100000; i++) {
+			Timeout timeout = scheduled.poll();
+			if (timeout == null)
+				return;
+			if (timeout.state.get() != PENDING)
+				continue;
+			long ticks = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (ticks - tick) / wheel.length;
+			// Already late ones go in the current bucket
+			long target = Math.max(ticks, tick);
+			wheel[(int) (target & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * A scheduled task, which can be cancelled until it runs.
+	 */
+	public final class Timeout {
+
+		private final TimerTask task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		long remainingRounds;
+
+		// The bucket list, owned by the ticker thread
+		Bucket bucket;
+		Timeout next;
+		Timeout prev;
+
+		Timeout(TimerTask task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return false when the task has already run or was cancelled
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+			pendingCount.decrementAndGet();
+			cancelled.add(this);
+			return true;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED))
+				return;
+			pendingCount.decrementAndGet();
+			expiredCount++;
+			try {
+				task.run(this);
+			} catch (RuntimeException e) {
+				System.out.println("A timer task failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts, touched by the ticker thread only.
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+					remove(timeout);
+					timeout.expire();
+				} else if (timeout.isCancelled()) {
+					remove(timeout);
+				} else if (timeout.remainingRounds > 0) {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.bucket != this)
+				return;
+			if (timeout.prev != null)
+				timeout.prev.next = timeout.next;
+			else
+				head = timeout.next;
+			if (timeout.next != null)
+				timeout.next.prev = timeout.prev;
+			else
+				tail = timeout.prev;
+			timeout.next = null;
+			timeout.prev = null;
+			timeout.bucket = null;
+		}
+	}
+
+}
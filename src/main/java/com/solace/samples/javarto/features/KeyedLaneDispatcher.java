@@ -0,0 +1,266 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.SolEnum.MessageOutcome;
+import com.solacesystems.solclientj.core.SolclientException;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.handle.FlowHandle;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.resource.Destination;
+
+/**
+ * A MessageCallback spreading the received messages over N lanes by key,
+ * each lane being processed by a single worker thread. Messages with the same
+ * key always land on the same lane, so they are processed in the order they
+ * were received, while different keys are processed in parallel.
+ * <p>
+ * The key is taken from the destination topic, the queue partition key or an
+ * int of the payload, see {@link KeySource}. Each lane is a
+ * {@link HandoffRingBuffer} with one worker, the context thread copies the
+ * message into a {@link MessageSlot} of the lane and returns.
+ * <p>
+ * With an ack Flow, a message is acknowledged on the lane once its handler
+ * is done with it, never on the context thread, so a message still waiting in
+ * a lane is redelivered should the application stop. The Flow must be in
+ * client acknowledgement mode.
+ */
+public class KeyedLaneDispatcher implements MessageCallback {
+
+	public enum KeySource {
+		/**
+		 * The UTF-8 bytes of the destination name, solclientj allocates the
+		 * destination and its name
+		 */
+		TOPIC,
+		/** The queue partition key, messages without one go to lane 0 */
+		PARTITION_KEY,
+		/** An int at a fixed offset of the payload */
+		PAYLOAD;
+
+		public static KeySource parse(String value) {
+			if (value == null || value.length() == 0)
+				return PAYLOAD;
+			if ("topic".equalsIgnoreCase(value))
+				return TOPIC;
+			if ("pkey".equalsIgnoreCase(value)
+					|| "partition_key".equalsIgnoreCase(value))
+				return PARTITION_KEY;
+			if ("payload".equalsIgnoreCase(value))
+				return PAYLOAD;
+			throw new IllegalArgumentException("Unknown key source [" + value
+					+ "], expected topic, pkey or payload");
+		}
+	}
+
+	private final HandoffRingBuffer<MessageSlot>[] lanes;
+	private final KeySource keySource;
+	private final int keyOffset;
+	// Holds the payload while its key is read, PAYLOAD only
+	private final ByteBuffer keyContent;
+	// Holds the encoded destination name while it is hashed, TOPIC only
+	private final ByteBuffer topicBuffer;
+
+	private FlowHandle ackFlow;
+	private final AtomicLong ackCount = new AtomicLong();
+	private final AtomicLong ackFailures = new AtomicLong();
+	private volatile long messageCount;
+
+	/**
+	 * @param laneCount
+	 *            the number of lanes, and of worker threads
+	 * @param ringSize
+	 *            the number of slots of each lane, a power of two
+	 * @param slotCapacity
+	 *            the largest payload a lane can hold
+	 * @param keyOffset
+	 *            the offset of the int key in the payload, for
+	 *            {@link KeySource#PAYLOAD}
+	 */
+	@SuppressWarnings("unchecked")
+	public KeyedLaneDispatcher(int laneCount, int ringSize, int slotCapacity,
+			HandoffRingBuffer.WaitStrategy waitStrategy, KeySource keySource,
+			int keyOffset) {
+		if (laneCount < 1)
+			throw new IllegalArgumentException(
+					"At least one lane is needed, got " + laneCount);
+		this.lanes = new HandoffRingBuffer[laneCount];
+		for (int i = 0; i < laneCount; i++)
+			lanes[i] = new HandoffRingBuffer<MessageSlot>(ringSize,
+					MessageSlot.factory(slotCapacity), waitStrategy);
+		this.keySource = keySource;
+		this.keyOffset = keyOffset;
+		this.keyContent = keySource == KeySource.PAYLOAD ? ByteBuffer
+				.allocateDirect(slotCapacity) : null;
+		this.topicBuffer = keySource == KeySource.TOPIC ? ByteBuffer
+				.allocateDirect(SolEnum.SolConstants.MAX_TOPIC_SIZE) : null;
+	}
+
+	/**
+	 * Acknowledges every message on the Flow once its lane has processed it.
+	 * Must be called before {@link #start(String, HandoffRingBuffer.Handler[])}.
+	 */
+	public void setAckFlow(FlowHandle flow) {
+		this.ackFlow = flow;
+	}
+
+	/**
+	 * Starts one worker per lane, handlers[i] processing the messages of lane
+	 * i, one at a time.
+	 */
+	@SuppressWarnings("unchecked")
+	public void start(String name, HandoffRingBuffer.Handler<MessageSlot>[] handlers) {
+		if (handlers.length != lanes.length)
+			throw new IllegalArgumentException(lanes.length
+					+ " handlers are needed, got " + handlers.length);
+		for (int i = 0; i < lanes.length; i++)
+			lanes[i].start(name + "-" + i,
+					new HandoffRingBuffer.Handler[] { new Lane(handlers[i]) });
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	@Override
+	public void onMessage(Handle handle) {
+		MessageHandle rxMessage = ((MessageSupport) handle).getRxMessage();
+
+		HandoffRingBuffer<MessageSlot> lane;
+		long sequence;
+		if (keySource == KeySource.PAYLOAD) {
+			keyContent.clear();
+			rxMessage.getBinaryAttachment(keyContent);
+			keyContent.flip();
+			int key = keyContent.remaining() >= keyOffset + 4 ? keyContent
+					.getInt(keyOffset) : 0;
+			lane = lanes[laneOf(key)];
+			sequence = lane.next();
+			lane.get(sequence).copyFrom(keyContent);
+		} else {
+			lane = lanes[laneOf(keyHash(rxMessage))];
+			sequence = lane.next();
+			lane.get(sequence).copyFrom(rxMessage);
+		}
+		if (ackFlow != null)
+			lane.get(sequence).setMessageId(rxMessage.getGuaranteedMessageId());
+		lane.publish(sequence);
+		messageCount++;
+	}
+
+	private int keyHash(MessageHandle rxMessage) {
+		if (keySource == KeySource.TOPIC) {
+			Destination destination = rxMessage.getDestination();
+			if (destination == null
+					|| !TopicTrieDispatcher.copyName(destination.getName(),
+							topicBuffer))
+				return 0;
+			// FNV-1a over the bytes, laneOf() mixes it further
+			int h = 0x811c9dc5;
+			for (int i = 0; i < topicBuffer.limit(); i++) {
+				h ^= topicBuffer.get(i) & 0xff;
+				h *= 0x01000193;
+			}
+			return h;
+		}
+		String partitionKey = rxMessage.getQueuePartitionKey();
+		return partitionKey == null ? 0 : partitionKey.hashCode();
+	}
+
+	/**
+	 * Mixes the key before taking it modulo the lane count, so that keys
+	 * sharing low bits, as sequential ones do, are spread evenly.
+	 */
+	int laneOf(int key) {
+		int h = key;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % lanes.length;
+	}
+
+	/**
+	 * @return the messages handed to the lanes so far
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	public long getProcessedCount() {
+		long processed = 0;
+		for (int i = 0; i < lanes.length; i++)
+			processed += lanes[i].getProcessedCount();
+		return processed;
+	}
+
+	public long getAckCount() {
+		return ackCount.get();
+	}
+
+	/**
+	 * Waits for the lanes to process what they hold, or for timeoutMs, then
+	 * stops their workers.
+	 *
+	 * @return true when every message was processed
+	 */
+	public boolean drainAndStop(long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		boolean drained = true;
+		for (int i = 0; i < lanes.length; i++) {
+			long left = Math.max(0, deadline - System.currentTimeMillis());
+			drained &= lanes[i].drainAndStop(left);
+		}
+		return drained;
+	}
+
+	public void printReport() {
+		System.out.printf("%n%d keyed lanes (%s): %d messages, %d processed%n",
+				lanes.length, keySource, messageCount, getProcessedCount());
+		LatencyHistogram handoff = new LatencyHistogram();
+		for (int i = 0; i < lanes.length; i++) {
+			System.out.printf("Lane %d processed %d%n", i,
+					lanes[i].getProcessedCount());
+			handoff.add(lanes[i].getHandoffLatency());
+		}
+		if (ackFlow != null)
+			System.out.printf("Acknowledged %d after processing, %d failed%n",
+					ackCount.get(), ackFailures.get());
+		handoff.printPercentiles("Handoff latency");
+	}
+
+	/**
+	 * Runs the handler of a lane, then acknowledges the message.
+	 */
+	private class Lane implements HandoffRingBuffer.Handler<MessageSlot> {
+
+		private final HandoffRingBuffer.Handler<MessageSlot> handler;
+
+		Lane(HandoffRingBuffer.Handler<MessageSlot> handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void onSlot(MessageSlot slot, long sequence) {
+			handler.onSlot(slot, sequence);
+			if (ackFlow == null)
+				return;
+			try {
+				ackFlow.settle(slot.getMessageId(), MessageOutcome.ACCEPTED);
+				ackCount.incrementAndGet();
+			} catch (SolclientException e) {
+				ackFailures.incrementAndGet();
+			}
+		}
+	}
+
+}
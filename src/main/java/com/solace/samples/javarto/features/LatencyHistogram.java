@@ -0,0 +1,166 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+/**
+ * A fixed-size, log-linear histogram of latency values in nanoseconds.
+ * <p>
+ * All storage is allocated in the constructor, so recording a value never
+ * allocates and the histogram can be used from a GC-free message callback.
+ * Values are grouped into buckets of 64 linear sub-buckets per power of two,
+ * which keeps the reported percentiles within ~1.6% of the recorded value.
+ * <p>
+ * Recording is not synchronized, a histogram is expected to be written by a
+ * single thread (usually the context thread) and read once the run is over.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+
+	// Values above 2^40 ns (~18 minutes) are clamped into the last bucket
+	private static final int MAX_VALUE_BITS = 40;
+	private static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+	private static final double[] DEFAULT_PERCENTILES = { 50.0, 90.0, 99.0,
+			99.9, 99.99 };
+
+	private final long[] counts;
+
+	private long totalCount;
+	private long minValue = Long.MAX_VALUE;
+	private long maxValue;
+	private double sum;
+
+	public LatencyHistogram() {
+		this.counts = new long[indexOf(MAX_TRACKABLE_VALUE) + 1];
+	}
+
+	/**
+	 * Records one latency value, negative values are recorded as zero.
+	 *
+	 * @param valueNanos
+	 */
+	public void record(long valueNanos) {
+		long value = valueNanos < 0 ? 0 : valueNanos;
+		if (value > MAX_TRACKABLE_VALUE) {
+			counts[counts.length - 1]++;
+		} else {
+			counts[indexOf(value)]++;
+		}
+		totalCount++;
+		sum += value;
+		if (value < minValue)
+			minValue = value;
+		if (value > maxValue)
+			maxValue = value;
+	}
+
+	/**
+	 * Adds all the values recorded by another histogram into this one.
+	 *
+	 * @param other
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		totalCount += other.totalCount;
+		sum += other.sum;
+		if (other.minValue < minValue)
+			minValue = other.minValue;
+		if (other.maxValue > maxValue)
+			maxValue = other.maxValue;
+	}
+
+	public void reset() {
+		java.util.Arrays.fill(counts, 0);
+		totalCount = 0;
+		sum = 0;
+		minValue = Long.MAX_VALUE;
+		maxValue = 0;
+	}
+
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	public long getMinValue() {
+		return totalCount == 0 ? 0 : minValue;
+	}
+
+	public long getMaxValue() {
+		return maxValue;
+	}
+
+	public double getMean() {
+		return totalCount == 0 ? 0 : sum / totalCount;
+	}
+
+	/**
+	 * @param percentile
+	 *            in the range [0, 100]
+	 * @return the highest value equivalent to the bucket holding the given
+	 *         percentile, never greater than the recorded maximum
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (totalCount == 0)
+			return 0;
+
+		long target = (long) Math.ceil((percentile / 100.0) * totalCount);
+		if (target < 1)
+			target = 1;
+
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			if (cumulative >= target) {
+				return Math.min(highestEquivalentValue(i), maxValue);
+			}
+		}
+		return maxValue;
+	}
+
+	/**
+	 * Prints the usual p50/p90/p99/p99.9/p99.99/max summary in microseconds.
+	 *
+	 * @param title
+	 */
+	public void printPercentiles(String title) {
+		System.out.printf("%n%s: %d samples, min %.2f us, mean %.2f us%n",
+				title, totalCount, getMinValue() / 1000.0, getMean() / 1000.0);
+		for (int i = 0; i < DEFAULT_PERCENTILES.length; i++) {
+			System.out.printf("\t p%-6s %12.2f us%n",
+					formatPercentile(DEFAULT_PERCENTILES[i]),
+					getValueAtPercentile(DEFAULT_PERCENTILES[i]) / 1000.0);
+		}
+		System.out.printf("\t %-7s %12.2f us%n", "max", maxValue / 1000.0);
+	}
+
+	private static String formatPercentile(double percentile) {
+		if (percentile == Math.floor(percentile))
+			return Integer.toString((int) percentile);
+		return Double.toString(percentile);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value)
+				- (SUB_BUCKET_BITS - 1);
+		int subBucket = (int) (value >>> shift);
+		return (shift * SUB_BUCKET_HALF_COUNT) + subBucket;
+	}
+
+	private static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+		int shift = (index / SUB_BUCKET_HALF_COUNT) - 1;
+		long subBucket = index - (shift * SUB_BUCKET_HALF_COUNT);
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+}
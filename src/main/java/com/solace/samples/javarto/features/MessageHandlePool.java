@@ -0,0 +1,182 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.handle.FlowHandle;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+
+/**
+ * A fixed number of MessageHandles to take received messages into, so that
+ * the messages an application keeps past the callback are bounded.
+ * <p>
+ * {@link #take(Handle)} takes the received message into a free handle, on the
+ * context thread. {@link #release(MessageHandle)} destroys the native message
+ * and puts the handle back on the free list, from any thread. The handles
+ * themselves are allocated once and reused.
+ * <p>
+ * When no handle is free, the {@link OverflowPolicy} decides what happens to
+ * the received message.
+ */
+public class MessageHandlePool {
+
+	public enum OverflowPolicy {
+		/** The message is not kept, it is freed after the callback */
+		DROP,
+		/**
+		 * The context thread waits for a release, up to the block timeout,
+		 * then drops. Nothing else is received meanwhile, and another thread
+		 * must release
+		 */
+		BLOCK,
+		/**
+		 * The Flow of the message is stopped when the last handle is taken
+		 * and started again once half the pool is free. Messages already on
+		 * their way are dropped. Direct messages are dropped
+		 */
+		STOP_FLOW;
+
+		public static OverflowPolicy parse(String value) {
+			if (value == null || value.length() == 0)
+				return DROP;
+			if ("stop".equalsIgnoreCase(value))
+				return STOP_FLOW;
+			return OverflowPolicy.valueOf(value.toUpperCase());
+		}
+	}
+
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final long DEFAULT_BLOCK_TIMEOUT_MS = 1000;
+
+	private final MessageHandle[] free;
+	private int freeCount;
+	private final OverflowPolicy policy;
+	private final long blockTimeoutMs;
+
+	// The Flow stopped by STOP_FLOW, until enough handles are released
+	private FlowHandle stoppedFlow;
+
+	private long takenCount;
+	private long droppedCount;
+	private long blockedCount;
+	private long flowStopCount;
+	private int maxInUse;
+
+	public MessageHandlePool(int capacity, OverflowPolicy policy) {
+		this(capacity, policy, DEFAULT_BLOCK_TIMEOUT_MS);
+	}
+
+	public MessageHandlePool(int capacity, OverflowPolicy policy,
+			long blockTimeoutMs) {
+		if (capacity < 1)
+			throw new IllegalArgumentException(
+					"The pool needs at least one handle, got " + capacity);
+		this.free = new MessageHandle[capacity];
+		for (int i = 0; i < capacity; i++)
+			free[i] = Solclient.Allocator.newMessageHandle();
+		this.freeCount = capacity;
+		this.policy = policy;
+		this.blockTimeoutMs = blockTimeoutMs;
+	}
+
+	/**
+	 * Takes the message received on handle, a session or a Flow, into a free
+	 * MessageHandle. To be called from the message callback.
+	 *
+	 * @return the handle now owning the message, or null when the message was
+	 *         not kept
+	 */
+	public synchronized MessageHandle take(Handle handle) {
+		if (freeCount == 0 && !awaitFree()) {
+			droppedCount++;
+			return null;
+		}
+		MessageHandle messageHandle = free[--freeCount];
+		free[freeCount] = null;
+		((MessageSupport) handle).takeRxMessage(messageHandle);
+		takenCount++;
+		int inUse = free.length - freeCount;
+		if (inUse > maxInUse)
+			maxInUse = inUse;
+
+		if (freeCount == 0 && policy == OverflowPolicy.STOP_FLOW
+				&& handle instanceof FlowHandle && stoppedFlow == null) {
+			FlowHandle flow = (FlowHandle) handle;
+			if (flow.stop() == SolEnum.ReturnCode.OK) {
+				stoppedFlow = flow;
+				flowStopCount++;
+			}
+		}
+		return messageHandle;
+	}
+
+	/**
+	 * Destroys the message held by the handle and makes the handle available
+	 * again, from any thread.
+	 */
+	public synchronized void release(MessageHandle messageHandle) {
+		if (freeCount == free.length)
+			throw new IllegalStateException(
+					"More handles released than were taken");
+		if (messageHandle.isBound())
+			messageHandle.destroy();
+		free[freeCount++] = messageHandle;
+		if (policy == OverflowPolicy.BLOCK) {
+			notifyAll();
+		} else if (stoppedFlow != null && freeCount >= free.length / 2) {
+			FlowHandle flow = stoppedFlow;
+			stoppedFlow = null;
+			flow.start();
+		}
+	}
+
+	/**
+	 * Waits for a release under the BLOCK policy.
+	 *
+	 * @return true when a handle is free
+	 */
+	private boolean awaitFree() {
+		if (policy != OverflowPolicy.BLOCK)
+			return false;
+		blockedCount++;
+		long deadline = System.currentTimeMillis() + blockTimeoutMs;
+		while (freeCount == 0) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0)
+				return false;
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getCapacity() {
+		return free.length;
+	}
+
+	public synchronized int getInUse() {
+		return free.length - freeCount;
+	}
+
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"MessageHandlePool %s: %d taken, %d in use (max %d of %d), %d dropped, %d blocked, %d flow stops",
+				policy, takenCount, free.length - freeCount, maxInUse,
+				free.length, droppedCount, blockedCount, flowStopCount);
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+
+/**
+ * A slot of a {@link HandoffRingBuffer} carrying a received message from the
+ * context thread to a worker: a copy of the binary attachment and the
+ * message id to acknowledge, as the received MessageHandle is only valid
+ * during the callback. The handoff latency is measured by the ring itself,
+ * from publish to the start of processing.
+ */
+public class MessageSlot {
+
+	private final ByteBuffer payload;
+	private long messageId;
+
+	/**
+	 * @param capacity
+	 *            the largest binary attachment the slot can hold
+	 */
+	public MessageSlot(int capacity) {
+		this.payload = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Copies the attachment of the received message, to be called on the
+	 * context thread.
+	 */
+	public void copyFrom(MessageHandle rxMessage) {
+		payload.clear();
+		rxMessage.getBinaryAttachment(payload);
+		payload.flip();
+	}
+
+	/**
+	 * Same as {@link #copyFrom(MessageHandle)}, for an attachment the caller
+	 * has already read from the received message, so that it is not read
+	 * twice. The position of the attachment is left unchanged.
+	 */
+	public void copyFrom(ByteBuffer attachment) {
+		payload.clear();
+		int position = attachment.position();
+		payload.put(attachment);
+		attachment.position(position);
+		payload.flip();
+	}
+
+	/**
+	 * @return the copied attachment, positioned from 0 to its size
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return the Guaranteed message id to acknowledge once processed, when
+	 *         received on a Flow
+	 */
+	public long getMessageId() {
+		return messageId;
+	}
+
+	public void setMessageId(long messageId) {
+		this.messageId = messageId;
+	}
+
+	/**
+	 * @return a factory of slots holding attachments up to capacity bytes
+	 */
+	public static HandoffRingBuffer.SlotFactory<MessageSlot> factory(
+			final int capacity) {
+		return new HandoffRingBuffer.SlotFactory<MessageSlot>() {
+			@Override
+			public MessageSlot newSlot() {
+				return new MessageSlot(capacity);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Supplies the payload of each message sent by the Perf samples.
+ * <p>
+ * Three modes are available:
+ * <dl>
+ * <dt>FILL
+ * <dd>The historical behaviour: one buffer is refilled with ints for every
+ * message, so the fill loop is part of the measured send path.
+ * <dt>POOL
+ * <dd>A pool of buffers is filled once up front and handed out in turn. Only
+ * the sequence number at the start of the payload is patched per message
+ * (callers may patch more of the header, e.g. a timestamp).
+ * <dt>SAME
+ * <dd>The exact same, pre-filled buffer is sent every time, nothing is
+ * patched.
+ * </dl>
+ * All buffers are allocated in the constructor, none of the modes allocates
+ * per message.
+ */
+public class PayloadPool {
+
+	public enum Mode {
+		FILL, POOL, SAME;
+
+		public static Mode parse(String value) {
+			if (value == null || value.length() == 0)
+				return FILL;
+			return Mode.valueOf(value.toUpperCase());
+		}
+	}
+
+	private final Mode mode;
+	private final int msgSize;
+	private final ByteBuffer[] buffers;
+	private final int mask;
+
+	/**
+	 * @param mode
+	 * @param poolSize
+	 *            number of buffers in POOL mode, rounded up to a power of two
+	 * @param msgSize
+	 *            size of every payload
+	 * @param direct
+	 *            whether to use direct or heap ByteBuffers
+	 */
+	public PayloadPool(Mode mode, int poolSize, int msgSize, boolean direct) {
+		this.mode = mode;
+		this.msgSize = msgSize;
+
+		int count = 1;
+		if (mode == Mode.POOL) {
+			while (count < poolSize)
+				count <<= 1;
+		}
+		this.mask = count - 1;
+		this.buffers = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			buffers[i] = direct ? ByteBuffer.allocateDirect(msgSize)
+					: ByteBuffer.allocate(msgSize);
+			if (mode != Mode.FILL)
+				fill(buffers[i], i, msgSize);
+		}
+	}
+
+	/**
+	 * @param sequence
+	 *            the sequence number of the message about to be sent
+	 * @return the payload for the message, positioned from 0 to the message
+	 *         size
+	 */
+	public ByteBuffer next(int sequence) {
+		switch (mode) {
+		case POOL:
+			ByteBuffer buffer = buffers[sequence & mask];
+			buffer.clear();
+			buffer.limit(msgSize);
+			if (msgSize >= 4)
+				buffer.putInt(PerfPubSub.SEQUENCE_OFFSET, sequence);
+			return buffer;
+		case SAME:
+			buffers[0].clear();
+			buffers[0].limit(msgSize);
+			return buffers[0];
+		default:
+			fill(buffers[0], sequence, msgSize);
+			return buffers[0];
+		}
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return whether the payloads carry the sequence number of each message
+	 */
+	public boolean isSequenced() {
+		return mode != Mode.SAME;
+	}
+
+	/**
+	 * Fills the payload with ints starting at the sequence number, topped up
+	 * with bytes, and flips the buffer.
+	 */
+	public static void fill(ByteBuffer buffer, int sequence, int size) {
+		buffer.clear();
+
+		// Fill the byte buffer, using int ( 4 bytes )
+		for (int x = 0; x < size / 4; x++) {
+			buffer.putInt(sequence + x);
+		}
+
+		// Top up with bytes
+		int remainder = size % 4;
+		for (byte b = 0; b < remainder; b++) {
+			buffer.put(b);
+		}
+
+		buffer.flip();
+	}
+
+}
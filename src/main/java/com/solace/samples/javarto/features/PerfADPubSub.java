@@ -5,6 +5,7 @@
 package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.logging.Level;
 
@@ -38,6 +39,37 @@ import com.solacesystems.solclientj.core.resource.Queue;
  * called 'my_sample_queue' be provisioned on the Appliance with at least
  * 'Consume' permissions.
  * 
+ * With a target rate (-r), messages are paced by a {@link RatePacer}. In
+ * latency mode (-lat) the payload header (see {@link PerfPubSub}) carries the
+ * intended send time, and the delay until each message is received on the
+ * Flow is reported as percentiles.
+ * 
+ * The payload mode (-pm) and the cost split report (-split) work as in
+ * {@link PerfPubSub}.
+ * 
+ * With -bench, a {@link BenchmarkRunner} sweep over message sizes and counts
+ * replaces the single run, every iteration lasts until all its messages were
+ * received on the Flow.
+ * 
+ * With -b, the messages are published in batches of preallocated messages
+ * (see {@link BatchPublisher}), once per batch size of the sweep, and the
+ * send and receive rates of each batch size are reported. solclientj has no
+ * multi-message send, so a batch still makes one send call per message.
+ * 
+ * With -alloc, an {@link AllocationMeter} reports the heap bytes allocated
+ * per message by the publishing thread and by the context thread receiving on
+ * the Flow, and fails the run when either exceeds the budget.
+ * 
+ * As in {@link PerfPubSub}, with -mm and -lat the latency outliers (-outlier)
+ * are reported along with the GC pauses they overlap.
+ * 
+ * With -klanes, a {@link KeyedLaneDispatcher} hands the received messages to
+ * that many lanes, each processed by its own thread, by key: an int written
+ * after the latency header (one of -keys values), the queue partition key
+ * set from it (-key). Every lane checks that the messages of
+ * each key arrive in sequence and acknowledges them once processed, rather
+ * than on the context thread. -work keeps a lane busy for that long per
+ * message.
  * 
  */
 public class PerfADPubSub extends AbstractSample {
@@ -52,7 +84,30 @@ public class PerfADPubSub extends AbstractSample {
 
 	private int numOfMessages = 1000000;
 	private int msgSize = 100;
-	private ByteBuffer content;
+	private PayloadPool payloadPool;
+	private PayloadPool.Mode payloadMode = PayloadPool.Mode.FILL;
+	private int payloadPoolSize = 64;
+	private boolean measureCostSplit = false;
+	private boolean measureLatency = false;
+	private double targetRate = 0;
+	private RatePacer.WaitStrategy waitStrategy = RatePacer.WaitStrategy.SPIN;
+	private BenchmarkRunner benchmark;
+	private AllocationMeter allocationMeter;
+	private double allocationBudget = 1.0;
+	private long outlierThresholdMicros = 1000;
+	private int[] batchSizeSweep;
+	private int numOfKeyedLanes = 0;
+	private KeyedLaneDispatcher.KeySource keySource = KeyedLaneDispatcher.KeySource.PAYLOAD;
+	private int keyCount = 64;
+	private HandoffRingBuffer.WaitStrategy laneWaitStrategy = HandoffRingBuffer.WaitStrategy.YIELD;
+	private int ringSize = 4096;
+	private long workNanos = 0;
+	private KeyedLaneDispatcher laneDispatcher;
+	private KeyOrderChecker[] laneCheckers;
+	private String[] partitionKeys;
+
+	// The key of a message in keyed lane mode, after the latency header
+	static final int KEY_OFFSET = PerfPubSub.LATENCY_HEADER_SIZE;
 
 	private static boolean quit = false;
 
@@ -67,12 +122,59 @@ public class PerfADPubSub extends AbstractSample {
 		System.out
 				.println("\t -s messagesize: message size to publish [default "
 						+ msgSize + "] \n");
+		System.out
+				.println("\t -pm [fill|pool|same] : refill the payload for every message, patch the header of pre-built buffers, or send the same buffer [default: "
+						+ payloadMode + "]\n");
+		System.out
+				.println("\t -pp size : number of pre-built buffers in pool mode [default: "
+						+ payloadPoolSize + "]\n");
+		System.out
+				.println("\t -split : report the time spent preparing the payload, in setBinaryAttachment and in send [default:"
+						+ measureCostSplit + "]\n");
+		System.out
+				.println("\t -lat : measure the latency from send to Flow receipt [default:"
+						+ measureLatency + "]\n");
+		System.out
+				.println("\t -r rate : publish at a fixed rate in msg/second, 0 for as fast as possible [default: "
+						+ targetRate + "]\n");
+		System.out
+				.println("\t -ws [spin|yield|park] : wait strategy used to pace a fixed rate [default: "
+						+ waitStrategy + "]\n");
+		System.out
+				.println("\t -alloc [bytes] : fail when the publishing or context thread allocates more than this per message [default budget: "
+						+ allocationBudget + "]\n");
+		System.out
+				.println("\t -b b1,b2,... : publish once per batch size, filling that many preallocated messages then sending them in a tight loop, and report the throughput of each (solclientj has no multi-message send, each message is still one send call)\n");
+		System.out
+				.println("\t -outlier micros : with -lat and -mm, latency above which a message is reported with the GC pauses it overlaps [default: "
+						+ outlierThresholdMicros + "]\n");
+		System.out
+				.println("\t -klanes N : process the received messages on N lanes by key, in order within a key, acknowledging after processing [default: "
+						+ numOfKeyedLanes + ", on the context thread]\n");
+		System.out
+				.println("\t -key [payload|pkey] : what the lane of a message is chosen by [default: "
+						+ keySource + "]\n");
+		System.out
+				.println("\t -keys count : number of distinct keys published [default: "
+						+ keyCount + "]\n");
+		System.out
+				.println("\t -wws [spin|yield|block] : wait strategy of idle lanes [default: "
+						+ laneWaitStrategy + "]\n");
+		System.out
+				.println("\t -ring size : number of slots of each lane, a power of two [default: "
+						+ ringSize + "]\n");
+		System.out
+				.println("\t -work nanos : time each message keeps its lane busy, to model a slow handler [default: "
+						+ workNanos + "]\n");
+		System.out.println(BenchmarkRunner.getUsage());
 
 		finish(1);
 	}
 
 	private static int[] returnCodes_OK = { SolEnum.ReturnCode.OK };
 
+	private static final long IDLE_TIMEOUT_MS = 10000;
+
 	/**
 	 * This is the main method of the sample
 	 */
@@ -110,7 +212,115 @@ public class PerfADPubSub extends AbstractSample {
 				}
 			}
 
-			content = ByteBuffer.allocateDirect(msgSize);
+			if (cmdLineArgs.containsKey("-lat")) {
+				measureLatency = true;
+				if (msgSize < PerfPubSub.LATENCY_HEADER_SIZE) {
+					System.out.println("messageSize should be at least "
+							+ PerfPubSub.LATENCY_HEADER_SIZE
+							+ " to measure latency");
+					printUsage(config instanceof SecureSessionConfiguration);
+				}
+			}
+			if (cmdLineArgs.containsKey("-r")) {
+				targetRate = Double.parseDouble(cmdLineArgs.get("-r"));
+			}
+			if (cmdLineArgs.containsKey("-ws")) {
+				waitStrategy = RatePacer.WaitStrategy.parse(cmdLineArgs
+						.get("-ws"));
+			}
+
+			if (cmdLineArgs.containsKey("-pm")) {
+				payloadMode = PayloadPool.Mode.parse(cmdLineArgs.get("-pm"));
+			}
+			if (cmdLineArgs.containsKey("-pp")) {
+				payloadPoolSize = Integer.parseInt(cmdLineArgs.get("-pp"));
+			}
+			if (cmdLineArgs.containsKey("-split")) {
+				measureCostSplit = true;
+			}
+			if (measureLatency && payloadMode == PayloadPool.Mode.SAME) {
+				System.out
+						.println("Latency needs sequenced payloads, not the same payload for every message");
+				printUsage(config instanceof SecureSessionConfiguration);
+			}
+
+			if (cmdLineArgs.containsKey("-bench")) {
+				benchmark = new BenchmarkRunner("PerfADPubSub").configure(
+						cmdLineArgs, numOfMessages);
+				if (measureLatency || targetRate > 0) {
+					System.out
+							.println("The benchmark sweep runs as fast as possible, without latency");
+					printUsage(config instanceof SecureSessionConfiguration);
+				}
+			}
+
+			if (cmdLineArgs.containsKey("-b")) {
+				batchSizeSweep = PerfPubSub.parseSweep(cmdLineArgs.get("-b"));
+				if (measureLatency || targetRate > 0 || benchmark != null) {
+					System.out
+							.println("The batch size sweep runs as fast as possible, without latency nor -bench");
+					printUsage(config instanceof SecureSessionConfiguration);
+				}
+			}
+
+			if (cmdLineArgs.containsKey("-outlier")) {
+				outlierThresholdMicros = Long.parseLong(cmdLineArgs
+						.get("-outlier"));
+			}
+
+			if (cmdLineArgs.containsKey("-klanes")) {
+				numOfKeyedLanes = Integer.parseInt(cmdLineArgs.get("-klanes"));
+			}
+			if (cmdLineArgs.containsKey("-key")) {
+				keySource = KeyedLaneDispatcher.KeySource.parse(cmdLineArgs
+						.get("-key"));
+				if (keySource == KeyedLaneDispatcher.KeySource.TOPIC) {
+					// Every message is published to the queue of the Flow
+					System.out
+							.println("-key topic would put every message on one lane, all go to the same queue");
+					printUsage(config instanceof SecureSessionConfiguration);
+				}
+			}
+			if (cmdLineArgs.containsKey("-keys")) {
+				keyCount = Integer.parseInt(cmdLineArgs.get("-keys"));
+			}
+			if (cmdLineArgs.containsKey("-wws")) {
+				laneWaitStrategy = HandoffRingBuffer.WaitStrategy
+						.parse(cmdLineArgs.get("-wws"));
+			}
+			if (cmdLineArgs.containsKey("-ring")) {
+				ringSize = Integer.parseInt(cmdLineArgs.get("-ring"));
+			}
+			if (cmdLineArgs.containsKey("-work")) {
+				workNanos = Long.parseLong(cmdLineArgs.get("-work"));
+			}
+			if (numOfKeyedLanes > 0) {
+				if (benchmark != null || batchSizeSweep != null) {
+					System.out
+							.println("Keyed lanes are not available with -bench nor -b");
+					printUsage(config instanceof SecureSessionConfiguration);
+				}
+				if (msgSize < KEY_OFFSET + 4
+						|| payloadMode == PayloadPool.Mode.SAME) {
+					System.out.println("Keyed lanes need sequenced payloads of at least "
+							+ (KEY_OFFSET + 4) + " bytes");
+					printUsage(config instanceof SecureSessionConfiguration);
+				}
+				if (keyCount < 1) {
+					System.out.println("At least one key is needed");
+					printUsage(config instanceof SecureSessionConfiguration);
+				}
+			}
+
+			if (cmdLineArgs.containsKey("-alloc")) {
+				String budget = cmdLineArgs.get("-alloc");
+				if (budget != null && budget.length() > 0)
+					allocationBudget = Double.parseDouble(budget);
+				allocationMeter = new AllocationMeter(allocationBudget);
+			}
+
+			payloadPool = new PayloadPool(payloadMode, payloadPoolSize,
+					msgSize, true);
 
 			// Init
 			print(" Initializing the Java RTO Messaging API...");
@@ -165,8 +375,31 @@ public class PerfADPubSub extends AbstractSample {
 			flowProperties[flowProps++] = SolEnum.AckMode.CLIENT;
 
 			CustomFlowEventCallback flowEventCallback = new CustomFlowEventCallback();
-			FlowMessageAckCallback flowMessageAckCallback = new FlowMessageAckCallback(
-					numOfMessages);
+			LatencyHistogram latencyHistogram = null;
+			FlowMessageAckCallback flowMessageAckCallback;
+			if (numOfKeyedLanes > 0) {
+				// The lanes measure the latency, and acknowledge
+				if (measureLatency)
+					latencyHistogram = new LatencyHistogram();
+				flowMessageAckCallback = new FlowMessageAckCallback(
+						numOfMessages, null, null, allocationMeter);
+				flowMessageAckCallback
+						.setLaneDispatcher(startKeyedLanes(measureLatency));
+			} else if (measureLatency) {
+				latencyHistogram = new LatencyHistogram();
+				flowMessageAckCallback = new FlowMessageAckCallback(
+						numOfMessages, latencyHistogram,
+						ByteBuffer.allocateDirect(msgSize), allocationMeter);
+				if (monitorMemory)
+					flowMessageAckCallback.setOutlierMonitor(monitor,
+							outlierThresholdMicros * 1000);
+			} else {
+				// The sweeps never stop on a message count
+				flowMessageAckCallback = new FlowMessageAckCallback(
+						benchmark != null || batchSizeSweep != null ? Integer.MAX_VALUE
+								: numOfMessages,
+						null, null, allocationMeter);
+			}
 
 			Queue queue = null;
 			if (isDurable) {
@@ -213,42 +446,82 @@ public class PerfADPubSub extends AbstractSample {
 			txMessageHandle
 					.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.PERSISTENT);
 
-			if (content.capacity() != msgSize) {
-				throw new IllegalStateException(
-						"Unable to fill up the byte buffer?! to size ["
-								+ msgSize + "] ? capacity was ["
-								+ content.capacity() + "]");
+			if (benchmark != null) {
+				benchmark.run(new PublishWorkload(destination,
+						flowMessageAckCallback));
+				return;
+			}
+
+			if (batchSizeSweep != null) {
+				runBatchSweep(destination, flowMessageAckCallback);
+				return;
 			}
 
+			long prepareNanos = 0;
+			long attachNanos = 0;
+			long sendNanos = 0;
+
+			RatePacer pacer = null;
+			if (targetRate > 0) {
+				pacer = new RatePacer(targetRate, waitStrategy);
+				print("Pacing at " + targetRate + " msg/second using "
+						+ waitStrategy);
+			}
+
+			if (allocationMeter != null)
+				allocationMeter.start();
+
 			long startTime = System.currentTimeMillis();
+			if (pacer != null)
+				pacer.start();
 
-			// Send them as fast as possible
+			// Send them as fast as possible, or on schedule when pacing
 			for (int i = 0; i < numOfMessages; i++) {
 
+				long intendedSendTime = 0;
+				if (pacer != null)
+					intendedSendTime = pacer.awaitSlot(i);
+
+				long t0 = measureCostSplit ? System.nanoTime() : 0;
+				long t1 = t0;
+
 				// Fill some message content
 				if (msgSize > 0) {
 
-					content.clear();
+					ByteBuffer content = payloadPool.next(i);
 
-					// Fill the byte buffer, using int ( 4 bytes )
-					for (int m = 0; m < msgSize / 4; m++) {
-						content.putInt(m + i);
+					if (measureLatency) {
+						content.putLong(PerfPubSub.TIMESTAMP_OFFSET,
+								pacer != null ? intendedSendTime : System
+										.nanoTime());
 					}
 
-					// Top up with bytes
-					int remainder = msgSize % 4;
-					for (byte b = 0; b < remainder; b++) {
-						content.put(b);
+					if (laneDispatcher != null) {
+						int key = i % keyCount;
+						content.putInt(KEY_OFFSET, key);
+						if (partitionKeys != null)
+							txMessageHandle
+									.setQueuePartitionKey(partitionKeys[key]);
 					}
 
-					content.flip();
+					if (measureCostSplit)
+						t1 = System.nanoTime();
 
 					txMessageHandle.setBinaryAttachment(content);
 
 				}
 
+				long t2 = measureCostSplit ? System.nanoTime() : 0;
+
 				rc = sessionHandle.send(txMessageHandle);
 				// Count, and can limit rate...
+
+				if (measureCostSplit) {
+					long t3 = System.nanoTime();
+					prepareNanos += t1 - t0;
+					attachNanos += t2 - t1;
+					sendNanos += t3 - t2;
+				}
 			}
 
 			long elapsedMs = System.currentTimeMillis() - startTime;
@@ -258,6 +531,17 @@ public class PerfADPubSub extends AbstractSample {
 					"%nSent %d messages in %f seconds = %f msg/second%n",
 					numOfMessages, elapsedMs / 1000.0, txRate * 1000);
 
+			if (measureCostSplit) {
+				PerfPubSub.printCostSplit(numOfMessages, prepareNanos,
+						attachNanos, sendNanos);
+			}
+
+			if (pacer != null) {
+				System.out.printf(
+						"%d messages were sent behind schedule, worst lag %.2f us%n",
+						pacer.getLateCount(), pacer.getMaxLagNanos() / 1000.0);
+			}
+
 			// Register a shutdown hook
 			Runtime.getRuntime().addShutdownHook(new Thread() {
 				public void run() {
@@ -275,6 +559,12 @@ public class PerfADPubSub extends AbstractSample {
 				}
 			}
 
+			if (allocationMeter != null)
+				allocationMeter.stop(numOfMessages);
+
+			if (laneDispatcher != null)
+				stopKeyedLanes(latencyHistogram);
+
 			print("Quitting time");
 
 			System.out.println();
@@ -287,6 +577,14 @@ public class PerfADPubSub extends AbstractSample {
 			} else
 				print("Test Passed");
 
+			if (latencyHistogram != null)
+				latencyHistogram
+						.printPercentiles(laneDispatcher != null ? "Send to lane processing latency"
+								: "Send to Flow receipt latency");
+
+			if (allocationMeter != null)
+				allocationMeter.printAndCheck();
+
 		} catch (Throwable t) {
 			error("An error has occurred " + t.getMessage(), t);
 		}
@@ -315,25 +613,182 @@ public class PerfADPubSub extends AbstractSample {
 
 	}
 
+	/**
+	 * Starts {@link #numOfKeyedLanes} lanes acknowledging on the Flow, each
+	 * with a checker of its own.
+	 */
+	private KeyedLaneDispatcher startKeyedLanes(boolean measureLatency) {
+		laneDispatcher = new KeyedLaneDispatcher(numOfKeyedLanes, ringSize,
+				msgSize, laneWaitStrategy, keySource, KEY_OFFSET);
+		laneDispatcher.setAckFlow(flowHandle);
+		laneCheckers = new KeyOrderChecker[numOfKeyedLanes];
+		for (int i = 0; i < numOfKeyedLanes; i++)
+			laneCheckers[i] = new KeyOrderChecker(keyCount,
+					measureLatency ? new LatencyHistogram() : null, workNanos);
+		laneDispatcher.start("KeyedLane", laneCheckers);
+
+		if (keySource == KeyedLaneDispatcher.KeySource.PARTITION_KEY) {
+			// Built once, not for every message
+			partitionKeys = new String[keyCount];
+			for (int i = 0; i < keyCount; i++)
+				partitionKeys[i] = "key-" + i;
+		}
+		print("Processing on " + numOfKeyedLanes + " lanes keyed by "
+				+ keySource + ", " + keyCount + " keys");
+		return laneDispatcher;
+	}
+
+	/**
+	 * Lets the lanes finish, merges their latencies and fails when the
+	 * messages of a key were processed out of order.
+	 */
+	private void stopKeyedLanes(LatencyHistogram latencyHistogram) {
+		if (!laneDispatcher.drainAndStop(IDLE_TIMEOUT_MS))
+			System.out.println("The lanes did not process every message");
+		laneDispatcher.printReport();
+		long outOfOrder = 0;
+		for (int i = 0; i < laneCheckers.length; i++) {
+			outOfOrder += laneCheckers[i].outOfOrderCount;
+			if (latencyHistogram != null)
+				latencyHistogram.add(laneCheckers[i].histogram);
+		}
+		if (outOfOrder > 0)
+			throw new IllegalStateException(outOfOrder
+					+ " messages were processed out of order within their key");
+		print("Every key was processed in order");
+	}
+
+	/**
+	 * Processes the messages of one lane: checks that the sequence numbers of
+	 * each key only go up, records the latency and keeps busy for the
+	 * configured work time.
+	 */
+	static class KeyOrderChecker implements
+			HandoffRingBuffer.Handler<MessageSlot> {
+
+		final LatencyHistogram histogram;
+		private final int[] lastSequence;
+		private final long workNanos;
+		volatile long outOfOrderCount;
+
+		/**
+		 * @param histogram
+		 *            owned by this lane, may be null
+		 */
+		KeyOrderChecker(int keyCount, LatencyHistogram histogram,
+				long workNanos) {
+			this.histogram = histogram;
+			this.lastSequence = new int[keyCount];
+			Arrays.fill(lastSequence, -1);
+			this.workNanos = workNanos;
+		}
+
+		@Override
+		public void onSlot(MessageSlot slot, long sequence) {
+			ByteBuffer payload = slot.getPayload();
+			if (payload.remaining() < KEY_OFFSET + 4)
+				return;
+			int key = payload.getInt(KEY_OFFSET);
+			int messageSequence = payload.getInt(PerfPubSub.SEQUENCE_OFFSET);
+			if (key >= 0 && key < lastSequence.length) {
+				if (messageSequence <= lastSequence[key])
+					outOfOrderCount++;
+				lastSequence[key] = messageSequence;
+			}
+			if (histogram != null)
+				histogram.record(System.nanoTime()
+						- payload.getLong(PerfPubSub.TIMESTAMP_OFFSET));
+			if (workNanos > 0)
+				PerfPubSub.simulateWork(workNanos);
+		}
+	}
+
 	public static class FlowMessageAckCallback implements MessageCallback {
 
 		int expectedMax;
 
-		int messageCount = 0;
+		volatile int messageCount = 0;
 
 		private int rc;
 
+		private final LatencyHistogram histogram;
+		private final ByteBuffer rxContent;
+		private final AllocationMeter allocationMeter;
+		private Monitor outlierMonitor;
+		private long outlierThresholdNanos;
+		private KeyedLaneDispatcher laneDispatcher;
+
 		FlowMessageAckCallback(int max) {
+			this(max, null, null, null);
+		}
+
+		/**
+		 * @param histogram
+		 *            records the latency of every received message, may be
+		 *            null when not measuring latency
+		 * @param rxContent
+		 *            a buffer large enough for the whole binary attachment
+		 * @param allocationMeter
+		 *            told about the context thread, may be null
+		 */
+		FlowMessageAckCallback(int max, LatencyHistogram histogram,
+				ByteBuffer rxContent, AllocationMeter allocationMeter) {
 			expectedMax = max;
+			this.histogram = histogram;
+			this.rxContent = rxContent;
+			this.allocationMeter = allocationMeter;
+		}
+
+		/**
+		 * Reports the latencies above thresholdNanos to the monitor, to be
+		 * correlated with GC pauses. Must be called before messages arrive.
+		 */
+		void setOutlierMonitor(Monitor monitor, long thresholdNanos) {
+			this.outlierMonitor = monitor;
+			this.outlierThresholdNanos = thresholdNanos;
+		}
+
+		/**
+		 * Hands the messages to the lanes, which acknowledge them once
+		 * processed. Must be called before messages arrive.
+		 */
+		void setLaneDispatcher(KeyedLaneDispatcher laneDispatcher) {
+			this.laneDispatcher = laneDispatcher;
 		}
 
 		@Override
 		public void onMessage(Handle handle) {
 
+			if (allocationMeter != null)
+				allocationMeter.onCallback();
+
 			messageCount++;
 
-			rc = ((FlowHandle) handle).ack(((MessageSupport) handle)
-					.getRxMessage());
+			if (laneDispatcher != null) {
+				laneDispatcher.onMessage(handle);
+				if (!quit && (messageCount >= expectedMax))
+					quit = true;
+				return;
+			}
+
+			MessageHandle rxMessage = ((MessageSupport) handle).getRxMessage();
+
+			if (histogram != null) {
+				rxContent.clear();
+				rxMessage.getBinaryAttachment(rxContent);
+				rxContent.flip();
+				if (rxContent.remaining() >= PerfPubSub.LATENCY_HEADER_SIZE) {
+					long latency = System.nanoTime()
+							- rxContent.getLong(PerfPubSub.TIMESTAMP_OFFSET);
+					histogram.record(latency);
+					if (outlierMonitor != null
+							&& latency > outlierThresholdNanos)
+						outlierMonitor.recordOutlier(
+								System.currentTimeMillis(), latency);
+				}
+			}
+
+			rc = ((FlowHandle) handle).ack(rxMessage);
 
 			if (rc != SolEnum.ReturnCode.OK)
 				return; // Ignore the errors for now...
@@ -350,6 +805,131 @@ public class PerfADPubSub extends AbstractSample {
 
 	}
 
+	/**
+	 * The benchmark workload: publishes the given number of persistent
+	 * messages as fast as the window allows, then waits until the Flow has
+	 * received all of them.
+	 */
+	class PublishWorkload implements BenchmarkRunner.Workload {
+
+		private final Destination destination;
+		private final FlowMessageAckCallback flowCallback;
+		private PayloadPool payloads;
+
+		PublishWorkload(Destination destination,
+				FlowMessageAckCallback flowCallback) {
+			this.destination = destination;
+			this.flowCallback = flowCallback;
+		}
+
+		@Override
+		public void setUp(int size) {
+			payloads = new PayloadPool(payloadMode, payloadPoolSize, size, true);
+			// Start from a fresh message, so no attachment is left over from
+			// a previous size
+			finish_DestroyHandle(txMessageHandle, "messageHandle");
+			int rc = Solclient.createMessageForHandle(txMessageHandle);
+			assertReturnCode("Solclient.createMessage()", rc, returnCodes_OK);
+			txMessageHandle.setDestination(destination);
+			txMessageHandle
+					.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.PERSISTENT);
+		}
+
+		@Override
+		public long run(int size, int count) {
+			long target = flowCallback.getMessageCount() + count;
+			for (int i = 0; i < count; i++) {
+				if (size > 0)
+					txMessageHandle.setBinaryAttachment(payloads.next(i));
+				sessionHandle.send(txMessageHandle);
+			}
+
+			awaitFlowMessages(flowCallback, target, count);
+			return count;
+		}
+	}
+
+	/**
+	 * Waits until the Flow has received target messages in all, count of
+	 * them being from the last run, failing when nothing was received for
+	 * {@link #IDLE_TIMEOUT_MS}.
+	 */
+	static void awaitFlowMessages(final FlowMessageAckCallback flowCallback,
+			long target, int count) {
+		if (!ProgressWait.await(new ProgressWait.Progress() {
+			@Override
+			public long get() {
+				return flowCallback.getMessageCount();
+			}
+		}, target, IDLE_TIMEOUT_MS, 0)) {
+			long received = flowCallback.getMessageCount();
+			throw new IllegalStateException(count + " messages were expected, "
+					+ (count - (target - received)) + " were received");
+		}
+	}
+
+	/**
+	 * Publishes {@link #numOfMessages} persistent messages one send at a
+	 * time, then in batches of each size of the sweep. Reports for each run
+	 * the rate at which the messages were sent, and the rate at which they
+	 * were all received on the Flow.
+	 */
+	private void runBatchSweep(Destination destination,
+			FlowMessageAckCallback flowCallback) {
+		System.out.printf(
+				"%nBatch size sweep, %d persistent messages of size %d per run%n",
+				numOfMessages, msgSize);
+		System.out.printf("%12s %16s %16s%n", "batch", "sent msg/s",
+				"received msg/s");
+
+		double singleRate = 0;
+		for (int b = -1; b < batchSizeSweep.length; b++) {
+			BatchPublisher batch = null;
+			if (b >= 0) {
+				batch = new BatchPublisher(batchSizeSweep[b],
+						SolEnum.MessageDeliveryMode.PERSISTENT);
+				MessageHandle[] messages = batch.getMessages();
+				for (int i = 0; i < messages.length; i++)
+					messages[i].setDestination(destination);
+			}
+			try {
+				long target = flowCallback.getMessageCount() + numOfMessages;
+				long start = System.nanoTime();
+				for (int i = 0; i < numOfMessages; i++) {
+					MessageHandle message = batch != null ? batch.next()
+							: txMessageHandle;
+					if (msgSize > 0)
+						message.setBinaryAttachment(payloadPool.next(i));
+					if (batch == null)
+						sessionHandle.send(txMessageHandle);
+					else if (batch.isFull())
+						batch.flush(sessionHandle);
+				}
+				if (batch != null)
+					batch.flush(sessionHandle);
+				double sentSeconds = (System.nanoTime() - start) / 1e9;
+
+				awaitFlowMessages(flowCallback, target, numOfMessages);
+				double receivedRate = numOfMessages
+						/ ((System.nanoTime() - start) / 1e9);
+
+				if (batch == null) {
+					singleRate = receivedRate;
+					System.out.printf("%12s %16.1f %16.1f%n", "no",
+							numOfMessages / sentSeconds, receivedRate);
+				} else {
+					System.out.printf(
+							"%12d %16.1f %16.1f (%.1f%% of no batch)%n",
+							batch.getBatchSize(), numOfMessages / sentSeconds,
+							receivedRate, 100 * receivedRate / singleRate);
+				}
+			} finally {
+				if (batch != null)
+					batch.destroy();
+			}
+		}
+	}
+
 	static class CustomEventsAdapter implements MessageCallback,
 			SessionEventCallback {
 
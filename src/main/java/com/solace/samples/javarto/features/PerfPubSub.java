@@ -4,8 +4,11 @@
  */
 package com.solace.samples.javarto.features;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
@@ -16,6 +19,7 @@ import com.solacesystems.solclientj.core.event.SessionEventCallback;
 import com.solacesystems.solclientj.core.handle.ContextHandle;
 import com.solacesystems.solclientj.core.handle.Handle;
 import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
 import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
 import com.solacesystems.solclientj.core.handle.SessionHandle;
 import com.solacesystems.solclientj.core.resource.Topic;
@@ -29,11 +33,84 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * <li>Subscribing to a topic for direct messages.
  * <li>Publishing direct messages to a topic.
  * <li>Session Event are ignored, Message Events ignored.
+ * <li>Optionally (-lat), measuring the round trip latency of every message
+ * looped back on the subscription, reported as percentiles.
  * <ul>
  * 
+ * In latency mode each payload starts with a header made of the int sequence
+ * number followed by the long System.nanoTime() of the send, so the message
+ * size must be at least {@link #LATENCY_HEADER_SIZE} bytes.
+ * <p>
+ * With a target rate (-r), messages are paced by a {@link RatePacer} and the
+ * header carries the intended send time of each message rather than the
+ * actual one, so publisher stalls show up in the measured latency.
+ * <p>
+ * With more than one lane (-lanes), the sample creates one context, session,
+ * message and native destination per lane, each published from its own thread
+ * to its own topic, and reports the throughput of every lane and of the whole
+ * run. Lanes only publish, they do not subscribe.
+ * <p>
+ * With receive accounting (-rx), the sequence number at the start of every
+ * looped back payload is fed to a {@link SequenceTracker}, which reports the
+ * receive rate along with lost, duplicate and out of order messages. Direct
+ * messages may be discarded under load, this quantifies how many.
+ * <p>
+ * The payload mode (-pm) selects how payloads are prepared, see
+ * {@link PayloadPool}: refilled for every message (the default), patched from
+ * a pool of pre-built buffers, or the exact same buffer every time. With -split
+ * the time spent preparing the payload, in setBinaryAttachment() and in send()
+ * is reported separately.
+ * <p>
+ * With -bench, the sample runs a {@link BenchmarkRunner} sweep over message
+ * sizes and counts instead of a single run, with warmup and measured
+ * iterations, and can write the results as CSV or JSON.
+ * <p>
+ * With -alloc, an {@link AllocationMeter} checks the GC-free claim: the heap
+ * bytes allocated by the publishing thread and by the context thread during
+ * the run are reported per message, and the run fails when either exceeds the
+ * budget.
+ * <p>
+ * When memory monitoring (-mm) and latency (-lat) are both on, messages
+ * slower than the outlier threshold (-outlier) are handed to the
+ * {@link AbstractSample.Monitor}, which reports them along with the GC pauses
+ * they overlap.
+ * <p>
+ * With a topic cardinality (-tc), messages are published over that many
+ * topics, <code>SAMPLE_TOPIC/instr/NNNNNNN</code>, instead of the single
+ * native destination. One mutable topic backed by a {@link TopicUniverse}
+ * buffer is rewritten in place for every send, with keys drawn uniformly or
+ * from a Zipf distribution (-kd, -zs). -tcs runs a sweep over several
+ * cardinalities and reports the throughput of each, next to the throughput
+ * of the fixed native destination. The sweep publishes over every
+ * configuration once as a warmup, then measures them in rounds, each round
+ * starting from the next configuration, so that neither the JIT warming up
+ * nor the order of the runs favours one of them.
+ * <p>
+ * With -subs, that many topic subscriptions are added before publishing by
+ * a {@link SubscriptionManager}, which keeps a window of them (-sw) waiting
+ * for their confirmation instead of waiting for each one in turn, and reports
+ * the setup time.
+ * <p>
+ * -b runs a sweep over batch sizes: a {@link BatchPublisher} fills that many
+ * preallocated messages before sending them in a tight loop, and the
+ * throughput of each batch size is reported next to the one of a send per
+ * message. solclientj has no multi-message send, so a batch still makes one
+ * send call per message.
+ * <p>
+ * With -workers, the context thread only copies every received message into
+ * a preallocated slot of a {@link HandoffRingBuffer} and the latency and
+ * receive accounting happen on worker threads, which wait for work as chosen
+ * by -wws. -work keeps each worker busy for that long per message, to see
+ * the ring fill up behind a slow handler. The depth of the ring and the
+ * handoff latency are reported after the run.
+ * 
  */
 public class PerfPubSub extends AbstractSample {
 
+	static final int SEQUENCE_OFFSET = 0;
+	static final int TIMESTAMP_OFFSET = 4;
+	static final int LATENCY_HEADER_SIZE = 12;
+
 	private SessionHandle sessionHandle = Solclient.Allocator
 			.newSessionHandle();
 	private ContextHandle contextHandle = Solclient.Allocator
@@ -46,8 +123,42 @@ public class PerfPubSub extends AbstractSample {
 			.newNativeDestinationHandle();
 	private int numOfMessages = 1000000;
 	private int msgSize = 100;
-	private ByteBuffer byteBuffer;
+	private PayloadPool payloadPool;
+	private PayloadPool.Mode payloadMode = PayloadPool.Mode.FILL;
+	private int payloadPoolSize = 64;
 	boolean useDirectByteBuffer = false;
+	boolean measureCostSplit = false;
+	boolean measureLatency = false;
+	boolean trackReceived = false;
+	private LatencyHistogram latencyHistogram;
+	private double targetRate = 0;
+	private RatePacer.WaitStrategy waitStrategy = RatePacer.WaitStrategy.SPIN;
+	private int numOfLanes = 1;
+	private PublisherLane[] lanes;
+	private BenchmarkRunner benchmark;
+	private int topicCardinality = 0;
+	private int[] topicCardinalitySweep;
+	private TopicUniverse.Distribution keyDistribution = TopicUniverse.Distribution.UNIFORM;
+	private double zipfExponent = 1.0;
+	private int[] batchSizeSweep;
+	private int subscriptionCount = 0;
+	private int subscriptionWindow = 256;
+	private int subscriptionRetries = 3;
+	private int numOfWorkers = 0;
+	private HandoffRingBuffer.WaitStrategy workerWaitStrategy = HandoffRingBuffer.WaitStrategy.YIELD;
+	private int ringSize = 4096;
+	private long workNanos = 0;
+	private HandoffRingBuffer<MessageSlot> handoff;
+	private ReceiveWorker[] receiveWorkers;
+
+	static final String INSTRUMENT_TOPIC_PREFIX = SampleUtils.SAMPLE_TOPIC
+			+ "/instr";
+	// Keys drawn up front are cycled through past this many messages
+	private static final int MAX_KEY_SEQUENCE = 1 << 20;
+	private static final int TOPIC_SWEEP_ROUNDS = 3;
+	private AllocationMeter allocationMeter;
+	private double allocationBudget = 1.0;
+	private long outlierThresholdMicros = 1000;
 
 	@Override
 	protected void printUsage(boolean secureSession) {
@@ -62,6 +173,71 @@ public class PerfPubSub extends AbstractSample {
 		System.out
 				.println("\t -d [true|false] : use direct allocate ByteBuffer [default:"
 						+ useDirectByteBuffer + "]\n");
+		System.out
+				.println("\t -pm [fill|pool|same] : refill the payload for every message, patch the header of pre-built buffers, or send the same buffer [default: "
+						+ payloadMode + "]\n");
+		System.out
+				.println("\t -pp size : number of pre-built buffers in pool mode [default: "
+						+ payloadPoolSize + "]\n");
+		System.out
+				.println("\t -split : report the time spent preparing the payload, in setBinaryAttachment and in send [default:"
+						+ measureCostSplit + "]\n");
+		System.out
+				.println("\t -lat : measure the round trip latency of the looped back messages [default:"
+						+ measureLatency + "]\n");
+		System.out
+				.println("\t -rx : account for the looped back messages, reporting loss, duplicates and reordering [default:"
+						+ trackReceived + "]\n");
+		System.out
+				.println("\t -r rate : publish at a fixed rate in msg/second, 0 for as fast as possible [default: "
+						+ targetRate + "]\n");
+		System.out
+				.println("\t -ws [spin|yield|park] : wait strategy used to pace a fixed rate [default: "
+						+ waitStrategy + "]\n");
+		System.out
+				.println("\t -lanes N : publish from N threads, each with its own context and session, the rate applies per lane [default: "
+						+ numOfLanes + "]\n");
+		System.out
+				.println("\t -alloc [bytes] : fail when the publishing or context thread allocates more than this per message [default budget: "
+						+ allocationBudget + "]\n");
+		System.out
+				.println("\t -tc cardinality : publish over this many topics through one mutable topic, 0 for the fixed native destination [default: "
+						+ topicCardinality + "]\n");
+		System.out
+				.println("\t -tcs c1,c2,... : publish over each topic cardinality, after a warmup pass, in " + TOPIC_SWEEP_ROUNDS + " rotated rounds, and report the mean throughput of each\n");
+		System.out
+				.println("\t -b b1,b2,... : publish once per batch size, filling that many preallocated messages then sending them in a tight loop, and report the throughput of each (solclientj has no multi-message send, each message is still one send call)\n");
+		System.out
+				.println("\t -workers N : hand the received messages off from the context thread to N worker threads through a ring buffer [default: "
+						+ numOfWorkers + ", on the context thread]\n");
+		System.out
+				.println("\t -wws [spin|yield|block] : wait strategy of idle workers [default: "
+						+ workerWaitStrategy + "]\n");
+		System.out
+				.println("\t -ring size : number of slots of the handoff ring, a power of two [default: "
+						+ ringSize + "]\n");
+		System.out
+				.println("\t -work nanos : time each received message keeps its worker busy, to model a slow handler [default: "
+						+ workNanos + "]\n");
+		System.out
+				.println("\t -subs count : add this many topic subscriptions before publishing, and report how long it took [default: "
+						+ subscriptionCount + "]\n");
+		System.out
+				.println("\t -sw window : most subscriptions waiting for their confirmation, 0 to wait for each one in turn [default: "
+						+ subscriptionWindow + "]\n");
+		System.out
+				.println("\t -sr retries : times a rejected subscription is issued again [default: "
+						+ subscriptionRetries + "]\n");
+		System.out
+				.println("\t -kd [uniform|zipf] : distribution of the topic keys [default: "
+						+ keyDistribution + "]\n");
+		System.out
+				.println("\t -zs exponent : exponent of the Zipf distribution [default: "
+						+ zipfExponent + "]\n");
+		System.out
+				.println("\t -outlier micros : with -lat and -mm, latency above which a message is reported with the GC pauses it overlaps [default: "
+						+ outlierThresholdMicros + "]\n");
+		System.out.println(BenchmarkRunner.getUsage());
 
 	}
 
@@ -84,10 +260,153 @@ public class PerfPubSub extends AbstractSample {
 		if (cmdLineArgs.containsKey("-d"))
 			useDirectByteBuffer = true;
 
-		if (useDirectByteBuffer)
-			byteBuffer = ByteBuffer.allocateDirect(msgSize);
-		else
-			byteBuffer = ByteBuffer.allocate(msgSize);
+		if (cmdLineArgs.containsKey("-pm")) {
+			payloadMode = PayloadPool.Mode.parse(cmdLineArgs.get("-pm"));
+		}
+		if (cmdLineArgs.containsKey("-pp")) {
+			payloadPoolSize = Integer.parseInt(cmdLineArgs.get("-pp"));
+		}
+		if (cmdLineArgs.containsKey("-split"))
+			measureCostSplit = true;
+
+		// Measure round trip latency
+		if (cmdLineArgs.containsKey("-lat"))
+			measureLatency = true;
+
+		if (cmdLineArgs.containsKey("-r")) {
+			targetRate = Double.parseDouble(cmdLineArgs.get("-r"));
+		}
+		if (cmdLineArgs.containsKey("-ws")) {
+			waitStrategy = RatePacer.WaitStrategy.parse(cmdLineArgs.get("-ws"));
+		}
+
+		if (cmdLineArgs.containsKey("-lanes")) {
+			numOfLanes = Integer.parseInt(cmdLineArgs.get("-lanes"));
+		}
+
+		if (cmdLineArgs.containsKey("-outlier")) {
+			outlierThresholdMicros = Long.parseLong(cmdLineArgs.get("-outlier"));
+		}
+
+		// Account for received messages
+		if (cmdLineArgs.containsKey("-rx"))
+			trackReceived = true;
+
+		if (cmdLineArgs.containsKey("-tc")) {
+			topicCardinality = Integer.parseInt(cmdLineArgs.get("-tc"));
+			if (numOfLanes > 1) {
+				throw new IllegalArgumentException(
+						"The topic cardinality is not available with more than one lane, each lane publishes to its own topic");
+			}
+		}
+		if (measureCostSplit && numOfLanes > 1) {
+			throw new IllegalArgumentException(
+					"The cost split is not available with more than one lane");
+		}
+		if (cmdLineArgs.containsKey("-tcs")) {
+			topicCardinalitySweep = parseSweep(cmdLineArgs.get("-tcs"));
+			if (numOfLanes > 1 || cmdLineArgs.containsKey("-bench")) {
+				throw new IllegalArgumentException(
+						"The topic cardinality sweep runs on a single lane, without -bench");
+			}
+		}
+		if (cmdLineArgs.containsKey("-b")) {
+			batchSizeSweep = parseSweep(cmdLineArgs.get("-b"));
+			if (numOfLanes > 1 || cmdLineArgs.containsKey("-bench")
+					|| topicCardinalitySweep != null) {
+				throw new IllegalArgumentException(
+						"The batch size sweep runs on a single lane, without -bench nor -tcs");
+			}
+		}
+		if (cmdLineArgs.containsKey("-workers")) {
+			numOfWorkers = Integer.parseInt(cmdLineArgs.get("-workers"));
+		}
+		if (cmdLineArgs.containsKey("-wws")) {
+			workerWaitStrategy = HandoffRingBuffer.WaitStrategy
+					.parse(cmdLineArgs.get("-wws"));
+		}
+		if (cmdLineArgs.containsKey("-ring")) {
+			ringSize = Integer.parseInt(cmdLineArgs.get("-ring"));
+		}
+		if (cmdLineArgs.containsKey("-work")) {
+			workNanos = Long.parseLong(cmdLineArgs.get("-work"));
+		}
+		if (numOfWorkers > 0) {
+			if (numOfLanes > 1) {
+				throw new IllegalArgumentException(
+						"The handoff to workers is not available with more than one lane");
+			}
+			if (trackReceived && numOfWorkers > 1) {
+				throw new IllegalArgumentException(
+						"Receive accounting needs the order of the messages, use a single worker");
+			}
+		}
+		if (cmdLineArgs.containsKey("-subs")) {
+			subscriptionCount = Integer.parseInt(cmdLineArgs.get("-subs"));
+			if (numOfLanes > 1) {
+				throw new IllegalArgumentException(
+						"Bulk subscriptions are added on a single lane");
+			}
+		}
+		if (cmdLineArgs.containsKey("-sw")) {
+			subscriptionWindow = Integer.parseInt(cmdLineArgs.get("-sw"));
+		}
+		if (cmdLineArgs.containsKey("-sr")) {
+			subscriptionRetries = Integer.parseInt(cmdLineArgs.get("-sr"));
+		}
+		if (cmdLineArgs.containsKey("-kd")) {
+			keyDistribution = TopicUniverse.Distribution.parse(cmdLineArgs
+					.get("-kd"));
+		}
+		if (cmdLineArgs.containsKey("-zs")) {
+			zipfExponent = Double.parseDouble(cmdLineArgs.get("-zs"));
+		}
+
+		if (cmdLineArgs.containsKey("-bench")) {
+			benchmark = new BenchmarkRunner("PerfPubSub").configure(
+					cmdLineArgs, numOfMessages);
+			if (measureLatency || trackReceived || numOfLanes > 1
+					|| targetRate > 0) {
+				throw new IllegalArgumentException(
+						"The benchmark sweep runs a single lane as fast as possible, without latency or receive accounting");
+			}
+		}
+
+		if (cmdLineArgs.containsKey("-alloc")) {
+			String budget = cmdLineArgs.get("-alloc");
+			if (budget != null && budget.length() > 0)
+				allocationBudget = Double.parseDouble(budget);
+			if (numOfLanes > 1) {
+				throw new IllegalArgumentException(
+						"Allocation accounting is not available with more than one lane");
+			}
+			allocationMeter = new AllocationMeter(allocationBudget);
+		}
+
+		if ((measureLatency || trackReceived) && numOfLanes > 1) {
+			throw new IllegalArgumentException(
+					"Latency and receive accounting are not available with more than one lane");
+		}
+
+		if ((measureLatency || trackReceived)
+				&& payloadMode == PayloadPool.Mode.SAME) {
+			throw new IllegalArgumentException(
+					"Latency and receive accounting need sequenced payloads, not the same payload for every message");
+		}
+
+		if (trackReceived && msgSize < 4) {
+			throw new IllegalArgumentException(
+					"Receive accounting needs a message size of at least 4 bytes");
+		}
+
+		if (measureLatency && msgSize < LATENCY_HEADER_SIZE) {
+			throw new IllegalArgumentException(
+					"Latency mode needs a message size of at least "
+							+ LATENCY_HEADER_SIZE + " bytes");
+		}
+
+		payloadPool = new PayloadPool(payloadMode, payloadPoolSize, msgSize,
+				useDirectByteBuffer);
 
 		// Init
 		System.out.println(" Initializing the Java RTO Messaging API...");
@@ -97,6 +416,11 @@ public class PerfPubSub extends AbstractSample {
 		// We don't care for any output unless it is an error
 		Solclient.setLogLevel(Level.SEVERE);
 
+		if (numOfLanes > 1) {
+			runLanes(config);
+			return;
+		}
+
 		// Context
 		System.out.println(" Creating a context ...");
 		rc = Solclient.createContextForHandle(contextHandle, new String[0]);
@@ -105,7 +429,29 @@ public class PerfPubSub extends AbstractSample {
 		// Session
 		System.out.println(" Creating a session ...");
 		String[] sessionProps = getSessionProps(config, 0);
-		CustomEventsAdapter adapter = new CustomEventsAdapter();
+		SequenceTracker sequenceTracker = null;
+		ByteBuffer rxContent = null;
+		if (measureLatency || trackReceived) {
+			if (measureLatency)
+				latencyHistogram = new LatencyHistogram();
+			if (trackReceived)
+				sequenceTracker = new SequenceTracker(0, 1 << 16);
+			rxContent = ByteBuffer.allocateDirect(msgSize);
+		}
+		CustomEventsAdapter adapter;
+		if (numOfWorkers > 0) {
+			// The context thread only copies, the workers look at the content
+			adapter = new CustomEventsAdapter(null, null, null,
+					allocationMeter);
+			startWorkers(sequenceTracker);
+			adapter.setHandoff(handoff);
+		} else {
+			adapter = new CustomEventsAdapter(latencyHistogram,
+					sequenceTracker, rxContent, allocationMeter);
+			if (measureLatency && monitorMemory)
+				adapter.setOutlierMonitor(monitor,
+						outlierThresholdMicros * 1000);
+		}
 		rc = contextHandle.createSessionForHandle(sessionHandle, sessionProps,
 				adapter, adapter);
 		assertReturnCode("contextHandle.createSession()", rc,
@@ -122,6 +468,19 @@ public class PerfPubSub extends AbstractSample {
 				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
 		assertReturnCode("sessionHandle.subscribe()", rc, SolEnum.ReturnCode.OK);
 
+		// Loop the instrument topics back only when something looks at them
+		if (topicCardinality > 0
+				&& (measureLatency || trackReceived || allocationMeter != null)) {
+			rc = sessionHandle.subscribe(Solclient.Allocator
+					.newTopic(INSTRUMENT_TOPIC_PREFIX + "/>"),
+					SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
+			assertReturnCode("sessionHandle.subscribe()", rc,
+					SolEnum.ReturnCode.OK);
+		}
+
+		if (subscriptionCount > 0)
+			addBulkSubscriptions(adapter);
+
 		// Allocate the message
 		rc = Solclient.createMessageForHandle(txMessageHandle);
 		assertReturnCode("Solclient.createMessage()", rc, SolEnum.ReturnCode.OK);
@@ -129,42 +488,113 @@ public class PerfPubSub extends AbstractSample {
 		// Allocate a Native Topic Destination
 		rc = Solclient.createNativeDestinationForHandle(topicHandle, topic);
 
+		if (benchmark != null) {
+			try {
+				benchmark.run(new PublishWorkload());
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Unable to write the benchmark results", e);
+			}
+			return;
+		}
+
+		if (topicCardinalitySweep != null) {
+			runTopicSweep();
+			return;
+		}
+
+		if (batchSizeSweep != null) {
+			runBatchSweep();
+			return;
+		}
+
 		System.out.printf(
-				"%nWill publish %d messages of size %d in a %s ByteBuffer%n",
+				"%nWill publish %d messages of size %d in a %s ByteBuffer, payload mode %s%n",
 				numOfMessages, msgSize, useDirectByteBuffer ? "DirectAllocated"
-						: "ArrayBacked");
+						: "ArrayBacked", payloadMode);
+
+		TopicUniverse topicUniverse = null;
+		Topic mutableTopic = null;
+		int[] topicKeys = null;
+		if (topicCardinality > 0) {
+			topicUniverse = newTopicUniverse(topicCardinality);
+			mutableTopic = Solclient.Allocator.newMutableTopic(topicUniverse
+					.getTopicBuffer());
+			topicKeys = newKeySequence(topicUniverse);
+			System.out.printf("Over %d topics, %s keys%n", topicCardinality,
+					keyDistribution);
+		}
+		int topicKeyMask = topicKeys == null ? 0 : topicKeys.length - 1;
+
+		RatePacer pacer = null;
+		if (targetRate > 0) {
+			pacer = new RatePacer(targetRate, waitStrategy);
+			System.out.printf("Pacing at %.0f msg/second using %s%n",
+					targetRate, waitStrategy);
+		}
+
+		Thread rxReporter = null;
+		if (sequenceTracker != null)
+			rxReporter = startRxReporter(sequenceTracker);
+
+		long prepareNanos = 0;
+		long attachNanos = 0;
+		long sendNanos = 0;
+
+		if (allocationMeter != null)
+			allocationMeter.start();
 
 		long startTime = System.currentTimeMillis();
+		if (pacer != null)
+			pacer.start();
 
 		// Make message content and send it
 		for (int i = 0; i < numOfMessages; i++) {
 
-			txMessageHandle.setDestination(topicHandle);
+			long intendedSendTime = 0;
+			if (pacer != null)
+				intendedSendTime = pacer.awaitSlot(i);
 
-			if (msgSize > 0) {
+			long t0 = measureCostSplit ? System.nanoTime() : 0;
+			long t1 = t0;
 
-				byteBuffer.clear();
+			if (topicUniverse != null) {
+				topicUniverse.select(topicKeys[i & topicKeyMask]);
+				txMessageHandle.setDestination(mutableTopic);
+			} else {
+				txMessageHandle.setDestination(topicHandle);
+			}
 
-				// Making up some pay-load ...
+			if (msgSize > 0) {
 
-				// Fill the byte buffer, using int ( 4 bytes )
-				for (int x = 0; x < msgSize / 4; x++) {
-					byteBuffer.putInt(i + x);
-				}
+				// Making up some pay-load ...
+				ByteBuffer payload = payloadPool.next(i);
 
-				// Top up with bytes
-				int remainder = msgSize % 4;
-				for (byte b = 0; b < remainder; b++) {
-					byteBuffer.put(b);
+				if (measureLatency) {
+					// Stamp the header as late as possible, or with the
+					// scheduled time when pacing
+					payload.putLong(TIMESTAMP_OFFSET,
+							pacer != null ? intendedSendTime : System
+									.nanoTime());
 				}
 
-				byteBuffer.flip();
+				if (measureCostSplit)
+					t1 = System.nanoTime();
 
-				txMessageHandle.setBinaryAttachment(byteBuffer);
+				txMessageHandle.setBinaryAttachment(payload);
 
 			}
 
+			long t2 = measureCostSplit ? System.nanoTime() : 0;
+
 			rc = sessionHandle.send(txMessageHandle);
+
+			if (measureCostSplit) {
+				long t3 = System.nanoTime();
+				prepareNanos += t1 - t0;
+				attachNanos += t2 - t1;
+				sendNanos += t3 - t2;
+			}
 		}
 
 		long elapsedMs = System.currentTimeMillis() - startTime;
@@ -173,6 +603,365 @@ public class PerfPubSub extends AbstractSample {
 		System.out.printf("%nSent %d messages in %f seconds = %f msg/second%n",
 				numOfMessages, elapsedMs / 1000.0, txRate * 1000);
 
+		if (measureCostSplit) {
+			printCostSplit(numOfMessages, prepareNanos, attachNanos, sendNanos);
+		}
+
+		if (pacer != null) {
+			System.out.printf(
+					"%d messages were sent behind schedule, worst lag %.2f us%n",
+					pacer.getLateCount(), pacer.getMaxLagNanos() / 1000.0);
+		}
+
+		// Allocation accounting covers the context thread receiving the
+		// looped back messages as well
+		if (measureLatency || trackReceived || allocationMeter != null
+				|| handoff != null) {
+			adapter.awaitMessages(numOfMessages, 2000);
+			System.out.printf("%nReceived %d of %d messages back%n",
+					adapter.getMessageCount(), numOfMessages);
+		}
+
+		if (allocationMeter != null)
+			allocationMeter.stop(numOfMessages);
+
+		if (handoff != null)
+			stopWorkers();
+
+		if (rxReporter != null)
+			rxReporter.interrupt();
+
+		if (sequenceTracker != null) {
+			sequenceTracker.finish(numOfMessages - 1);
+			sequenceTracker.printReport(numOfMessages);
+		}
+
+		if (measureLatency) {
+			latencyHistogram.printPercentiles("Round trip latency");
+		}
+
+		if (allocationMeter != null)
+			allocationMeter.printAndCheck();
+
+	}
+
+	/**
+	 * Starts the workers the context thread hands the received messages off
+	 * to, each with a latency histogram of its own.
+	 */
+	private void startWorkers(SequenceTracker sequenceTracker) {
+		handoff = new HandoffRingBuffer<MessageSlot>(ringSize,
+				MessageSlot.factory(Math.max(msgSize, 1)), workerWaitStrategy);
+		receiveWorkers = new ReceiveWorker[numOfWorkers];
+		for (int i = 0; i < numOfWorkers; i++) {
+			receiveWorkers[i] = new ReceiveWorker(
+					measureLatency ? new LatencyHistogram() : null,
+					sequenceTracker, workNanos);
+			if (measureLatency && monitorMemory)
+				receiveWorkers[i].setOutlierMonitor(monitor,
+						outlierThresholdMicros * 1000);
+		}
+		handoff.start("ReceiveWorker", receiveWorkers);
+		System.out.printf(
+				"Handing received messages off to %d workers, %d slots, %s wait%n",
+				numOfWorkers, ringSize, workerWaitStrategy);
+	}
+
+	/**
+	 * Lets the workers finish the handed off messages, then merges their
+	 * latencies and reports the handoff.
+	 */
+	private void stopWorkers() {
+		if (!handoff.drainAndStop(5000))
+			System.out.println("The workers did not process every message");
+		if (latencyHistogram != null) {
+			for (int i = 0; i < receiveWorkers.length; i++)
+				latencyHistogram.add(receiveWorkers[i].histogram);
+		}
+		handoff.printReport();
+	}
+
+	/**
+	 * Subscribes to {@link #subscriptionCount} topics of the form
+	 * <code>SAMPLE_TOPIC/subs/N</code> through a {@link SubscriptionManager},
+	 * fed with the session events by the adapter for the time of the setup.
+	 */
+	private void addBulkSubscriptions(CustomEventsAdapter adapter) {
+		String[] topics = new String[subscriptionCount];
+		for (int i = 0; i < subscriptionCount; i++)
+			topics[i] = SampleUtils.SAMPLE_TOPIC + "/subs/" + i;
+
+		System.out.printf("%nAdding %d subscriptions ...%n", subscriptionCount);
+		SubscriptionManager manager = new SubscriptionManager(sessionHandle,
+				subscriptionWindow, subscriptionRetries);
+		adapter.setSubscriptionManager(manager);
+		try {
+			manager.subscribeAll(topics, 10000);
+		} finally {
+			adapter.setSubscriptionManager(null);
+		}
+		manager.printReport();
+		if (manager.getConfirmedCount() != subscriptionCount) {
+			throw new IllegalStateException(subscriptionCount
+					+ " subscriptions were expected, ["
+					+ manager.getConfirmedCount() + "] were confirmed");
+		}
+	}
+
+	private TopicUniverse newTopicUniverse(int cardinality) {
+		return new TopicUniverse(INSTRUMENT_TOPIC_PREFIX, cardinality,
+				keyDistribution, zipfExponent,
+				SolEnum.SolConstants.MAX_TOPIC_SIZE);
+	}
+
+	/**
+	 * @return keys drawn up front, a power of two of them so that the send
+	 *         loop can cycle through them with a mask
+	 */
+	private int[] newKeySequence(TopicUniverse universe) {
+		int length = 1;
+		while (length < numOfMessages && length < MAX_KEY_SEQUENCE)
+			length <<= 1;
+		int[] keys = new int[length];
+		universe.fillKeys(keys);
+		return keys;
+	}
+
+	/**
+	 * Publishes {@link #numOfMessages} to the fixed native destination and
+	 * over each topic cardinality of the sweep, once as a warmup, then in
+	 * {@link #TOPIC_SWEEP_ROUNDS} rounds, each starting one configuration
+	 * further, and reports the mean throughput of each configuration.
+	 */
+	private void runTopicSweep() {
+		System.out.printf(
+				"%nTopic cardinality sweep, %d messages of size %d per run, %s keys, %d rounds after a warmup%n",
+				numOfMessages, msgSize, keyDistribution, TOPIC_SWEEP_ROUNDS);
+
+		// The fixed native destination first, with no universe
+		int configurations = topicCardinalitySweep.length + 1;
+		TopicUniverse[] universes = new TopicUniverse[configurations];
+		Topic[] mutableTopics = new Topic[configurations];
+		int[][] keys = new int[configurations][];
+		for (int c = 1; c < configurations; c++) {
+			universes[c] = newTopicUniverse(topicCardinalitySweep[c - 1]);
+			mutableTopics[c] = Solclient.Allocator
+					.newMutableTopic(universes[c].getTopicBuffer());
+			keys[c] = newKeySequence(universes[c]);
+		}
+
+		for (int c = 0; c < configurations; c++)
+			publishOverTopics(universes[c], mutableTopics[c], keys[c]);
+
+		double[] rates = new double[configurations];
+		for (int round = 0; round < TOPIC_SWEEP_ROUNDS; round++) {
+			for (int r = 0; r < configurations; r++) {
+				int c = (round + r) % configurations;
+				rates[c] += publishOverTopics(universes[c], mutableTopics[c],
+						keys[c]) / TOPIC_SWEEP_ROUNDS;
+			}
+		}
+
+		System.out.printf("%12s topics: %14.1f msg/second%n", "fixed",
+				rates[0]);
+		for (int c = 1; c < configurations; c++) {
+			System.out.printf(
+					"%12d topics: %14.1f msg/second (%.1f%% of fixed)%n",
+					topicCardinalitySweep[c - 1], rates[c], 100 * rates[c]
+							/ rates[0]);
+		}
+	}
+
+	/**
+	 * @param universe
+	 *            null to publish to the fixed native destination
+	 * @return the publishing rate in msg/second
+	 */
+	private double publishOverTopics(TopicUniverse universe,
+			Topic mutableTopic, int[] keys) {
+		int keyMask = keys == null ? 0 : keys.length - 1;
+		long start = System.nanoTime();
+		for (int i = 0; i < numOfMessages; i++) {
+			if (universe != null) {
+				universe.select(keys[i & keyMask]);
+				txMessageHandle.setDestination(mutableTopic);
+			} else {
+				txMessageHandle.setDestination(topicHandle);
+			}
+			if (msgSize > 0)
+				txMessageHandle.setBinaryAttachment(payloadPool.next(i));
+			sessionHandle.send(txMessageHandle);
+		}
+		return numOfMessages / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Publishes {@link #numOfMessages} one send at a time, then in batches of
+	 * each size of the sweep, and reports the throughput of each run.
+	 */
+	private void runBatchSweep() {
+		System.out.printf(
+				"%nBatch size sweep, %d messages of size %d per run%n",
+				numOfMessages, msgSize);
+
+		double singleRate = publishOverTopics(null, null, null);
+		System.out.printf("%12s batch: %14.1f msg/second%n", "no",
+				singleRate);
+
+		for (int b = 0; b < batchSizeSweep.length; b++) {
+			BatchPublisher batch = new BatchPublisher(batchSizeSweep[b],
+					SolEnum.MessageDeliveryMode.DIRECT);
+			try {
+				MessageHandle[] messages = batch.getMessages();
+				for (int i = 0; i < messages.length; i++)
+					messages[i].setDestination(topicHandle);
+
+				double rate = publishInBatches(batch);
+				System.out.printf(
+						"%12d batch: %14.1f msg/second (%.1f%% of no batch)%n",
+						batch.getBatchSize(), rate, 100 * rate / singleRate);
+				if (batch.getFailedCount() > 0)
+					System.out.printf("%12s %d sends failed%n", "",
+							batch.getFailedCount());
+			} finally {
+				batch.destroy();
+			}
+		}
+	}
+
+	/**
+	 * @return the publishing rate in msg/second
+	 */
+	private double publishInBatches(BatchPublisher batch) {
+		long start = System.nanoTime();
+		for (int i = 0; i < numOfMessages; i++) {
+			MessageHandle message = batch.next();
+			if (msgSize > 0)
+				message.setBinaryAttachment(payloadPool.next(i));
+			if (batch.isFull())
+				batch.flush(sessionHandle);
+		}
+		batch.flush(sessionHandle);
+		return numOfMessages / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * @return the comma separated values of a sweep option
+	 */
+	static int[] parseSweep(String value) {
+		String[] values = value.split(",");
+		int[] sweep = new int[values.length];
+		for (int i = 0; i < values.length; i++)
+			sweep[i] = Integer.parseInt(values[i].trim());
+		return sweep;
+	}
+
+	/**
+	 * Publishes from {@link #numOfLanes} lanes in parallel, each lane sends
+	 * {@link #numOfMessages}.
+	 */
+	private void runLanes(SessionConfiguration config) {
+
+		lanes = new PublisherLane[numOfLanes];
+		CountDownLatch startSignal = new CountDownLatch(1);
+		CountDownLatch doneSignal = new CountDownLatch(numOfLanes);
+
+		for (int l = 0; l < numOfLanes; l++) {
+			lanes[l] = new PublisherLane(l, startSignal, doneSignal);
+			lanes[l].connect(getSessionProps(config, 0));
+		}
+
+		System.out.printf(
+				"%nWill publish %d messages of size %d in a %s ByteBuffer on each of %d lanes%n",
+				numOfMessages, msgSize, useDirectByteBuffer ? "DirectAllocated"
+						: "ArrayBacked", numOfLanes);
+
+		Thread[] threads = new Thread[numOfLanes];
+		for (int l = 0; l < numOfLanes; l++) {
+			threads[l] = new Thread(lanes[l], "PublisherLane-" + l);
+			threads[l].start();
+		}
+
+		// Release all the lanes at once
+		startSignal.countDown();
+		try {
+			doneSignal.await();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		long firstStart = Long.MAX_VALUE;
+		long lastEnd = Long.MIN_VALUE;
+		long totalSent = 0;
+		System.out.println();
+		for (int l = 0; l < numOfLanes; l++) {
+			PublisherLane lane = lanes[l];
+			if (lane.failure != null)
+				throw new IllegalStateException("Lane " + l + " failed",
+						lane.failure);
+			double seconds = (lane.endNanos - lane.startNanos) / 1e9;
+			System.out.printf(
+					"Lane %d sent %d messages in %f seconds = %f msg/second%n",
+					l, lane.sentCount, seconds, lane.sentCount / seconds);
+			firstStart = Math.min(firstStart, lane.startNanos);
+			lastEnd = Math.max(lastEnd, lane.endNanos);
+			totalSent += lane.sentCount;
+		}
+
+		double seconds = (lastEnd - firstStart) / 1e9;
+		double rate = totalSent / seconds;
+		System.out.printf(
+				"%nAggregate: sent %d messages in %f seconds = %f msg/second, %f Mbit/second of payload%n",
+				totalSent, seconds, rate, rate * msgSize * 8 / 1e6);
+	}
+
+	/**
+	 * Prints the receive rate every second until interrupted, the counters are
+	 * read without synchronization so the figures are approximate.
+	 */
+	private Thread startRxReporter(final SequenceTracker tracker) {
+		Thread reporter = new Thread("RxReporter") {
+			public void run() {
+				long lastCount = 0;
+				long lastBytes = 0;
+				while (!isInterrupted()) {
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						break;
+					}
+					long count = tracker.getReceivedCount();
+					long bytes = tracker.getReceivedBytes();
+					System.out.printf(
+							"rx %d msg/second, %d bytes/second, lost so far %d%n",
+							count - lastCount, bytes - lastBytes,
+							tracker.getLostCount());
+					lastCount = count;
+					lastBytes = bytes;
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+		return reporter;
+	}
+
+	/**
+	 * Prints the average time per message spent preparing the payload, in
+	 * setBinaryAttachment() and in send(). Timing each step costs a few
+	 * System.nanoTime() calls per message, which inflates the total slightly.
+	 */
+	static void printCostSplit(long count, long prepareNanos,
+			long attachNanos, long sendNanos) {
+		if (count == 0)
+			return;
+		double total = prepareNanos + attachNanos + sendNanos;
+		System.out
+				.printf("Cost split per message: prepare %.1f ns (%.1f%%), setBinaryAttachment %.1f ns (%.1f%%), send %.1f ns (%.1f%%)%n",
+						(double) prepareNanos / count, 100 * prepareNanos
+								/ total, (double) attachNanos / count,
+						100 * attachNanos / total, (double) sendNanos
+								/ count, 100 * sendNanos / total);
 	}
 
 	/**
@@ -184,29 +973,367 @@ public class PerfPubSub extends AbstractSample {
 		 * Cleanup
 		 *************************************************************************/
 
-		finish_DestroyHandle(txMessageHandle, "messageHandle");
+		if (lanes != null) {
+			for (int l = 0; l < lanes.length; l++) {
+				if (lanes[l] != null)
+					lanes[l].destroy();
+			}
+		}
 
-		finish_Disconnect(sessionHandle);
+		// The lanes own their sessions, the main one is only created without
+		if (lanes == null) {
+			finish_DestroyHandle(txMessageHandle, "messageHandle");
 
-		finish_DestroyHandle(sessionHandle, "sessionHandle");
+			finish_Disconnect(sessionHandle);
 
-		finish_DestroyHandle(contextHandle, "contextHandle");
+			finish_DestroyHandle(sessionHandle, "sessionHandle");
+
+			finish_DestroyHandle(contextHandle, "contextHandle");
+		}
 
 		finish_Solclient();
 
 	}
 
+	/**
+	 * The benchmark workload: publishes the given number of messages as fast as
+	 * possible on the main session, with a payload pool built for every size.
+	 */
+	class PublishWorkload implements BenchmarkRunner.Workload {
+
+		private PayloadPool payloads;
+
+		@Override
+		public void setUp(int size) {
+			payloads = new PayloadPool(payloadMode, payloadPoolSize, size,
+					useDirectByteBuffer);
+			// Start from a fresh message, so no attachment is left over from
+			// a previous size
+			finish_DestroyHandle(txMessageHandle, "messageHandle");
+			int rc = Solclient.createMessageForHandle(txMessageHandle);
+			assertReturnCode("Solclient.createMessage()", rc,
+					SolEnum.ReturnCode.OK);
+		}
+
+		@Override
+		public long run(int size, int count) {
+			long sent = 0;
+			for (int i = 0; i < count; i++) {
+				txMessageHandle.setDestination(topicHandle);
+				if (size > 0)
+					txMessageHandle.setBinaryAttachment(payloads.next(i));
+				if (sessionHandle.send(txMessageHandle) == SolEnum.ReturnCode.OK)
+					sent++;
+			}
+			return sent;
+		}
+	}
+
+	/**
+	 * One publishing lane: a context, a session and a thread of its own, which
+	 * reuses the same message, native destination and buffer for every send.
+	 */
+	class PublisherLane implements Runnable {
+
+		final int index;
+		final ContextHandle laneContextHandle = Solclient.Allocator
+				.newContextHandle();
+		final SessionHandle laneSessionHandle = Solclient.Allocator
+				.newSessionHandle();
+		final MessageHandle laneMessageHandle = Solclient.Allocator
+				.newMessageHandle();
+		final NativeDestinationHandle laneTopicHandle = Solclient.Allocator
+				.newNativeDestinationHandle();
+		final PayloadPool lanePayloads;
+		final CountDownLatch startSignal;
+		final CountDownLatch doneSignal;
+
+		volatile long startNanos;
+		volatile long endNanos;
+		volatile long sentCount;
+		volatile Throwable failure;
+
+		PublisherLane(int index, CountDownLatch startSignal,
+				CountDownLatch doneSignal) {
+			this.index = index;
+			this.startSignal = startSignal;
+			this.doneSignal = doneSignal;
+			this.lanePayloads = new PayloadPool(payloadMode, payloadPoolSize,
+					msgSize, useDirectByteBuffer);
+		}
+
+		void connect(String[] sessionProps) {
+			int rc = Solclient.createContextForHandle(laneContextHandle,
+					new String[0]);
+			assertReturnCode("Solclient.createContext() lane " + index, rc,
+					SolEnum.ReturnCode.OK);
+
+			CustomEventsAdapter adapter = new CustomEventsAdapter();
+			rc = laneContextHandle.createSessionForHandle(laneSessionHandle,
+					sessionProps, adapter, adapter);
+			assertReturnCode("contextHandle.createSession() lane " + index,
+					rc, SolEnum.ReturnCode.OK);
+
+			rc = laneSessionHandle.connect();
+			assertReturnCode("sessionHandle.connect() lane " + index, rc,
+					SolEnum.ReturnCode.OK);
+
+			rc = Solclient.createMessageForHandle(laneMessageHandle);
+			assertReturnCode("Solclient.createMessage() lane " + index, rc,
+					SolEnum.ReturnCode.OK);
+
+			Topic laneTopic = Solclient.Allocator
+					.newTopic(SampleUtils.SAMPLE_TOPIC + "/lane" + index);
+			rc = Solclient.createNativeDestinationForHandle(laneTopicHandle,
+					laneTopic);
+			assertReturnCode("Solclient.createNativeDestination() lane "
+					+ index, rc, SolEnum.ReturnCode.OK);
+		}
+
+		@Override
+		public void run() {
+			try {
+				RatePacer pacer = null;
+				if (targetRate > 0)
+					pacer = new RatePacer(targetRate, waitStrategy);
+
+				startSignal.await();
+
+				startNanos = System.nanoTime();
+				if (pacer != null)
+					pacer.start();
+
+				long sent = 0;
+				for (int i = 0; i < numOfMessages; i++) {
+					if (pacer != null)
+						pacer.awaitSlot(i);
+
+					laneMessageHandle.setDestination(laneTopicHandle);
+
+					if (msgSize > 0) {
+						laneMessageHandle.setBinaryAttachment(lanePayloads
+								.next(i));
+					}
+
+					if (laneSessionHandle.send(laneMessageHandle) == SolEnum.ReturnCode.OK)
+						sent++;
+				}
+				endNanos = System.nanoTime();
+				sentCount = sent;
+			} catch (Throwable t) {
+				failure = t;
+			} finally {
+				doneSignal.countDown();
+			}
+		}
+
+		void destroy() {
+			finish_DestroyHandle(laneMessageHandle, "lane " + index
+					+ " messageHandle");
+			finish_DestroyHandle(laneTopicHandle, "lane " + index
+					+ " topicHandle");
+			finish_Disconnect(laneSessionHandle);
+			finish_DestroyHandle(laneSessionHandle, "lane " + index
+					+ " sessionHandle");
+			finish_DestroyHandle(laneContextHandle, "lane " + index
+					+ " contextHandle");
+		}
+	}
+
 	static class CustomEventsAdapter implements MessageCallback,
 			SessionEventCallback {
 
+		private final LatencyHistogram histogram;
+		private final SequenceTracker tracker;
+		private final ByteBuffer rxContent;
+		private final AllocationMeter allocationMeter;
+		private Monitor outlierMonitor;
+		private long outlierThresholdNanos;
+		private volatile long messageCount = 0;
+		private volatile SubscriptionManager subscriptionManager;
+		private HandoffRingBuffer<MessageSlot> handoff;
+
+		CustomEventsAdapter() {
+			this(null, null, null, null);
+		}
+
+		/**
+		 * @param histogram
+		 *            records the round trip of every received message, may be
+		 *            null when not measuring latency
+		 * @param tracker
+		 *            accounts for the sequence of every received message, may
+		 *            be null
+		 * @param rxContent
+		 *            a buffer large enough for the whole binary attachment, may
+		 *            be null when the content is not looked at
+		 * @param allocationMeter
+		 *            told about the context thread, may be null
+		 */
+		CustomEventsAdapter(LatencyHistogram histogram,
+				SequenceTracker tracker, ByteBuffer rxContent,
+				AllocationMeter allocationMeter) {
+			this.histogram = histogram;
+			this.tracker = tracker;
+			this.rxContent = rxContent;
+			this.allocationMeter = allocationMeter;
+		}
+
+		/**
+		 * Reports the latencies above thresholdNanos to the monitor, to be
+		 * correlated with GC pauses. Must be called before messages arrive.
+		 */
+		void setOutlierMonitor(Monitor monitor, long thresholdNanos) {
+			this.outlierMonitor = monitor;
+			this.outlierThresholdNanos = thresholdNanos;
+		}
+
+		/**
+		 * Copies every received message into a slot of the ring for the
+		 * workers instead of looking at it on the context thread. Must be
+		 * called before messages arrive.
+		 */
+		void setHandoff(HandoffRingBuffer<MessageSlot> handoff) {
+			this.handoff = handoff;
+		}
+
+		/**
+		 * Hands the session events to the manager while it subscribes, null
+		 * to stop.
+		 */
+		void setSubscriptionManager(SubscriptionManager manager) {
+			this.subscriptionManager = manager;
+		}
+
 		@Override
 		public void onEvent(SessionHandle sessionHandle) {
+			if (allocationMeter != null)
+				allocationMeter.onCallback();
+			SubscriptionManager manager = subscriptionManager;
+			if (manager != null)
+				manager.onSessionEvent(sessionHandle.getSessionEvent());
 		}
 
 		@Override
 		public void onMessage(Handle handle) {
+			if (allocationMeter != null)
+				allocationMeter.onCallback();
+
+			if (handoff != null) {
+				long sequence = handoff.next();
+				handoff.get(sequence).copyFrom(
+						((MessageSupport) handle).getRxMessage());
+				handoff.publish(sequence);
+				messageCount++;
+				return;
+			}
+
+			if (rxContent == null) {
+				messageCount++;
+				return;
+			}
+
+			MessageHandle rxMessage = ((MessageSupport) handle).getRxMessage();
+
+			rxContent.clear();
+			rxMessage.getBinaryAttachment(rxContent);
+			rxContent.flip();
+
+			int size = rxContent.remaining();
+			if (tracker != null && size >= 4) {
+				tracker.onReceive(rxContent.getInt(SEQUENCE_OFFSET), size);
+			}
+			if (histogram != null && size >= LATENCY_HEADER_SIZE) {
+				long latency = System.nanoTime()
+						- rxContent.getLong(TIMESTAMP_OFFSET);
+				histogram.record(latency);
+				if (outlierMonitor != null && latency > outlierThresholdNanos)
+					outlierMonitor.recordOutlier(System.currentTimeMillis(),
+							latency);
+			}
+			messageCount++;
+		}
+
+		public long getMessageCount() {
+			return messageCount;
 		}
 
+		/**
+		 * Waits until the expected number of messages came back, or until
+		 * nothing was received for idleTimeoutMs (Direct messages may be
+		 * discarded).
+		 */
+		public void awaitMessages(long expected, long idleTimeoutMs) {
+			ProgressWait.await(new ProgressWait.Progress() {
+				@Override
+				public long get() {
+					return messageCount;
+				}
+			}, expected, idleTimeoutMs, TimeUnit.MILLISECONDS.toNanos(10));
+		}
+
+	}
+
+	/**
+	 * Processes the handed off messages on a worker thread: records the round
+	 * trip latency, accounts for the sequence and keeps busy for the
+	 * configured work time.
+	 */
+	static class ReceiveWorker implements HandoffRingBuffer.Handler<MessageSlot> {
+
+		final LatencyHistogram histogram;
+		private final SequenceTracker tracker;
+		private final long workNanos;
+		private Monitor outlierMonitor;
+		private long outlierThresholdNanos;
+
+		/**
+		 * @param histogram
+		 *            owned by this worker, may be null
+		 * @param tracker
+		 *            may be null, only given to a single worker
+		 */
+		ReceiveWorker(LatencyHistogram histogram, SequenceTracker tracker,
+				long workNanos) {
+			this.histogram = histogram;
+			this.tracker = tracker;
+			this.workNanos = workNanos;
+		}
+
+		void setOutlierMonitor(Monitor monitor, long thresholdNanos) {
+			this.outlierMonitor = monitor;
+			this.outlierThresholdNanos = thresholdNanos;
+		}
+
+		@Override
+		public void onSlot(MessageSlot slot, long sequence) {
+			ByteBuffer payload = slot.getPayload();
+			int size = payload.remaining();
+			if (tracker != null && size >= 4) {
+				tracker.onReceive(payload.getInt(SEQUENCE_OFFSET), size);
+			}
+			if (histogram != null && size >= LATENCY_HEADER_SIZE) {
+				long latency = System.nanoTime()
+						- payload.getLong(TIMESTAMP_OFFSET);
+				histogram.record(latency);
+				if (outlierMonitor != null && latency > outlierThresholdNanos)
+					outlierMonitor.recordOutlier(System.currentTimeMillis(),
+							latency);
+			}
+			if (workNanos > 0)
+				simulateWork(workNanos);
+		}
+	}
+
+	/**
+	 * Keeps the calling thread busy for the given time, as a handler doing
+	 * real work would be.
+	 */
+	static void simulateWork(long nanos) {
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end) {
+			// Busy
+		}
 	}
 
 /**
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for a count, such as the messages received so far, to reach a target,
+ * giving up once it has not moved for an idle timeout rather than after a
+ * fixed time, so that a slow but progressing run is never cut short.
+ */
+public final class ProgressWait {
+
+	/**
+	 * The count being waited on, read from the waiting thread.
+	 */
+	public interface Progress {
+		long get();
+	}
+
+	private ProgressWait() {
+	}
+
+	/**
+	 * Polls the progress every pollNanos, or yields between polls when
+	 * pollNanos is 0.
+	 *
+	 * @return true when the progress reached the target, false when it did
+	 *         not move for idleTimeoutMs or the thread was interrupted
+	 */
+	public static boolean await(Progress progress, long target,
+			long idleTimeoutMs, long pollNanos) {
+		long lastCount = -1;
+		long lastProgress = System.currentTimeMillis();
+		for (;;) {
+			long count = progress.get();
+			if (count >= target)
+				return true;
+			long now = System.currentTimeMillis();
+			if (count != lastCount) {
+				lastCount = count;
+				lastProgress = now;
+			} else if (now - lastProgress > idleTimeoutMs) {
+				return false;
+			}
+			if (pollNanos > 0)
+				LockSupport.parkNanos(pollNanos);
+			else
+				Thread.yield();
+			if (Thread.currentThread().isInterrupted())
+				return false;
+		}
+	}
+
+}
@@ -4,6 +4,8 @@
  */
 package com.solace.samples.javarto.features;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
@@ -27,6 +29,11 @@ import com.solacesystems.solclientj.core.resource.Queue;
  * <li>Provisioning a durable Queue on the Appliance.
  * <li>Binding a Flow to the provisioned Queue and receiving messages from it.
  * <li>Publishing messages to the provisioned Queue.
+ * <li>With -keep, keeping the received messages in a bounded pool of handles
+ * (-kp) until the main thread processes them, and what happens to the
+ * messages received while the pool is full (-ko): DROP frees them, STOP_FLOW
+ * stops the Flow until half the pool is processed, so the Queue holds them
+ * meanwhile.
  * </ul>
  * 
  * Sample Requirements:
@@ -59,6 +66,7 @@ public class QueueProvision extends AbstractSample {
 		String usage = ArgumentsParser.getCommonUsage(secureSession);
 		usage += "This sample:\n";
 		usage += "\t[-n number]\t Number of messages to publish, default: 1\n";
+		usage += "\t[-keep]\t Keep the received messages, -kp at most with the -ko policy beyond, until the main thread processes them once all are published\n";
 		System.out.println(usage);
 		finish(1);
 	}
@@ -75,6 +83,8 @@ public class QueueProvision extends AbstractSample {
 			// Determine the numberOfMessageToPublish
 			int numberOfMessageToPublish = 10;
 
+			keepRxMsgs = config.getArgBag().containsKey("-keep");
+
 			String strCount = config.getArgBag().get("-n");
 			if (strCount != null) {
 				try {
@@ -199,9 +209,14 @@ public class QueueProvision extends AbstractSample {
 				}
 			}
 
-			try {
-				Thread.sleep(2000);
-			} catch (InterruptedException ie) {
+			if (keepRxMsgs) {
+				processKeptMessages(messageCallback, numberOfMessageToPublish);
+				print(messageCallback.getRxMessagePool().toString());
+			} else {
+				try {
+					Thread.sleep(2000);
+				} catch (InterruptedException ie) {
+				}
 			}
 
 			assertExpectedCount("Received Message Count",
@@ -215,6 +230,41 @@ public class QueueProvision extends AbstractSample {
 
 	}
 
+	/**
+	 * Processes, here releases, the kept messages from the main thread, then
+	 * waits for the next message, until the expected number of messages was
+	 * received or none came for 2 seconds. Releasing half the pool starts a
+	 * Flow stopped by STOP_FLOW again.
+	 */
+	private void processKeptMessages(
+			final MessageCallbackSample messageCallback, int expected) {
+		ProgressWait.Progress received = new ProgressWait.Progress() {
+			@Override
+			public long get() {
+				return messageCallback.getMessageCount();
+			}
+		};
+		long count;
+		while ((count = received.get()) < expected) {
+			releaseKeptMessages(messageCallback);
+			if (!ProgressWait.await(received, count + 1, 2000,
+					TimeUnit.MILLISECONDS.toNanos(10)))
+				break;
+		}
+		releaseKeptMessages(messageCallback);
+	}
+
+	private static void releaseKeptMessages(
+			MessageCallbackSample messageCallback) {
+		List<MessageHandle> kept = messageCallback.getRxMessages();
+		MessageHandle[] processed;
+		synchronized (kept) {
+			processed = kept.toArray(new MessageHandle[kept.size()]);
+		}
+		for (int i = 0; i < processed.length; i++)
+			messageCallback.releaseRxMessage(processed[i]);
+	}
+
 	/**
 	 * Invoked when the sample finishes
 	 */
@@ -5,6 +5,8 @@
 package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
@@ -40,6 +42,26 @@ import com.solacesystems.solclientj.core.resource.Topic;
  *  |-------------------|  <--ReplyToTopic---- |------------------|
  * </pre>
  * 
+ * With -workers, the requests are served by a {@link ReplierEngine}: the
+ * context thread hands each request to a pool of worker threads which reply
+ * concurrently. -n requests are served for each worker count of the sweep,
+ * each taking the -st service time, and the replies per second of each worker
+ * count are reported. Drive it with enough requests in flight to keep the
+ * workers busy, for instance RRDirectRequester -depth 256,256,256,256 -n 10000
+ * against RRDirectReplier -workers 1,2,4,8 -n 10000 -st 100.
+ * 
+ * With -slow, a share of the requests is held for a while before the reply,
+ * holding up the requests behind them too, as a slow replier would. With
+ * -unordered, the requests may come in any order, as the hedged requests of
+ * RRDirectRequester -hedge do.
+ * 
+ * With -cache, the replies are memoized in a {@link ReplyCache} keyed by the
+ * request payload: a repeated request is answered from the cached bytes,
+ * without taking the -st service time again. The hit ratio and the latency of
+ * hits and misses are reported once -n requests were served. For instance,
+ * RRDirectReplier -cache 1024 -st 200 -unordered -n 10000 against
+ * RRDirectRequester -depth 1 -lookups 100 -n 10000.
+ * 
  * <strong>This sample illustrates the ease of use of concepts, and may not be
  * GC-free.<br>
  * See Perf* samples for GC-free examples. </strong>
@@ -61,6 +83,14 @@ public class RRDirectReplier extends AbstractSample {
 
 	private static boolean quit = false;
 
+	private int[] workerSweep;
+	private long serviceMicros = 0;
+	private boolean sleepService = false;
+	private double slowPercent = 0;
+	private long slowMillis = 0;
+	private long cacheKiloBytes = 0;
+	private long cacheTtlMillis = 0;
+
 	@Override
 	protected void printUsage(boolean secureSession) {
 		String usage = ArgumentsParser.getCommonUsage(secureSession);
@@ -68,6 +98,13 @@ public class RRDirectReplier extends AbstractSample {
 		usage += "\t[-t topic]\t Topic, default:" + SampleUtils.SAMPLE_TOPIC
 				+ "\n";
 		usage += "\t[-n number]\t Number of request messages to expect, default: 5\n";
+		usage += "\t[-workers w1,w2,...]\t Reply on that many worker threads, serving -n requests with each worker count in turn, and report the replies per second of each\n";
+		usage += "\t[-st micros]\t Service time of a request, default: 0\n";
+		usage += "\t[-sleep]\t Sleep for the service time rather than spin\n";
+		usage += "\t[-slow percent,ms]\t Hold that percentage of the requests for ms before replying\n";
+		usage += "\t[-unordered]\t Accept the requests in any order\n";
+		usage += "\t[-cache kb]\t Memoize the replies in an off-heap cache of that many kilobytes\n";
+		usage += "\t[-ttl ms]\t Time to live of a cached reply, default: for ever\n";
 		System.out.println(usage);
 		finish(1);
 	}
@@ -97,6 +134,37 @@ public class RRDirectReplier extends AbstractSample {
 			}
 		}
 
+		if (config.getArgBag().containsKey("-workers")) {
+			workerSweep = PerfPubSub.parseSweep(config.getArgBag().get("-workers"));
+		}
+		if (config.getArgBag().containsKey("-st")) {
+			serviceMicros = Long.parseLong(config.getArgBag().get("-st"));
+		}
+		sleepService = config.getArgBag().containsKey("-sleep");
+		if (config.getArgBag().containsKey("-slow")) {
+			String[] values = config.getArgBag().get("-slow").split(",");
+			if (values.length != 2)
+				printUsage(config instanceof SecureSessionConfiguration);
+			slowPercent = Double.parseDouble(values[0].trim());
+			slowMillis = Long.parseLong(values[1].trim());
+		}
+		if (config.getArgBag().containsKey("-cache")) {
+			cacheKiloBytes = Long.parseLong(config.getArgBag().get("-cache"));
+		}
+		if (config.getArgBag().containsKey("-ttl")) {
+			cacheTtlMillis = Long.parseLong(config.getArgBag().get("-ttl"));
+		}
+		if (workerSweep != null) {
+			// Only the single-threaded replier caches, delays or reorders
+			String[] singleThreadedOnly = { "-cache", "-ttl", "-slow",
+					"-unordered" };
+			for (String option : singleThreadedOnly) {
+				if (config.getArgBag().containsKey(option))
+					throw new IllegalArgumentException(option
+							+ " is not available with -workers");
+			}
+		}
+
 		// Init
 		print(" Initializing the Java RTO Messaging API...");
 		int rc = Solclient.init(new String[0]);
@@ -150,8 +218,30 @@ public class RRDirectReplier extends AbstractSample {
 		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.DISABLE;
 
 		SessionEventCallback sessionEventCallback = getDefaultSessionEventCallback();
-		ReplierMessageReceivedCallback replierMessageReceivedCallback = new ReplierMessageReceivedCallback(
-				numberOfRequestMessages, destinationName);
+		MessageCallback replierMessageReceivedCallback;
+		ReplierEngine.Sweep workerSweepCallback = null;
+		ReplierMessageReceivedCallback replierCallback = null;
+		if (workerSweep != null) {
+			workerSweepCallback = new ReplierEngine.Sweep(sessionHandle, false,
+					workerSweep, MessageHandlePool.DEFAULT_CAPACITY,
+					numberOfRequestMessages, new ReplierEngine.EchoService(
+							TimeUnit.MICROSECONDS.toNanos(serviceMicros),
+							sleepService));
+			replierMessageReceivedCallback = workerSweepCallback;
+		} else {
+			ReplierMessageReceivedCallback callback = new ReplierMessageReceivedCallback(
+					numberOfRequestMessages, destinationName);
+			callback.setUnordered(config.getArgBag().containsKey("-unordered"));
+			callback.setSlowReplies(slowPercent, slowMillis);
+			callback.setServiceTime(
+					TimeUnit.MICROSECONDS.toNanos(serviceMicros), sleepService);
+			if (cacheKiloBytes > 0)
+				callback.setReplyCache(new ReplyCache(cacheKiloBytes * 1024,
+						rxContent.capacity() + txContent.capacity(),
+						TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis)));
+			replierMessageReceivedCallback = callback;
+			replierCallback = callback;
+		}
 
 		/* Create the Session. */
 		rc = contextHandle.createSessionForHandle(sessionHandle, sessionProps,
@@ -173,6 +263,14 @@ public class RRDirectReplier extends AbstractSample {
 		assertReturnCode("sessionHandle.subscribe() to topic "
 				+ destinationName, rc, SolEnum.ReturnCode.OK);
 
+		if (workerSweepCallback != null) {
+			if (!workerSweepCallback.run("RRDirectReplier", 10000))
+				throw new IllegalStateException(
+						"The worker sweep stopped before every request was replied to");
+			print("Run() DONE");
+			return;
+		}
+
 		/*************************************************************************
 		 * Just wait until interrupted...
 		 *************************************************************************/
@@ -195,6 +293,9 @@ public class RRDirectReplier extends AbstractSample {
 
 		print("Quitting time");
 
+		if (replierCallback != null)
+			replierCallback.printCacheReport();
+
 		print("Run() DONE");
 	}
 
@@ -226,10 +327,59 @@ public class RRDirectReplier extends AbstractSample {
 
 		int expectedMax;
 
+		private boolean unordered = false;
+		private double slowPercent = 0;
+		private long slowMillis = 0;
+		private final Random random = new Random();
+		private long serviceNanos = 0;
+		private boolean sleepService = false;
+		private ReplyCache replyCache;
+		private final LatencyHistogram hitLatency = new LatencyHistogram();
+		private final LatencyHistogram missLatency = new LatencyHistogram();
+
 		public ReplierMessageReceivedCallback(int max, String destination) {
 			expectedMax = max;
 		}
 
+		/**
+		 * @param unordered
+		 *            accept the requests in any order
+		 */
+		public void setUnordered(boolean unordered) {
+			this.unordered = unordered;
+		}
+
+		/**
+		 * Holds that percentage of the requests for millis before replying.
+		 */
+		public void setSlowReplies(double percent, long millis) {
+			this.slowPercent = percent;
+			this.slowMillis = millis;
+		}
+
+		/**
+		 * Takes that time to compute each reply, spinning or sleeping.
+		 */
+		public void setServiceTime(long nanos, boolean sleep) {
+			this.serviceNanos = nanos;
+			this.sleepService = sleep;
+		}
+
+		/**
+		 * Answers the repeated requests from the cache.
+		 */
+		public void setReplyCache(ReplyCache replyCache) {
+			this.replyCache = replyCache;
+		}
+
+		public void printCacheReport() {
+			if (replyCache == null)
+				return;
+			System.out.printf("%n%s%n", replyCache);
+			hitLatency.printPercentiles("Reply latency of cache hits");
+			missLatency.printPercentiles("Reply latency of cache misses");
+		}
+
 		@Override
 		public void onMessage(Handle handle) {
 			try {
@@ -248,13 +398,21 @@ public class RRDirectReplier extends AbstractSample {
 				print("-> RRDirectReplier -> Received request [" + requestInt
 						+ "]");
 
-				if (requestInt != expectedRequestInt) {
+				if (!unordered && requestInt != expectedRequestInt) {
 					throw new IllegalStateException(String.format(
 							"[%d] was expected, got this request instead [%d]",
 							expectedRequestInt, requestInt));
 				}
 				messageCount++;
 
+				if (slowPercent > 0 && random.nextDouble() * 100 < slowPercent) {
+					try {
+						Thread.sleep(slowMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+
 				if (!txMessageHandle.isBound()) {
 					// Allocate the message
 					int rc = Solclient.createMessageForHandle(txMessageHandle);
@@ -267,11 +425,34 @@ public class RRDirectReplier extends AbstractSample {
 
 				txMessageHandle.setDestination(destination);
 
+				long startNanos = System.nanoTime();
+				if (replyCache != null) {
+					rxContent.rewind();
+					ByteBuffer cachedReply = replyCache.lookup(rxContent);
+					if (cachedReply != null) {
+						// Answered straight from the cached bytes
+						txMessageHandle.setBinaryAttachment(cachedReply);
+						print("Sending cached reply [" + requestInt
+								+ "] to [" + destination.getName() + "]");
+						int rc = sessionHandle.sendReply(rxMessage,
+								txMessageHandle);
+						assertReturnCode("sessionHandle.sendReply", rc,
+								SolEnum.ReturnCode.OK);
+						hitLatency.record(System.nanoTime() - startNanos);
+						return;
+					}
+				}
+
+				ReplierEngine.simulateServiceTime(serviceNanos, sleepService);
+
 				// The Use the tx buffer
 				txContent.clear();
 				txContent.putInt(requestInt);
 				txContent.flip();
 
+				if (replyCache != null)
+					replyCache.put(rxContent, txContent);
+
 				txMessageHandle.setBinaryAttachment(txContent);
 
 				print("Sending reply [" + requestInt + "] to ["
@@ -281,6 +462,8 @@ public class RRDirectReplier extends AbstractSample {
 				int rc = sessionHandle.sendReply(rxMessage, txMessageHandle);
 				assertReturnCode("sessionHandle.sendReply", rc,
 						SolEnum.ReturnCode.OK);
+				if (replyCache != null)
+					missLatency.record(System.nanoTime() - startNanos);
 
 			} catch (IllegalStateException ise) {
 				quit = true;
@@ -5,13 +5,20 @@
 package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
 import com.solacesystems.solclientj.core.Solclient;
 import com.solacesystems.solclientj.core.SolclientException;
+import com.solacesystems.solclientj.core.event.MessageCallback;
 import com.solacesystems.solclientj.core.event.SessionEventCallback;
 import com.solacesystems.solclientj.core.handle.ContextHandle;
+import com.solacesystems.solclientj.core.handle.Handle;
 import com.solacesystems.solclientj.core.handle.MessageHandle;
 import com.solacesystems.solclientj.core.handle.SessionHandle;
 import com.solacesystems.solclientj.core.resource.Topic;
@@ -41,6 +48,31 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * GC-free.<br>
  * See Perf* samples for GC-free examples. </strong>
  * 
+ * <p>
+ * Each request above waits for its reply, so no more than one request per
+ * round trip is served. With -depth, the requests go through an
+ * {@link AsyncRequester} instead, which keeps up to that many requests in
+ * flight, correlated by correlation id, with timeouts driven by a
+ * {@link HashedTimingWheel}. -n requests are sent per depth of the sweep, and
+ * the requests per second and reply latency of each depth are reported. The
+ * replier must expect -n times the number of depths.
+ * <p>
+ * With -hedge, each depth is run without hedging, then with each hedge
+ * percentile in turn: a request still without reply after that percentile of
+ * the recent latencies is sent again to the -ht topic, and the first reply
+ * wins. The hedges sent and won are reported next to the latency, to weigh
+ * the extra load against the tail it cuts. For instance, against
+ * RRDirectReplier -t A -slow 1,20 -n 30000 and RRDirectReplier -t B -unordered
+ * -n 30000, run RRDirectRequester -t A -depth 8 -hedge 95,99 -ht B -n 10000.
+ * With -lookups, the requests repeat a few distinct payloads, for a replier
+ * memoizing its replies, RRDirectReplier -cache, to answer from its cache.
+ * <p>
+ * With -sg, each request is published to the repliers of the topic at once,
+ * through a {@link ScatterGatherRequester}, and completes on the first -first
+ * replies, on all -sg of them, or at the -to deadline with the replies which
+ * came by then. -n requests are sent, up to -win of them in flight, and the
+ * completion latency and outcomes are reported.
+ * 
  */
 public class RRDirectRequester extends AbstractSample {
 
@@ -58,6 +90,20 @@ public class RRDirectRequester extends AbstractSample {
 	private ByteBuffer txContent = ByteBuffer.allocateDirect(200);
 	private ByteBuffer rxContent = ByteBuffer.allocateDirect(200);
 
+	private int[] depthSweep;
+	private long requestTimeoutMs = 5000;
+	// The requests of a sweep carry increasing numbers, as the replier expects
+	private int nextRequest = 0;
+	private volatile MessageCallback currentRequester;
+	private double[] hedgePercentiles;
+	private String hedgeTopicName;
+	// With -lookups, the requests repeat that many distinct payloads
+	private int lookupKeys = 0;
+	private final Random lookupRandom = new Random();
+	private int scatterRepliers = 0;
+	private int scatterFirst = 0;
+	private int scatterWindow = 1;
+
 	@Override
 	protected void printUsage(boolean secureSession) {
 		String usage = ArgumentsParser.getCommonUsage(secureSession);
@@ -65,6 +111,15 @@ public class RRDirectRequester extends AbstractSample {
 		usage += "\t[-t topic]\t Topic, default:" + SampleUtils.SAMPLE_TOPIC
 				+ "\n";
 		usage += "\t[-n number]\t Number of request messages to send, default: 5\n";
+		usage += "\t[-depth d1,d2,...]\t Keep up to that many requests in flight, for each depth in turn, and report the requests per second and latency of each\n";
+		usage += "\t[-to ms]\t Timeout of a request with -depth, deadline with -sg, default: "
+				+ requestTimeoutMs + "\n";
+		usage += "\t[-lookups keys]\t With -depth, send that many distinct requests over and over, in random order, as reference data lookups do\n";
+		usage += "\t[-hedge p1,p2,...]\t With -depth, also run each depth hedging the requests without reply after each latency percentile in turn\n";
+		usage += "\t[-ht topic]\t The alternate topic the hedged requests are sent to\n";
+		usage += "\t[-sg repliers]\t Scatter each request to that many repliers of the topic and gather their replies\n";
+		usage += "\t[-first k]\t With -sg, complete a request on its first k replies, default: all of them\n";
+		usage += "\t[-win size]\t With -sg, number of requests in flight at a time, default: 1\n";
 		System.out.println(usage);
 		finish(1);
 	}
@@ -131,6 +186,244 @@ public class RRDirectRequester extends AbstractSample {
 
 	}
 
+	/**
+	 * Sends requestsPerDepth requests for each depth of the sweep, keeping up
+	 * to depth of them in flight, and reports the requests per second and the
+	 * latency percentiles of the replies.
+	 */
+	private void runDepthSweep(int requestsPerDepth, String aDestinationName) {
+		Topic topic = Solclient.Allocator.newTopic(aDestinationName);
+
+		// The replies come back on a temporary topic of this session
+		Topic replyTopic = sessionHandle.createTemporaryTopic();
+		int rc = sessionHandle.subscribe(replyTopic,
+				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
+		assertReturnCode("sessionHandle.subscribe() to the reply topic", rc,
+				SolEnum.ReturnCode.OK);
+
+		HashedTimingWheel timingWheel = new HashedTimingWheel(1,
+				TimeUnit.MILLISECONDS, 1024);
+		timingWheel.start();
+
+		System.out.printf("%nPipelining depth sweep, %d requests per depth, %d ms timeout%n",
+				requestsPerDepth, requestTimeoutMs);
+		System.out.printf("%8s %14s %12s %12s %12s %12s %9s", "depth",
+				"requests/s", "p50 us", "p99 us", "p99.9 us", "max us",
+				"timeouts");
+		if (hedgePercentiles != null)
+			System.out.printf(" %8s %9s %9s", "hedge", "hedges", "won");
+		System.out.println();
+		Topic hedgeTopic = hedgePercentiles != null ? Solclient.Allocator
+				.newTopic(hedgeTopicName) : null;
+		try {
+			for (int d = 0; d < depthSweep.length; d++) {
+				runDepth(depthSweep[d], requestsPerDepth, topic, replyTopic,
+						timingWheel, null, 0);
+				for (int h = 0; hedgePercentiles != null
+						&& h < hedgePercentiles.length; h++)
+					runDepth(depthSweep[d], requestsPerDepth, topic,
+							replyTopic, timingWheel, hedgeTopic,
+							hedgePercentiles[h]);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted during the sweep", e);
+		} finally {
+			timingWheel.stop();
+		}
+	}
+
+	/**
+	 * @param hedgeTopic
+	 *            where to hedge the requests without reply after the
+	 *            hedgePercentile of the latencies, null not to hedge
+	 */
+	private void runDepth(int depth, int count, Topic topic, Topic replyTopic,
+			HashedTimingWheel timingWheel, Topic hedgeTopic,
+			double hedgePercentile) throws InterruptedException {
+		AsyncRequester requester = new AsyncRequester(sessionHandle,
+				replyTopic, depth, timingWheel, null);
+		if (hedgeTopic != null)
+			requester.enableHedging(hedgeTopic, hedgePercentile);
+		LatencyHistogram histogram = new LatencyHistogram();
+		CountDownLatch done = new CountDownLatch(count);
+		AtomicLong mismatches = new AtomicLong();
+		currentRequester = requester;
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				int request = lookupKeys > 0 ? lookupRandom.nextInt(lookupKeys)
+						: nextRequest++;
+				txContent.clear();
+				txContent.putInt(request);
+				txContent.flip();
+				long sentNanos = System.nanoTime();
+				requester.request(topic, txContent, requestTimeoutMs)
+						.whenComplete(
+								new ReplyRecorder(request, sentNanos,
+										histogram, done, mismatches));
+			}
+			// Every request completes, with its reply or its timeout
+			done.await();
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.printf("%8d %14.1f %12.2f %12.2f %12.2f %12.2f %9d",
+					depth, count / seconds,
+					histogram.getValueAtPercentile(50) / 1000.0,
+					histogram.getValueAtPercentile(99) / 1000.0,
+					histogram.getValueAtPercentile(99.9) / 1000.0,
+					histogram.getMaxValue() / 1000.0,
+					requester.getTimeoutCount());
+			if (hedgeTopic != null)
+				System.out.printf(" %8s %9d %9d", "p" + hedgePercentile,
+						requester.getHedgeCount(),
+						requester.getHedgeWonCount());
+			else if (hedgePercentiles != null)
+				System.out.printf(" %8s %9s %9s", "-", "-", "-");
+			System.out.println();
+			if (mismatches.get() > 0)
+				throw new IllegalStateException(mismatches.get()
+						+ " replies did not match their request");
+		} finally {
+			currentRequester = null;
+			requester.destroy();
+		}
+	}
+
+	/**
+	 * Scatters count requests to the repliers of the topic, keeping up to
+	 * scatterWindow of them in flight, and reports how and how fast they
+	 * completed.
+	 */
+	private void runScatterGather(int count, String aDestinationName) {
+		Topic topic = Solclient.Allocator.newTopic(aDestinationName);
+
+		Topic replyTopic = sessionHandle.createTemporaryTopic();
+		int rc = sessionHandle.subscribe(replyTopic,
+				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
+		assertReturnCode("sessionHandle.subscribe() to the reply topic", rc,
+				SolEnum.ReturnCode.OK);
+
+		HashedTimingWheel timingWheel = new HashedTimingWheel(1,
+				TimeUnit.MILLISECONDS, 1024);
+		timingWheel.start();
+		ScatterGatherRequester requester = new ScatterGatherRequester(
+				sessionHandle, replyTopic, scatterWindow, scatterRepliers,
+				txContent.capacity(), timingWheel, null);
+		GatherRecorder recorder = new GatherRecorder(count);
+		currentRequester = requester;
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				int request = nextRequest++;
+				txContent.clear();
+				txContent.putInt(request);
+				txContent.flip();
+				requester.request(topic, txContent, scatterRepliers,
+						scatterFirst, requestTimeoutMs, request, recorder);
+			}
+			recorder.done.await();
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.printf("%nScatter-gather to %d repliers, completing on the first %d, %d ms deadline, %d in flight%n",
+					scatterRepliers, scatterFirst, requestTimeoutMs,
+					scatterWindow);
+			System.out.printf("%d requests, %.1f requests/s%n", count, count
+					/ seconds);
+			System.out.printf("Completed with all replies: %d, on the first %d: %d, at the deadline: %d, failed: %d%n",
+					requester.getAllCount(), scatterFirst,
+					requester.getFirstKCount(), requester.getDeadlineCount(),
+					requester.getFailedCount());
+			if (requester.getDeadlineCount() > 0)
+				System.out.printf("Replies per request completed at the deadline: %.2f of %d%n",
+						(double) recorder.partialReplies.get()
+								/ requester.getDeadlineCount(), scatterRepliers);
+			System.out.printf("Replies after completion: %d%n",
+					requester.getLateReplyCount());
+			recorder.histogram.printPercentiles("Completion latency");
+			if (recorder.mismatches.get() > 0)
+				throw new IllegalStateException(recorder.mismatches.get()
+						+ " replies did not match their request");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted during the requests", e);
+		} finally {
+			currentRequester = null;
+			timingWheel.stop();
+			requester.destroy();
+		}
+	}
+
+	/**
+	 * Records the completion latency of a scatter-gather request, and checks
+	 * that its replies echo it. Runs on the context thread or on the timing
+	 * wheel thread, hence the lock on the histogram.
+	 */
+	static class GatherRecorder implements ScatterGatherRequester.GatherCallback {
+
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final CountDownLatch done;
+		final AtomicLong partialReplies = new AtomicLong();
+		final AtomicLong mismatches = new AtomicLong();
+
+		GatherRecorder(int count) {
+			this.done = new CountDownLatch(count);
+		}
+
+		@Override
+		public void onGather(ScatterGatherRequester.Gather gather) {
+			if (gather.isComplete()) {
+				synchronized (histogram) {
+					histogram.record(gather.getLatencyNanos());
+				}
+			} else {
+				partialReplies.addAndGet(gather.getReplyCount());
+			}
+			for (int i = 0; i < gather.getReplyCount(); i++) {
+				ByteBuffer reply = gather.getReply(i);
+				if (reply.remaining() < 4 || reply.getInt(0) != gather.getTag())
+					mismatches.incrementAndGet();
+			}
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Records the latency of a reply, and checks that it echoes its request.
+	 * Runs on the context thread, or on the requesting thread when the reply
+	 * was already there, hence the lock on the histogram.
+	 */
+	static class ReplyRecorder implements BiConsumer<ByteBuffer, Throwable> {
+
+		private final int request;
+		private final long sentNanos;
+		private final LatencyHistogram histogram;
+		private final CountDownLatch done;
+		private final AtomicLong mismatches;
+
+		ReplyRecorder(int request, long sentNanos, LatencyHistogram histogram,
+				CountDownLatch done, AtomicLong mismatches) {
+			this.request = request;
+			this.sentNanos = sentNanos;
+			this.histogram = histogram;
+			this.done = done;
+			this.mismatches = mismatches;
+		}
+
+		@Override
+		public void accept(ByteBuffer reply, Throwable failure) {
+			if (failure == null) {
+				long latency = System.nanoTime() - sentNanos;
+				synchronized (histogram) {
+					histogram.record(latency);
+				}
+				if (reply.remaining() < 4 || reply.getInt(0) != request)
+					mismatches.incrementAndGet();
+			}
+			done.countDown();
+		}
+	}
+
 	/**
 	 * This is the main method of the sample
 	 */
@@ -156,6 +449,44 @@ public class RRDirectRequester extends AbstractSample {
 			}
 		}
 
+		if (config.getArgBag().containsKey("-depth")) {
+			depthSweep = PerfPubSub.parseSweep(config.getArgBag().get("-depth"));
+		}
+		if (config.getArgBag().containsKey("-to")) {
+			requestTimeoutMs = Long.parseLong(config.getArgBag().get("-to"));
+		}
+		if (config.getArgBag().containsKey("-lookups")) {
+			lookupKeys = Integer.parseInt(config.getArgBag().get("-lookups"));
+		}
+		if (config.getArgBag().containsKey("-hedge")) {
+			String[] values = config.getArgBag().get("-hedge").split(",");
+			hedgePercentiles = new double[values.length];
+			for (int i = 0; i < values.length; i++)
+				hedgePercentiles[i] = Double.parseDouble(values[i].trim());
+			hedgeTopicName = config.getArgBag().get("-ht");
+			if (depthSweep == null || hedgeTopicName == null)
+				throw new IllegalArgumentException(
+						"-hedge needs -depth and the alternate topic -ht");
+		}
+		if (config.getArgBag().containsKey("-sg")) {
+			scatterRepliers = Integer.parseInt(config.getArgBag().get("-sg"));
+			scatterFirst = scatterRepliers;
+			if (depthSweep != null)
+				throw new IllegalArgumentException(
+						"-sg and -depth are mutually exclusive, just pick one");
+		}
+		if (config.getArgBag().containsKey("-first")) {
+			scatterFirst = Integer.parseInt(config.getArgBag().get("-first"));
+		}
+		if (config.getArgBag().containsKey("-win")) {
+			scatterWindow = Integer.parseInt(config.getArgBag().get("-win"));
+		}
+		if (scatterRepliers == 0
+				&& (config.getArgBag().containsKey("-first") || config
+						.getArgBag().containsKey("-win")))
+			throw new IllegalArgumentException(
+					"-first and -win only apply to a scatter-gather, they need -sg");
+
 		// Init
 		print(" Initializing the Java RTO Messaging API...");
 		int rc = Solclient.init(new String[0]);
@@ -209,11 +540,23 @@ public class RRDirectRequester extends AbstractSample {
 		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.DISABLE;
 
 		SessionEventCallback sessionEventCallback = getDefaultSessionEventCallback();
-		MessageCallbackSample messageCallback = getMessageCallback(false);
+		final MessageCallbackSample messageCallback = getMessageCallback(false);
+
+		// The replies go to the requester of the current depth, if any
+		MessageCallback sessionMessageCallback = new MessageCallback() {
+			@Override
+			public void onMessage(Handle handle) {
+				MessageCallback requester = currentRequester;
+				if (requester != null)
+					requester.onMessage(handle);
+				else
+					messageCallback.onMessage(handle);
+			}
+		};
 
 		/* Create the Session. */
 		rc = contextHandle.createSessionForHandle(sessionHandle, sessionProps,
-				messageCallback, sessionEventCallback);
+				sessionMessageCallback, sessionEventCallback);
 		assertReturnCode("contextHandle.createSession() - session", rc,
 				SolEnum.ReturnCode.OK);
 
@@ -222,6 +565,17 @@ public class RRDirectRequester extends AbstractSample {
 		rc = sessionHandle.connect();
 		assertReturnCode("sessionHandle.connect()", rc, SolEnum.ReturnCode.OK);
 
+		if (depthSweep != null) {
+			runDepthSweep(numberOfRequestMessages, destinationName);
+			print("Run() DONE");
+			return;
+		}
+		if (scatterRepliers > 0) {
+			runScatterGather(numberOfRequestMessages, destinationName);
+			print("Run() DONE");
+			return;
+		}
+
 		/* Send the requests and wait for the responses. */
 		sendRequests(numberOfRequestMessages, destinationName);
 
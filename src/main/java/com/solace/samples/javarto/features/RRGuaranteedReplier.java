@@ -5,6 +5,7 @@
 package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
@@ -47,6 +48,15 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * <b>Notes: the RRGuaranteedReplier supports request queue or topic formats,
  * but not both at the same time.</b>
  * 
+ * With -workers, the requests are served by a {@link ReplierEngine}: the Flow
+ * callback hands each request to a pool of worker threads which send the
+ * persistent replies concurrently. -n requests are served for each worker
+ * count of the sweep, each taking the -st service time, and the replies per
+ * second of each worker count are reported. The requests are acknowledged when
+ * the callback returns, before their reply is sent. Drive it with a window of
+ * requests, for instance RRGuaranteedRequester -win 128 -n 40000 against
+ * RRGuaranteedReplier -workers 1,2,4,8 -n 10000 -st 100.
+ * 
  * <strong>This sample illustrates the ease of use of concepts, and may not be
  * GC-free.<br>
  * See Perf* samples for GC-free examples. </strong>
@@ -71,6 +81,10 @@ public class RRGuaranteedReplier extends AbstractSample {
 
 	private static boolean quit = false;
 
+	private int[] workerSweep;
+	private long serviceMicros = 0;
+	private boolean sleepService = false;
+
 	boolean endpointProvisioned = false;
 	Endpoint endpoint = null;
 	Topic topic = null;
@@ -83,6 +97,9 @@ public class RRGuaranteedReplier extends AbstractSample {
 		usage += "\t[-q queue]\t Guaranteed Message Queue.\n";
 		usage += "\t\t Topic and Queue are mutually exclusive, just pick one\n";
 		usage += "\t[-n number]\t Number of request messages to send, default: 5\n";
+		usage += "\t[-workers w1,w2,...]\t Reply on that many worker threads, serving -n requests with each worker count in turn, and report the replies per second of each\n";
+		usage += "\t[-st micros]\t Service time of a request with -workers, default: 0\n";
+		usage += "\t[-sleep]\t The workers sleep for the service time rather than spin\n";
 		System.out.println(usage);
 		finish(1);
 	}
@@ -121,6 +138,14 @@ public class RRGuaranteedReplier extends AbstractSample {
 			}
 		}
 
+		if (config.getArgBag().containsKey("-workers")) {
+			workerSweep = PerfPubSub.parseSweep(config.getArgBag().get("-workers"));
+		}
+		if (config.getArgBag().containsKey("-st")) {
+			serviceMicros = Long.parseLong(config.getArgBag().get("-st"));
+		}
+		sleepService = config.getArgBag().containsKey("-sleep");
+
 		// Init
 		print(" Initializing the Java RTO Messaging API...");
 		int rc = Solclient.init(new String[0]);
@@ -247,8 +272,19 @@ public class RRGuaranteedReplier extends AbstractSample {
 		flowProperties[flowProps++] = SolEnum.BooleanValue.ENABLE;
 
 		FlowEventCallback flowEventCallback = getDefaultFlowEventCallback();
-		FlowMessageReceivedCallback flowMessageReceivedCallback = new FlowMessageReceivedCallback(
-				numberOfRequestMessages);
+		MessageCallback flowMessageReceivedCallback;
+		ReplierEngine.Sweep workerSweepCallback = null;
+		if (workerSweep != null) {
+			workerSweepCallback = new ReplierEngine.Sweep(sessionHandle, true,
+					workerSweep, MessageHandlePool.DEFAULT_CAPACITY,
+					numberOfRequestMessages, new ReplierEngine.EchoService(
+							TimeUnit.MICROSECONDS.toNanos(serviceMicros),
+							sleepService));
+			flowMessageReceivedCallback = workerSweepCallback;
+		} else {
+			flowMessageReceivedCallback = new FlowMessageReceivedCallback(
+					numberOfRequestMessages);
+		}
 
 		rc = sessionHandle.createFlowForHandle(flowHandle, flowProperties,
 				endpoint, topic, flowMessageReceivedCallback,
@@ -257,6 +293,14 @@ public class RRGuaranteedReplier extends AbstractSample {
 		assertReturnCode("sessionHandle.createFlowForHandle()", rc,
 				SolEnum.ReturnCode.OK);
 
+		if (workerSweepCallback != null) {
+			if (!workerSweepCallback.run("RRGuaranteedReplier", 10000))
+				throw new IllegalStateException(
+						"The worker sweep stopped before every request was replied to");
+			print("Run() DONE");
+			return;
+		}
+
 		/*************************************************************************
 		 * Serve requests
 		 *************************************************************************/
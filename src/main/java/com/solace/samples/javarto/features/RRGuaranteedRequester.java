@@ -5,6 +5,11 @@
 package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
@@ -50,6 +55,15 @@ import com.solacesystems.solclientj.core.resource.Queue;
  * GC-free.<br>
  * See Perf* samples for GC-free examples. </strong>
  * 
+ * <p>
+ * The replies wake the requesting thread through a {@link RequestWindow}
+ * rather than being polled for. With -win, up to that many requests are in
+ * flight at a time, and the latency of every request is reported along with
+ * the requests per second. The replies to a window may then come back in any
+ * order, as from an RRGuaranteedReplier serving on several -workers: each is
+ * matched to its request by number, and only unknown or duplicate replies are
+ * errors. With a single request in flight, replies must come back in order.
+ * 
  */
 public class RRGuaranteedRequester extends AbstractSample {
 
@@ -67,7 +81,9 @@ public class RRGuaranteedRequester extends AbstractSample {
 	private ByteBuffer txContent = ByteBuffer.allocateDirect(200);
 	private static ByteBuffer rxContent = ByteBuffer.allocateDirect(200);
 
-	static boolean[] requestReceived;
+	private int windowSize = 1;
+	private long requestTimeoutMs = 10000;
+	private RequestWindow requestWindow;
 
 	@Override
 	protected void printUsage(boolean secureSession) {
@@ -77,6 +93,8 @@ public class RRGuaranteedRequester extends AbstractSample {
 		usage += "\t[-q queue]\t Guaranteed Message Queue.\n";
 		usage += "\t\t Topic and Queue are mutually exclusive, just pick one\n";
 		usage += "\t[-n number]\t Number of request messages to send, default: 5\n";
+		usage += "\t[-win size]\t Number of requests in flight at a time, default: 1\n";
+		usage += "\t[-to ms]\t Time to wait for a reply, default: 10000\n";
 		System.out.println(usage);
 		finish(1);
 	}
@@ -107,41 +125,53 @@ public class RRGuaranteedRequester extends AbstractSample {
 		/* set the replyTo address. */
 		txMessageHandle.setReplyTo(replyToAddress);
 
-		for (int i = 0; i < maxRequestMessages; i++) {
-
-			int waitInSec = 10;
+		boolean verbose = windowSize == 1;
+		long startTime = System.nanoTime();
+		try {
+			for (int i = 0; i < maxRequestMessages; i++) {
+
+				/*
+				 * Wait for room in the window, a full window for that long
+				 * means the oldest request got no reply in time.
+				 */
+				if (!requestWindow.acquire(requestTimeoutMs)) {
+					print("Request message timeout.");
+					return false;
+				}
 
-			txContent.clear();
-			txContent.putInt(i);
-			txContent.flip();
+				txContent.clear();
+				txContent.putInt(i);
+				txContent.flip();
 
-			/* Add some content to the message. */
-			txMessageHandle.setBinaryAttachment(txContent);
+				/* Add some content to the message. */
+				txMessageHandle.setBinaryAttachment(txContent);
 
-			/* Send the message. */
-			print("Sending Request [" + i + "]");
-			rc = sessionHandle.send(txMessageHandle);
-			assertReturnCode("aSessionHandle.send()", rc, SolEnum.ReturnCode.OK);
+				/* Send the message. */
+				if (verbose)
+					print("Sending Request [" + i + "]");
+				requestWindow.onSend(i);
+				rc = sessionHandle.send(txMessageHandle);
+				assertReturnCode("aSessionHandle.send()", rc,
+						SolEnum.ReturnCode.OK);
 
-			requestReceived[i] = false;
+			} // EndFor
 
-			/* Wait until a reply message or being interrupted. */
-			while ((!requestReceived[i]) && (waitInSec > 0)) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				waitInSec--;
-			}
-
-			if (waitInSec == 0) {
+			/* Wait until the last replies or timeout. */
+			if (!requestWindow.awaitAll(requestTimeoutMs)) {
 				print("Request message timeout.");
-				//break;
 				return false;
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
 
-		} // EndFor
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		System.out.printf(
+				"%n%d requests in %.3f seconds = %.1f requests/second, window of %d%n",
+				maxRequestMessages, seconds, maxRequestMessages / seconds,
+				windowSize);
+		requestWindow.getLatency().printPercentiles("Request to reply latency");
 		return true;
 	}
 
@@ -179,7 +209,18 @@ public class RRGuaranteedRequester extends AbstractSample {
 			}
 		}
 
-		requestReceived = new boolean[numberOfRequestMessages];
+		String strWindow = config.getArgBag().get("-win");
+		if (strWindow != null) {
+			windowSize = Integer.parseInt(strWindow);
+			if (windowSize < 1)
+				printUsage(config instanceof SecureSessionConfiguration);
+		}
+		String strTimeout = config.getArgBag().get("-to");
+		if (strTimeout != null) {
+			requestTimeoutMs = Long.parseLong(strTimeout);
+		}
+
+		requestWindow = new RequestWindow(numberOfRequestMessages, windowSize);
 
 		// Init
 		print(" Initializing the Java RTO Messaging API...");
@@ -261,7 +302,8 @@ public class RRGuaranteedRequester extends AbstractSample {
 		flowProperties[flowProps++] = SolEnum.BooleanValue.ENABLE;
 
 		FlowEventCallback flowEventCallback = getDefaultFlowEventCallback();
-		FlowMessageReceivedCallback flowMessageReceivedCallback = new FlowMessageReceivedCallback();
+		FlowMessageReceivedCallback flowMessageReceivedCallback = new FlowMessageReceivedCallback(
+				requestWindow, windowSize == 1, windowSize == 1);
 		Queue tempQueue = sessionHandle.createTemporaryQueue();
 
 		print("Created tempQueue [" + tempQueue.getName() + "] isTemporary? ["
@@ -321,9 +363,86 @@ public class RRGuaranteedRequester extends AbstractSample {
 		finish_Solclient();
 	}
 
+	/**
+	 * The requests in flight: sending one takes a permit, its reply gives the
+	 * permit back and records the latency of the request, so the requesting
+	 * thread wakes up as soon as there is room, or when all replies are in.
+	 */
+	static class RequestWindow {
+
+		private final Semaphore permits;
+		private final CountDownLatch replies;
+		private final AtomicLongArray sendNanos;
+		private final AtomicIntegerArray replied;
+		// Recorded by the context thread
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		RequestWindow(int requestCount, int windowSize) {
+			this.permits = new Semaphore(windowSize);
+			this.replies = new CountDownLatch(requestCount);
+			this.sendNanos = new AtomicLongArray(requestCount);
+			this.replied = new AtomicIntegerArray(requestCount);
+		}
+
+		/**
+		 * @return false when the window stayed full for timeoutMs
+		 */
+		boolean acquire(long timeoutMs) throws InterruptedException {
+			return permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+
+		void onSend(int request) {
+			sendNanos.set(request, System.nanoTime());
+		}
+
+		/**
+		 * Called from the Flow callback.
+		 *
+		 * @return false for an unknown or duplicate reply
+		 */
+		boolean onReply(int request) {
+			if (request < 0 || request >= replied.length()
+					|| !replied.compareAndSet(request, 0, 1))
+				return false;
+			latency.record(System.nanoTime() - sendNanos.get(request));
+			permits.release();
+			replies.countDown();
+			return true;
+		}
+
+		/**
+		 * @return false when some replies are still missing after timeoutMs
+		 */
+		boolean awaitAll(long timeoutMs) throws InterruptedException {
+			return replies.await(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * @return the latencies, once all replies are in
+		 */
+		LatencyHistogram getLatency() {
+			return latency;
+		}
+	}
+
 	public static class FlowMessageReceivedCallback implements MessageCallback {
 
 		private int messageCount = 0;
+		private final RequestWindow requestWindow;
+		private final boolean verbose;
+		private final boolean inOrder;
+
+		/**
+		 * @param inOrder
+		 *            fail on a reply other than the next one, only meaningful
+		 *            with one request in flight at a time
+		 */
+		public FlowMessageReceivedCallback(RequestWindow requestWindow,
+				boolean verbose, boolean inOrder) {
+			this.requestWindow = requestWindow;
+			this.verbose = verbose;
+			this.inOrder = inOrder;
+		}
 
 		@Override
 		public void onMessage(Handle handle) {
@@ -340,17 +459,21 @@ public class RRGuaranteedRequester extends AbstractSample {
 
 			int expectedRequestInt = messageCount;
 
-			print("-> RRGuaranteedRequester -> Received reponse [" + requestInt
-					+ "]");
+			if (verbose)
+				print("-> RRGuaranteedRequester -> Received reponse ["
+						+ requestInt + "]");
 
-			if (requestInt != expectedRequestInt) {
+			if (inOrder && requestInt != expectedRequestInt) {
 				throw new IllegalStateException(String.format(
 						"[%d] was expected, got this request instead [%d]",
 						expectedRequestInt, requestInt));
 			}
 
-			// Mark as received
-			requestReceived[requestInt] = true;
+			// Wake up the requesting thread
+			if (!requestWindow.onReply(requestInt)) {
+				throw new IllegalStateException(String.format(
+						"Unexpected reply [%d]", requestInt));
+			}
 
 			messageCount++;
 		}
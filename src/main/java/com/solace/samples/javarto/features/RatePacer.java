@@ -0,0 +1,134 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a publisher to a fixed target rate.
+ * <p>
+ * Every message has an intended send time computed from the start of the run
+ * (start + index / rate), it does not depend on when the previous message was
+ * actually sent. When the publisher falls behind (a slow send, a GC pause,
+ * back-pressure from the API...) the following messages are sent immediately
+ * until it has caught up, and latency measured from the intended send time
+ * includes the stall. This avoids the coordinated omission of latency tools
+ * that only measure messages that were actually sent on time.
+ */
+public class RatePacer {
+
+	public enum WaitStrategy {
+		/** Burns a core, lowest jitter */
+		SPIN,
+		/** Spins with Thread.yield(), lets other threads run */
+		YIELD,
+		/** Parks for most of the wait and spins for the last few micros */
+		PARK;
+
+		public static WaitStrategy parse(String value) {
+			if (value == null || value.length() == 0)
+				return SPIN;
+			return WaitStrategy.valueOf(value.toUpperCase());
+		}
+	}
+
+	// Below this remaining wait, PARK spins as parkNanos() is too coarse.
+	private static final long PARK_SPIN_THRESHOLD_NANOS = 50000;
+
+	private final double intervalNanos;
+	private final WaitStrategy waitStrategy;
+
+	private long startNanos;
+	private long maxLagNanos;
+	private long lateCount;
+
+	/**
+	 * @param ratePerSecond
+	 *            target rate in messages per second, must be positive
+	 * @param waitStrategy
+	 */
+	public RatePacer(double ratePerSecond, WaitStrategy waitStrategy) {
+		if (ratePerSecond <= 0)
+			throw new IllegalArgumentException("Rate must be positive, got "
+					+ ratePerSecond);
+		this.intervalNanos = 1000000000.0 / ratePerSecond;
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Starts the schedule now, message 0 is due immediately.
+	 */
+	public void start() {
+		startNanos = System.nanoTime();
+		maxLagNanos = 0;
+		lateCount = 0;
+	}
+
+	/**
+	 * Waits until message {@code index} is due.
+	 *
+	 * @param index
+	 *            zero based index of the message in the run
+	 * @return the intended send time of the message, in System.nanoTime()
+	 *         units
+	 */
+	public long awaitSlot(long index) {
+		long intendedNanos = startNanos + (long) (index * intervalNanos);
+		long now = System.nanoTime();
+
+		if (now > intendedNanos) {
+			// Behind schedule, send right away and account for it
+			long lag = now - intendedNanos;
+			if (lag > maxLagNanos)
+				maxLagNanos = lag;
+			lateCount++;
+			return intendedNanos;
+		}
+
+		switch (waitStrategy) {
+		case PARK:
+			long remaining = intendedNanos - now;
+			while (remaining > PARK_SPIN_THRESHOLD_NANOS) {
+				LockSupport.parkNanos(remaining - PARK_SPIN_THRESHOLD_NANOS);
+				remaining = intendedNanos - System.nanoTime();
+			}
+			while (System.nanoTime() < intendedNanos) {
+				// spin
+			}
+			break;
+		case YIELD:
+			while (System.nanoTime() < intendedNanos) {
+				Thread.yield();
+			}
+			break;
+		default:
+			while (System.nanoTime() < intendedNanos) {
+				// spin
+			}
+			break;
+		}
+		return intendedNanos;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/**
+	 * @return the worst delay between an intended send time and the moment the
+	 *         publisher got to it
+	 */
+	public long getMaxLagNanos() {
+		return maxLagNanos;
+	}
+
+	/**
+	 * @return how many messages were due before the publisher got to them
+	 */
+	public long getLateCount() {
+		return lateCount;
+	}
+
+}
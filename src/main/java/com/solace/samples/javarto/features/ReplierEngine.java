@@ -0,0 +1,394 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Destination;
+
+/**
+ * Serves requests on a pool of worker threads rather than on the context
+ * thread.
+ * <p>
+ * The engine is the MessageCallback of the session or Flow receiving the
+ * requests: it takes each request into a handle of a
+ * {@link MessageHandlePool} and hands it to the workers through a
+ * {@link HandoffRingBuffer}. Each worker owns its reply MessageHandle and
+ * buffers, asks the {@link Service} for the reply, sends it and frees the
+ * request. When every pooled handle holds a request, the context thread waits
+ * for a worker to free one.
+ * <p>
+ * Direct replies are sent with SessionHandle.sendReply(), which copies the
+ * correlation id and sends to the ReplyTo of the request. Guaranteed replies
+ * are sent as persistent messages to the ReplyTo.
+ */
+public class ReplierEngine implements MessageCallback {
+
+	public interface Service {
+		/**
+		 * Builds the reply to a request, on a worker thread.
+		 *
+		 * @param request
+		 *            the request payload, from 0 to its size
+		 * @param reply
+		 *            cleared, to fill and flip
+		 */
+		void serve(ByteBuffer request, ByteBuffer reply);
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(ReplierEngine.class
+			.getName());
+
+	// The largest request or reply payload
+	static final int MAX_PAYLOAD_SIZE = 8192;
+
+	private final SessionHandle sessionHandle;
+	private final boolean guaranteed;
+	private final Service service;
+	private final MessageHandlePool requestPool;
+	private final HandoffRingBuffer<RequestSlot> ring;
+	private final Worker[] workers;
+
+	private final AtomicLong repliedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicBoolean exceptionLogged = new AtomicBoolean();
+	// Written by every worker, only ever moves forward
+	private final AtomicLong lastReplyNanos = new AtomicLong();
+	private volatile long receivedCount;
+	private volatile long droppedCount;
+	private volatile long firstReceiveNanos;
+	private volatile long startNanos;
+	private volatile boolean started;
+
+	/**
+	 * @param guaranteed
+	 *            persistent replies sent to the ReplyTo, rather than direct
+	 *            ones sent with sendReply()
+	 * @param maxPending
+	 *            the most requests taken and not replied to yet
+	 */
+	public ReplierEngine(SessionHandle sessionHandle, boolean guaranteed,
+			int workerCount, int maxPending, Service service) {
+		this.sessionHandle = sessionHandle;
+		this.guaranteed = guaranteed;
+		this.service = service;
+		this.requestPool = new MessageHandlePool(maxPending,
+				MessageHandlePool.OverflowPolicy.BLOCK, Long.MAX_VALUE);
+		int ringSize = 1;
+		while (ringSize < maxPending)
+			ringSize <<= 1;
+		// As many slots as pooled requests, the ring is never full
+		this.ring = new HandoffRingBuffer<RequestSlot>(ringSize,
+				new HandoffRingBuffer.SlotFactory<RequestSlot>() {
+					@Override
+					public RequestSlot newSlot() {
+						return new RequestSlot();
+					}
+				}, HandoffRingBuffer.WaitStrategy.BLOCK);
+		this.workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++)
+			workers[i] = new Worker();
+	}
+
+	public void start(String name) {
+		startNanos = System.nanoTime();
+		started = true;
+		ring.start(name, workers);
+	}
+
+	@Override
+	public void onMessage(Handle handle) {
+		if (receivedCount++ == 0)
+			firstReceiveNanos = System.nanoTime();
+		MessageHandle request = requestPool.take(handle);
+		if (request == null) {
+			droppedCount++;
+			return;
+		}
+		long sequence = ring.next();
+		ring.get(sequence).request = request;
+		ring.publish(sequence);
+	}
+
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	public long getReceivedCount() {
+		return receivedCount;
+	}
+
+	public long getRepliedCount() {
+		return repliedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the replies per second, from the first request received, or
+	 *         from the start of the workers when requests were already
+	 *         waiting, to the last reply sent
+	 */
+	public double getReplyRate() {
+		long elapsed = lastReplyNanos.get()
+				- Math.max(firstReceiveNanos, startNanos);
+		return elapsed > 0 ? repliedCount.get() * 1e9 / elapsed : 0;
+	}
+
+	/**
+	 * Waits for the workers to reply to the requests taken so far, or for
+	 * timeoutMs, then stops them and destroys their handles.
+	 *
+	 * @return true when every request was replied to
+	 */
+	public boolean drainAndStop(long timeoutMs) {
+		boolean drained = started ? ring.drainAndStop(timeoutMs)
+				: receivedCount == 0;
+		for (int i = 0; i < workers.length; i++)
+			workers[i].destroy();
+		return drained;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"ReplierEngine of %d workers: %d received, %d replied, %d failed, %d dropped",
+				workers.length, receivedCount, repliedCount.get(),
+				failedCount.get(), droppedCount);
+	}
+
+	/**
+	 * Waits for the given number of replies, or until none was sent for
+	 * idleTimeoutMs.
+	 *
+	 * @return true when that many replies were sent
+	 */
+	public boolean awaitReplies(long count, long idleTimeoutMs) {
+		ProgressWait.await(new ProgressWait.Progress() {
+			@Override
+			public long get() {
+				return repliedCount.get() + failedCount.get();
+			}
+		}, count, idleTimeoutMs, TimeUnit.MILLISECONDS.toNanos(1));
+		return repliedCount.get() >= count;
+	}
+
+	/**
+	 * Keeps the worker busy on the CPU, or asleep as when waiting on another
+	 * service, for the given time.
+	 */
+	public static void simulateServiceTime(long nanos, boolean sleep) {
+		if (nanos <= 0)
+			return;
+		if (sleep)
+			LockSupport.parkNanos(nanos);
+		else
+			PerfPubSub.simulateWork(nanos);
+	}
+
+	/**
+	 * Replies with the request payload, after the service time.
+	 */
+	public static class EchoService implements Service {
+
+		private final long serviceNanos;
+		private final boolean sleep;
+
+		/**
+		 * @param sleep
+		 *            the worker sleeps rather than spins for the service time
+		 */
+		public EchoService(long serviceNanos, boolean sleep) {
+			this.serviceNanos = serviceNanos;
+			this.sleep = sleep;
+		}
+
+		@Override
+		public void serve(ByteBuffer request, ByteBuffer reply) {
+			simulateServiceTime(serviceNanos, sleep);
+			reply.put(request);
+			reply.flip();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.1f us %s", serviceNanos / 1000.0,
+					sleep ? "sleeping" : "busy");
+		}
+	}
+
+	/**
+	 * Serves requestsPerPhase requests with each worker count in turn, one
+	 * engine per worker count, and reports the replies per second of each.
+	 * <p>
+	 * The sweep is the MessageCallback of the requests: the context thread
+	 * moves on to the next engine once the current one has received its share.
+	 * The workers of an engine are only started once the previous engine has
+	 * replied to its share and is stopped, so the phases never overlap and no
+	 * idle worker of another phase competes for the CPU. Requests received
+	 * before the workers of their engine start wait in its pool, the context
+	 * thread waiting once all its handles are taken, and the rate of the
+	 * phase is measured from the start of its workers.
+	 */
+	public static class Sweep implements MessageCallback {
+
+		private final ReplierEngine[] engines;
+		private final long requestsPerPhase;
+		private final Service service;
+		private int phase;
+
+		public Sweep(SessionHandle sessionHandle, boolean guaranteed,
+				int[] workerSweep, int maxPending, long requestsPerPhase,
+				Service service) {
+			this.engines = new ReplierEngine[workerSweep.length];
+			for (int i = 0; i < workerSweep.length; i++)
+				engines[i] = new ReplierEngine(sessionHandle, guaranteed,
+						workerSweep[i], maxPending, service);
+			this.requestsPerPhase = requestsPerPhase;
+			this.service = service;
+		}
+
+		@Override
+		public void onMessage(Handle handle) {
+			if (phase == engines.length) {
+				// More requests than the sweep expects, they are not replied to
+				return;
+			}
+			ReplierEngine engine = engines[phase];
+			engine.onMessage(handle);
+			if (engine.getReceivedCount() == requestsPerPhase)
+				phase++;
+		}
+
+		/**
+		 * Starts the engine of each phase in turn, waits for it to serve its
+		 * share, prints its row and stops it before starting the next one.
+		 *
+		 * @param idleTimeoutMs
+		 *            how long a phase may go without a reply before the sweep
+		 *            gives up
+		 * @return true when every phase was fully served
+		 */
+		public boolean run(String name, long idleTimeoutMs) {
+			System.out.printf("%nReplier worker sweep, %d requests per phase, service time %s%n",
+					requestsPerPhase, service);
+			System.out.printf("%8s %14s %9s %9s%n", "workers", "replies/s",
+					"speedup", "failed");
+			boolean served = true;
+			double baseRate = 0;
+			int stopped = 0;
+			try {
+				for (int i = 0; i < engines.length && served; i++) {
+					ReplierEngine engine = engines[i];
+					engine.start(name + "-" + engine.getWorkerCount() + "w");
+					// No reply is due before the first request
+					while (engine.getReceivedCount() == 0) {
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+						if (Thread.currentThread().isInterrupted())
+							return false;
+					}
+					served = engine.awaitReplies(requestsPerPhase, idleTimeoutMs);
+					double rate = engine.getReplyRate();
+					if (i == 0)
+						baseRate = rate;
+					System.out.printf("%8d %14.1f %9.2f %9d%n",
+							engine.getWorkerCount(), rate,
+							baseRate > 0 ? rate / baseRate : 0,
+							engine.getFailedCount());
+					if (!served)
+						System.out.println(engine);
+					engine.drainAndStop(idleTimeoutMs);
+					stopped++;
+				}
+			} finally {
+				for (int i = stopped; i < engines.length; i++)
+					engines[i].drainAndStop(idleTimeoutMs);
+			}
+			return served;
+		}
+	}
+
+	static class RequestSlot {
+		MessageHandle request;
+	}
+
+	private class Worker implements HandoffRingBuffer.Handler<RequestSlot> {
+
+		private final MessageHandle txMessageHandle = Solclient.Allocator
+				.newMessageHandle();
+		private final ByteBuffer rxContent = ByteBuffer
+				.allocateDirect(MAX_PAYLOAD_SIZE);
+		private final ByteBuffer txContent = ByteBuffer
+				.allocateDirect(MAX_PAYLOAD_SIZE);
+
+		@Override
+		public void onSlot(RequestSlot slot, long sequence) {
+			MessageHandle request = slot.request;
+			slot.request = null;
+			try {
+				rxContent.clear();
+				request.getBinaryAttachment(rxContent);
+				rxContent.flip();
+
+				txContent.clear();
+				service.serve(rxContent, txContent);
+
+				if (!txMessageHandle.isBound()) {
+					int rc = Solclient.createMessageForHandle(txMessageHandle);
+					if (rc != SolEnum.ReturnCode.OK)
+						throw new IllegalStateException(
+								"Solclient.createMessageForHandle() returned "
+										+ rc);
+					txMessageHandle
+							.setMessageDeliveryMode(guaranteed ? SolEnum.MessageDeliveryMode.PERSISTENT
+									: SolEnum.MessageDeliveryMode.DIRECT);
+				}
+				txMessageHandle.setBinaryAttachment(txContent);
+
+				int rc;
+				if (guaranteed) {
+					Destination replyTo = request.getReplyTo();
+					txMessageHandle.setDestination(replyTo);
+					rc = sessionHandle.send(txMessageHandle);
+				} else {
+					rc = sessionHandle.sendReply(request, txMessageHandle);
+				}
+				if (rc == SolEnum.ReturnCode.OK
+						|| rc == SolEnum.ReturnCode.IN_PROGRESS) {
+					repliedCount.incrementAndGet();
+					lastReplyNanos.accumulateAndGet(System.nanoTime(), Math::max);
+				} else
+					failedCount.incrementAndGet();
+			} catch (RuntimeException e) {
+				failedCount.incrementAndGet();
+				// Logged once, a failing service fails every request alike
+				if (exceptionLogged.compareAndSet(false, true))
+					LOGGER.log(Level.SEVERE, "Failed to reply to a request", e);
+			} finally {
+				requestPool.release(request);
+			}
+		}
+
+		void destroy() {
+			if (txMessageHandle.isBound())
+				txMessageHandle.destroy();
+		}
+	}
+
+}
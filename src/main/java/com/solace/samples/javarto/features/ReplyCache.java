@@ -0,0 +1,278 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Memoizes the replies to idempotent requests, keyed by the request payload,
+ * so that a repeated request is answered from the cached bytes without
+ * computing its reply again.
+ * <p>
+ * The entries are kept off-heap, in one direct buffer of the given byte
+ * budget cut into fixed size slots, each holding the request and its reply.
+ * A request and reply larger than a slot are not cached. The slots are
+ * indexed by a 64-bit hash of the request, and the request bytes are compared
+ * on lookup, so that a hash collision never returns the wrong reply. When the
+ * cache is full, the least recently used entry is evicted, and entries older
+ * than the time to live are dropped when looked up.
+ * <p>
+ * The index and the LRU list are int arrays, so caching allocates nothing
+ * once the cache is built. A cache is used by one thread, usually the context
+ * thread.
+ */
+public class ReplyCache {
+
+	private static final int NONE = -1;
+	// The request and reply sizes, ahead of their bytes
+	private static final int ENTRY_HEADER_SIZE = 8;
+
+	private final ByteBuffer store;
+	// The cached reply handed out by lookup(), over the store
+	private final ByteBuffer view;
+	private final int slotSize;
+	private final long ttlNanos;
+
+	private final long[] hashes;
+	private final long[] insertedNanos;
+	private final int[] buckets;
+	private final int[] chainNext;
+	private final int[] lruPrev;
+	private final int[] lruNext;
+	private int lruHead = NONE;
+	private int lruTail = NONE;
+	private final int[] freeSlots;
+	private int freeCount;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+	private long expirationCount;
+	private long tooLargeCount;
+
+	/**
+	 * @param budgetBytes
+	 *            the off-heap bytes of the cache
+	 * @param maxEntrySize
+	 *            the largest request and reply, together, worth caching
+	 * @param ttlNanos
+	 *            how long an entry may be served, 0 for ever
+	 */
+	public ReplyCache(long budgetBytes, int maxEntrySize, long ttlNanos) {
+		if (maxEntrySize < 1)
+			throw new IllegalArgumentException(
+					"The entries need at least one byte, got " + maxEntrySize);
+		this.slotSize = ENTRY_HEADER_SIZE + maxEntrySize;
+		long slots = Math.min(budgetBytes, Integer.MAX_VALUE) / slotSize;
+		if (slots < 1)
+			throw new IllegalArgumentException("A budget of " + budgetBytes
+					+ " bytes cannot hold an entry of " + maxEntrySize
+					+ " bytes");
+		int capacity = (int) slots;
+		this.store = ByteBuffer.allocateDirect(capacity * slotSize);
+		this.view = store.duplicate();
+		this.ttlNanos = ttlNanos;
+
+		this.hashes = new long[capacity];
+		this.insertedNanos = new long[capacity];
+		this.chainNext = new int[capacity];
+		this.lruPrev = new int[capacity];
+		this.lruNext = new int[capacity];
+		this.freeSlots = new int[capacity];
+		for (int i = 0; i < capacity; i++)
+			freeSlots[i] = capacity - 1 - i;
+		this.freeCount = capacity;
+		int bucketCount = 1;
+		while (bucketCount < capacity * 2)
+			bucketCount <<= 1;
+		this.buckets = new int[bucketCount];
+		Arrays.fill(buckets, NONE);
+	}
+
+	/**
+	 * @param request
+	 *            the request payload, from its position to its limit
+	 * @return the cached reply, valid until the next call, or null on a miss
+	 */
+	public ByteBuffer lookup(ByteBuffer request) {
+		long hash = hash(request);
+		int slot = find(hash, request);
+		if (slot != NONE && ttlNanos > 0
+				&& System.nanoTime() - insertedNanos[slot] > ttlNanos) {
+			remove(slot);
+			expirationCount++;
+			slot = NONE;
+		}
+		if (slot == NONE) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		unlink(slot);
+		linkFirst(slot);
+
+		int offset = slot * slotSize;
+		int requestSize = store.getInt(offset);
+		int replySize = store.getInt(offset + 4);
+		int replyOffset = offset + ENTRY_HEADER_SIZE + requestSize;
+		view.limit(replyOffset + replySize).position(replyOffset);
+		return view;
+	}
+
+	/**
+	 * Caches the reply to the request, evicting the least recently used entry
+	 * when the cache is full.
+	 *
+	 * @return false when they do not fit in a slot
+	 */
+	public boolean put(ByteBuffer request, ByteBuffer reply) {
+		int requestSize = request.remaining();
+		int replySize = reply.remaining();
+		if (ENTRY_HEADER_SIZE + requestSize + replySize > slotSize) {
+			tooLargeCount++;
+			return false;
+		}
+		long hash = hash(request);
+		int slot = find(hash, request);
+		if (slot != NONE) {
+			remove(slot);
+		}
+		if (freeCount == 0) {
+			remove(lruTail);
+			evictionCount++;
+		}
+		slot = freeSlots[--freeCount];
+
+		int offset = slot * slotSize;
+		store.putInt(offset, requestSize);
+		store.putInt(offset + 4, replySize);
+		copy(request, offset + ENTRY_HEADER_SIZE);
+		copy(reply, offset + ENTRY_HEADER_SIZE + requestSize);
+		hashes[slot] = hash;
+		insertedNanos[slot] = System.nanoTime();
+
+		int bucket = (int) hash & (buckets.length - 1);
+		chainNext[slot] = buckets[bucket];
+		buckets[bucket] = slot;
+		linkFirst(slot);
+		return true;
+	}
+
+	private int find(long hash, ByteBuffer request) {
+		int slot = buckets[(int) hash & (buckets.length - 1)];
+		while (slot != NONE) {
+			if (hashes[slot] == hash && sameRequest(slot, request))
+				return slot;
+			slot = chainNext[slot];
+		}
+		return NONE;
+	}
+
+	private boolean sameRequest(int slot, ByteBuffer request) {
+		int offset = slot * slotSize;
+		int size = request.remaining();
+		if (store.getInt(offset) != size)
+			return false;
+		int from = request.position();
+		offset += ENTRY_HEADER_SIZE;
+		for (int i = 0; i < size; i++) {
+			if (store.get(offset + i) != request.get(from + i))
+				return false;
+		}
+		return true;
+	}
+
+	private void copy(ByteBuffer source, int offset) {
+		int from = source.position();
+		int size = source.remaining();
+		for (int i = 0; i < size; i++)
+			store.put(offset + i, source.get(from + i));
+	}
+
+	private void remove(int slot) {
+		int bucket = (int) hashes[slot] & (buckets.length - 1);
+		if (buckets[bucket] == slot) {
+			buckets[bucket] = chainNext[slot];
+		} else {
+			int previous = buckets[bucket];
+			while (chainNext[previous] != slot)
+				previous = chainNext[previous];
+			chainNext[previous] = chainNext[slot];
+		}
+		unlink(slot);
+		freeSlots[freeCount++] = slot;
+	}
+
+	private void linkFirst(int slot) {
+		lruPrev[slot] = NONE;
+		lruNext[slot] = lruHead;
+		if (lruHead != NONE)
+			lruPrev[lruHead] = slot;
+		lruHead = slot;
+		if (lruTail == NONE)
+			lruTail = slot;
+	}
+
+	private void unlink(int slot) {
+		int previous = lruPrev[slot];
+		int next = lruNext[slot];
+		if (previous != NONE)
+			lruNext[previous] = next;
+		else
+			lruHead = next;
+		if (next != NONE)
+			lruPrev[next] = previous;
+		else
+			lruTail = previous;
+	}
+
+	/**
+	 * FNV-1a over the bytes from the position to the limit, with a final mix
+	 * so that the low bits picking the bucket depend on every byte.
+	 */
+	static long hash(ByteBuffer buffer) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = buffer.position(); i < buffer.limit(); i++) {
+			h ^= buffer.get(i) & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public int getCapacity() {
+		return hashes.length;
+	}
+
+	public int getSize() {
+		return hashes.length - freeCount;
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public double getHitRatio() {
+		long lookups = hitCount + missCount;
+		return lookups == 0 ? 0 : (double) hitCount / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"ReplyCache of %d entries of %d bytes: %d cached, %d hits, %d misses (%.1f%% hits), %d evicted, %d expired, %d too large",
+				hashes.length, slotSize - ENTRY_HEADER_SIZE, getSize(),
+				hitCount, missCount, getHitRatio() * 100, evictionCount,
+				expirationCount, tooLargeCount);
+	}
+
+}
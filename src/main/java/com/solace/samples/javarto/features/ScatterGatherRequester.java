@@ -0,0 +1,410 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Destination;
+import com.solacesystems.solclientj.core.resource.Topic;
+
+/**
+ * Scatter-gather over direct messaging: one request is published to a topic
+ * served by several repliers, and their replies are gathered until enough of
+ * them came or the deadline passed, whichever is first.
+ * <p>
+ * A request completes as soon as its first K replies are in, so its latency is
+ * set by the K-th fastest replier rather than by the slowest, with all N
+ * expected replies, or at the deadline with whatever replies came by then.
+ * The {@link GatherCallback} is then given the {@link Gather}, holding the
+ * replies and the {@link Outcome}.
+ * <p>
+ * Each request in flight holds one of maxOutstanding Gathers, allocated with
+ * their reply buffers up front and reused, so gathering allocates nothing. As
+ * in {@link AsyncRequester}, the correlation id is made of the slot of the
+ * Gather and of a generation bumped at every reuse, and the replies which
+ * come after completion are counted, not gathered. Deadlines are driven by a
+ * {@link HashedTimingWheel}.
+ * <p>
+ * Requests are sent from one application thread at a time. The requester is
+ * the MessageCallback of the session; messages which are not replies to it go
+ * to the fallback callback, if any. The repliers must copy the correlation id
+ * into the reply, as SessionHandle.sendReply() does.
+ */
+public class ScatterGatherRequester implements MessageCallback {
+
+	public enum Outcome {
+		/** All the expected replies came */
+		ALL,
+		/** The first K replies came, K being less than expected */
+		FIRST_K,
+		/** The deadline passed first, the result may be partial or empty */
+		DEADLINE,
+		/** The request could not be sent */
+		FAILED
+	}
+
+	public interface GatherCallback {
+		/**
+		 * Runs once per request, on the context thread, on the timing wheel
+		 * thread at the deadline, or on the requesting thread when the send
+		 * failed. The Gather and its replies are reused once this returns.
+		 */
+		void onGather(Gather gather);
+	}
+
+	static final String CORRELATION_PREFIX = "#SG";
+
+	private final SessionHandle sessionHandle;
+	private final Topic replyTo;
+	private final HashedTimingWheel timingWheel;
+	private final MessageCallback fallback;
+	private final MessageHandle txMessageHandle = Solclient.Allocator
+			.newMessageHandle();
+	// Written by the context thread only
+	private final ByteBuffer rxContent = ByteBuffer
+			.allocateDirect(AsyncRequester.MAX_REPLY_SIZE);
+
+	private final Gather[] gathers;
+	private final int[] freeSlots;
+	private int freeCount;
+	private final Semaphore window;
+
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong allCount = new AtomicLong();
+	private final AtomicLong firstKCount = new AtomicLong();
+	private final AtomicLong deadlineCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong lateReplyCount = new AtomicLong();
+
+	/**
+	 * @param replyTo
+	 *            a topic the session is subscribed to, for the replies
+	 * @param maxReplies
+	 *            the most replies a request can expect
+	 * @param maxReplySize
+	 *            the largest reply payload, larger ones are truncated
+	 * @param fallback
+	 *            receives the messages which are not replies, may be null
+	 */
+	public ScatterGatherRequester(SessionHandle sessionHandle, Topic replyTo,
+			int maxOutstanding, int maxReplies, int maxReplySize,
+			HashedTimingWheel timingWheel, MessageCallback fallback) {
+		if (maxOutstanding < 1)
+			throw new IllegalArgumentException(
+					"At least one outstanding request is needed, got "
+							+ maxOutstanding);
+		if (maxReplies < 1)
+			throw new IllegalArgumentException(
+					"At least one reply per request is needed, got "
+							+ maxReplies);
+		this.sessionHandle = sessionHandle;
+		this.replyTo = replyTo;
+		this.timingWheel = timingWheel;
+		this.fallback = fallback;
+		this.gathers = new Gather[maxOutstanding];
+		this.freeSlots = new int[maxOutstanding];
+		for (int i = 0; i < maxOutstanding; i++) {
+			gathers[i] = new Gather(i, maxReplies, maxReplySize);
+			freeSlots[i] = maxOutstanding - 1 - i;
+		}
+		this.freeCount = maxOutstanding;
+		this.window = new Semaphore(maxOutstanding);
+	}
+
+	/**
+	 * Publishes a request, waiting first while maxOutstanding requests are in
+	 * flight. The callback runs once the request completes.
+	 *
+	 * @param expected
+	 *            the number of repliers, N
+	 * @param first
+	 *            completes on that many replies, K, from 1 to N
+	 * @param tag
+	 *            handed back by {@link Gather#getTag()}
+	 */
+	public void request(Destination destination, ByteBuffer payload,
+			int expected, int first, long deadlineMs, long tag,
+			GatherCallback callback) throws InterruptedException {
+		if (expected < 1 || expected > gathers[0].replies.length)
+			throw new IllegalArgumentException("From 1 to "
+					+ gathers[0].replies.length
+					+ " replies can be expected, got " + expected);
+		if (first < 1 || first > expected)
+			throw new IllegalArgumentException(
+					"Completing on the first K replies needs K from 1 to "
+							+ expected + ", got " + first);
+		window.acquire();
+		Gather gather = gathers[acquireSlot()];
+		long id;
+		synchronized (gather) {
+			id = gather.arm(expected, first, tag, callback);
+			gather.timeout = timingWheel.schedule(gather, deadlineMs,
+					TimeUnit.MILLISECONDS);
+		}
+
+		if (!txMessageHandle.isBound()) {
+			int rc = Solclient.createMessageForHandle(txMessageHandle);
+			if (rc != SolEnum.ReturnCode.OK)
+				throw new IllegalStateException(
+						"Solclient.createMessageForHandle() returned " + rc);
+			txMessageHandle
+					.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.DIRECT);
+			txMessageHandle.setReplyTo(replyTo);
+		}
+		txMessageHandle.setDestination(destination);
+		txMessageHandle.setCorrelationId(CORRELATION_PREFIX
+				+ Long.toString(id));
+		txMessageHandle.setBinaryAttachment(payload);
+
+		int rc = sessionHandle.send(txMessageHandle);
+		if (rc != SolEnum.ReturnCode.OK && rc != SolEnum.ReturnCode.IN_PROGRESS) {
+			synchronized (gather) {
+				if (gather.id == id && gather.pending)
+					complete(gather, Outcome.FAILED);
+			}
+		} else {
+			sentCount.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void onMessage(Handle handle) {
+		MessageHandle rxMessage = ((MessageSupport) handle).getRxMessage();
+		long id = AsyncRequester.parseCorrelationId(rxMessage
+				.getCorrelationId(), CORRELATION_PREFIX);
+		if (id < 0) {
+			if (fallback != null)
+				fallback.onMessage(handle);
+			return;
+		}
+		int slot = (int) (id & 0xffffffffL);
+		if (slot >= gathers.length) {
+			lateReplyCount.incrementAndGet();
+			return;
+		}
+		Gather gather = gathers[slot];
+		synchronized (gather) {
+			if (gather.id != id || !gather.pending) {
+				// After completion, or to a request before the slot was reused
+				lateReplyCount.incrementAndGet();
+				return;
+			}
+			gather.add(rxMessage);
+			if (gather.replyCount >= gather.expected)
+				complete(gather, Outcome.ALL);
+			else if (gather.replyCount >= gather.first)
+				complete(gather, Outcome.FIRST_K);
+		}
+	}
+
+	/**
+	 * Runs the callback and frees the Gather, with its lock held.
+	 */
+	private void complete(Gather gather, Outcome outcome) {
+		gather.pending = false;
+		gather.outcome = outcome;
+		gather.completedNanos = System.nanoTime();
+		if (outcome != Outcome.DEADLINE)
+			gather.timeout.cancel();
+		switch (outcome) {
+		case ALL:
+			allCount.incrementAndGet();
+			break;
+		case FIRST_K:
+			firstKCount.incrementAndGet();
+			break;
+		case DEADLINE:
+			deadlineCount.incrementAndGet();
+			break;
+		default:
+			failedCount.incrementAndGet();
+		}
+		try {
+			gather.callback.onGather(gather);
+		} finally {
+			gather.callback = null;
+			gather.timeout = null;
+			gather.generation++;
+			releaseSlot(gather.slot);
+			window.release();
+		}
+	}
+
+	private synchronized int acquireSlot() {
+		// The window guarantees a free slot
+		return freeSlots[--freeCount];
+	}
+
+	private synchronized void releaseSlot(int slot) {
+		freeSlots[freeCount++] = slot;
+	}
+
+	public int getOutstanding() {
+		return gathers.length - window.availablePermits();
+	}
+
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	/**
+	 * @return the requests which got all the expected replies
+	 */
+	public long getAllCount() {
+		return allCount.get();
+	}
+
+	/**
+	 * @return the requests which completed on their first K replies
+	 */
+	public long getFirstKCount() {
+		return firstKCount.get();
+	}
+
+	/**
+	 * @return the requests which completed at their deadline
+	 */
+	public long getDeadlineCount() {
+		return deadlineCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the replies which came after their request completed
+	 */
+	public long getLateReplyCount() {
+		return lateReplyCount.get();
+	}
+
+	public void destroy() {
+		if (txMessageHandle.isBound())
+			txMessageHandle.destroy();
+	}
+
+	/**
+	 * The replies gathered for a request, also its deadline task. Only valid
+	 * during {@link GatherCallback#onGather(Gather)}.
+	 */
+	public final class Gather implements HashedTimingWheel.TimerTask {
+
+		final int slot;
+		final ByteBuffer[] replies;
+		int generation;
+
+		long id;
+		boolean pending;
+		int expected;
+		int first;
+		int replyCount;
+		long tag;
+		long sentNanos;
+		long completedNanos;
+		Outcome outcome;
+		GatherCallback callback;
+		HashedTimingWheel.Timeout timeout;
+
+		Gather(int slot, int maxReplies, int maxReplySize) {
+			this.slot = slot;
+			this.replies = new ByteBuffer[maxReplies];
+			for (int i = 0; i < maxReplies; i++)
+				replies[i] = ByteBuffer.allocateDirect(maxReplySize);
+		}
+
+		long arm(int expected, int first, long tag, GatherCallback callback) {
+			this.id = ((long) (generation & 0x7fffffff) << 32) | slot;
+			this.pending = true;
+			this.expected = expected;
+			this.first = first;
+			this.replyCount = 0;
+			this.tag = tag;
+			this.callback = callback;
+			this.outcome = null;
+			this.sentNanos = System.nanoTime();
+			return id;
+		}
+
+		/**
+		 * Copies the reply payload in, on the context thread.
+		 */
+		void add(MessageHandle rxMessage) {
+			rxContent.clear();
+			rxMessage.getBinaryAttachment(rxContent);
+			rxContent.flip();
+			ByteBuffer reply = replies[replyCount++];
+			reply.clear();
+			if (rxContent.remaining() > reply.capacity())
+				rxContent.limit(rxContent.position() + reply.capacity());
+			reply.put(rxContent);
+			reply.flip();
+		}
+
+		@Override
+		public void run(HashedTimingWheel.Timeout expired) {
+			synchronized (this) {
+				if (!pending || expired != timeout)
+					return;
+				complete(this, Outcome.DEADLINE);
+			}
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		/**
+		 * @return true unless the deadline or a failure completed the request
+		 */
+		public boolean isComplete() {
+			return outcome == Outcome.ALL || outcome == Outcome.FIRST_K;
+		}
+
+		public int getExpected() {
+			return expected;
+		}
+
+		public int getFirst() {
+			return first;
+		}
+
+		public int getReplyCount() {
+			return replyCount;
+		}
+
+		/**
+		 * @return the payload of the i-th reply in the order they came
+		 */
+		public ByteBuffer getReply(int i) {
+			if (i >= replyCount)
+				throw new IndexOutOfBoundsException("Reply " + i + " of "
+						+ replyCount);
+			return replies[i];
+		}
+
+		public long getTag() {
+			return tag;
+		}
+
+		/**
+		 * @return from the request to its completion
+		 */
+		public long getLatencyNanos() {
+			return completedNanos - sentNanos;
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+/**
+ * Accounts for the sequence numbers of received messages: how many were
+ * received, lost (gaps), duplicated or delivered out of order.
+ * <p>
+ * Recently seen sequence numbers are kept in a sliding bitmap window allocated
+ * up front, so {@link #onReceive(long, int)} never allocates. A sequence
+ * number that leaves the window without having been seen is counted as lost.
+ * One that shows up after its slot has left the window is counted as late
+ * (it cannot be told apart from a duplicate at that point), and lost is not
+ * corrected.
+ * <p>
+ * Not thread-safe, a tracker is expected to be updated by a single thread
+ * (usually the context thread). The counters may be read from another thread
+ * for progress reports, those values are approximate.
+ */
+public class SequenceTracker {
+
+	private final long[] bitmap;
+	private final int windowSize;
+	private final int windowMask;
+
+	private final long firstSequence;
+	private long highestSequence;
+
+	private long receivedCount;
+	private long receivedBytes;
+	private long lostCount;
+	private long duplicateCount;
+	private long outOfOrderCount;
+	private long lateCount;
+
+	private long firstReceiveNanos;
+	private long lastReceiveNanos;
+
+	/**
+	 * @param firstSequence
+	 *            the sequence number of the first message the publisher sends
+	 * @param windowSize
+	 *            how far back out of order messages are still recognized,
+	 *            rounded up to a power of two (at least 64)
+	 */
+	public SequenceTracker(long firstSequence, int windowSize) {
+		int size = 64;
+		while (size < windowSize)
+			size <<= 1;
+		this.windowSize = size;
+		this.windowMask = size - 1;
+		this.bitmap = new long[size >> 6];
+		this.firstSequence = firstSequence;
+		this.highestSequence = firstSequence - 1;
+	}
+
+	/**
+	 * Records a received message.
+	 *
+	 * @param sequence
+	 *            the sequence number carried by the message
+	 * @param bytes
+	 *            the size of the message payload
+	 */
+	public void onReceive(long sequence, int bytes) {
+		long now = System.nanoTime();
+		if (receivedCount == 0)
+			firstReceiveNanos = now;
+		lastReceiveNanos = now;
+		receivedCount++;
+		receivedBytes += bytes;
+
+		if (sequence > highestSequence) {
+			advanceTo(sequence);
+			setSeen(sequence);
+		} else if (sequence <= highestSequence - windowSize
+				|| sequence < firstSequence) {
+			lateCount++;
+		} else if (isSeen(sequence)) {
+			duplicateCount++;
+		} else {
+			setSeen(sequence);
+			outOfOrderCount++;
+		}
+	}
+
+	/**
+	 * Slides the window so that it ends at newHighest, counting every
+	 * sequence number that leaves the window unseen as lost.
+	 */
+	private void advanceTo(long newHighest) {
+		long distance = newHighest - highestSequence;
+		if (distance > windowSize) {
+			// Everything currently in the window leaves it
+			lostCount += unseenInWindow();
+			// Sequence numbers that jump over the whole window are never seen
+			lostCount += distance - windowSize;
+			java.util.Arrays.fill(bitmap, 0);
+		} else {
+			for (long s = highestSequence + 1; s <= newHighest; s++) {
+				long leaving = s - windowSize;
+				if (leaving >= firstSequence && !isSeen(s)) {
+					// Same bit as the slot leaving the window
+					lostCount++;
+				}
+				clearSeen(s);
+			}
+		}
+		highestSequence = newHighest;
+	}
+
+	private long unseenInWindow() {
+		long unseen = 0;
+		long from = Math.max(firstSequence, highestSequence - windowSize + 1);
+		for (long s = from; s <= highestSequence; s++) {
+			if (!isSeen(s))
+				unseen++;
+		}
+		return unseen;
+	}
+
+	/**
+	 * Closes the accounting once the publisher is done, every message up to
+	 * lastSequence that was not received is counted as lost.
+	 *
+	 * @param lastSequence
+	 *            the sequence number of the last message sent
+	 */
+	public void finish(long lastSequence) {
+		if (lastSequence > highestSequence) {
+			advanceTo(lastSequence);
+			// lastSequence itself was not received
+			lostCount++;
+			setSeen(lastSequence);
+		}
+		lostCount += unseenInWindow();
+		java.util.Arrays.fill(bitmap, -1L);
+	}
+
+	private boolean isSeen(long sequence) {
+		int bit = (int) (sequence & windowMask);
+		return (bitmap[bit >> 6] & (1L << bit)) != 0;
+	}
+
+	private void setSeen(long sequence) {
+		int bit = (int) (sequence & windowMask);
+		bitmap[bit >> 6] |= (1L << bit);
+	}
+
+	private void clearSeen(long sequence) {
+		int bit = (int) (sequence & windowMask);
+		bitmap[bit >> 6] &= ~(1L << bit);
+	}
+
+	public long getReceivedCount() {
+		return receivedCount;
+	}
+
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	public long getLostCount() {
+		return lostCount;
+	}
+
+	public long getDuplicateCount() {
+		return duplicateCount;
+	}
+
+	public long getOutOfOrderCount() {
+		return outOfOrderCount;
+	}
+
+	public long getLateCount() {
+		return lateCount;
+	}
+
+	/**
+	 * Prints the receive totals, rates and loss accounting.
+	 *
+	 * @param sentCount
+	 *            the number of messages published
+	 */
+	public void printReport(long sentCount) {
+		double seconds = (lastReceiveNanos - firstReceiveNanos) / 1e9;
+		System.out.printf("%nReceived %d messages, %d bytes", receivedCount,
+				receivedBytes);
+		if (seconds > 0) {
+			System.out.printf(" in %f seconds = %f msg/second, %f bytes/second",
+					seconds, receivedCount / seconds, receivedBytes / seconds);
+		}
+		System.out.println();
+		System.out.printf(
+				"Lost %d (%.4f%% of %d sent), duplicates %d, out of order %d, late %d%n",
+				lostCount, sentCount == 0 ? 0.0 : 100.0 * lostCount
+						/ sentCount, sentCount, duplicateCount,
+				outOfOrderCount, lateCount);
+	}
+
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.event.SessionEvent;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * Adds many topic subscriptions to a session without a blocking round trip
+ * per topic.
+ * <p>
+ * Subscriptions are issued with REQUEST_CONFIRM instead of WAIT_FOR_CONFIRM,
+ * each one carrying the index of its topic as correlation key, and at most
+ * a window of them is waiting for its confirmation at any time. The session
+ * event callback hands the events to {@link #onSessionEvent(SessionEvent)},
+ * which matches SUBSCRIPTION_OK and SUBSCRIPTION_ERROR to their topic by
+ * correlation key, opens the window again and queues the failed topics for
+ * another attempt.
+ * <p>
+ * A window of 0 falls back to one WAIT_FOR_CONFIRM subscription at a time,
+ * the way the samples subscribe, to compare the setup times.
+ * <p>
+ * One manager subscribes one list of topics at a time, the correlation keys
+ * of the session must not be used for anything else in the meantime.
+ */
+public class SubscriptionManager {
+
+	private static final int PENDING = 0;
+	private static final int IN_FLIGHT = 1;
+	private static final int CONFIRMED = 2;
+	private static final int FAILED = 3;
+
+	// How long to back off when the session cannot take more requests
+	private static final long WOULD_BLOCK_BACKOFF_MS = 1;
+
+	private final SessionHandle sessionHandle;
+	private final int windowSize;
+	private final int maxRetries;
+
+	private String[] topics;
+	private AtomicIntegerArray states;
+	private AtomicIntegerArray attempts;
+	private Semaphore window;
+	private final ConcurrentLinkedQueue<Integer> retries = new ConcurrentLinkedQueue<Integer>();
+
+	// Updated from both the calling thread and the context thread
+	private final AtomicInteger confirmedCount = new AtomicInteger();
+	private final AtomicInteger failedCount = new AtomicInteger();
+	private final AtomicInteger retryCount = new AtomicInteger();
+	private volatile String lastError;
+	private long elapsedNanos;
+
+	/**
+	 * @param windowSize
+	 *            the most subscriptions waiting for their confirmation, 0 to
+	 *            wait for each one in turn
+	 * @param maxRetries
+	 *            how many times a rejected subscription is issued again
+	 */
+	public SubscriptionManager(SessionHandle sessionHandle, int windowSize,
+			int maxRetries) {
+		if (windowSize < 0)
+			throw new IllegalArgumentException(
+					"Subscription window must not be negative, got "
+							+ windowSize);
+		this.sessionHandle = sessionHandle;
+		this.windowSize = windowSize;
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Subscribes to all the topics, returns when every subscription is
+	 * confirmed or has failed for good, or when no confirmation came for
+	 * idleTimeoutMs.
+	 *
+	 * @return the number of confirmed subscriptions
+	 */
+	public int subscribeAll(String[] topics, long idleTimeoutMs) {
+		this.topics = topics;
+		states = new AtomicIntegerArray(topics.length);
+		attempts = new AtomicIntegerArray(topics.length);
+		retries.clear();
+		confirmedCount.set(0);
+		failedCount.set(0);
+		retryCount.set(0);
+		lastError = null;
+
+		long start = System.nanoTime();
+		if (windowSize == 0) {
+			subscribeOneByOne();
+		} else {
+			window = new Semaphore(windowSize);
+			for (int i = 0; i < topics.length; i++) {
+				if (!issue(i, idleTimeoutMs))
+					break;
+			}
+			awaitCompletion(idleTimeoutMs);
+		}
+		elapsedNanos = System.nanoTime() - start;
+		return confirmedCount.get();
+	}
+
+	private void subscribeOneByOne() {
+		for (int i = 0; i < topics.length; i++) {
+			while (true) {
+				attempts.incrementAndGet(i);
+				int rc = sessionHandle.subscribe(
+						Solclient.Allocator.newTopic(topics[i]),
+						SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
+				if (rc == SolEnum.ReturnCode.OK) {
+					states.set(i, CONFIRMED);
+					confirmedCount.incrementAndGet();
+					break;
+				}
+				if (attempts.get(i) > maxRetries) {
+					fail(i, Solclient.getLastErrorInfo().toString());
+					break;
+				}
+				retryCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Takes a slot of the window and issues the subscription of a topic.
+	 *
+	 * @return false when the window stayed full for idleTimeoutMs
+	 */
+	private boolean issue(int index, long idleTimeoutMs) {
+		while (true) {
+			try {
+				if (!window.tryAcquire(idleTimeoutMs, TimeUnit.MILLISECONDS))
+					return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			states.set(index, IN_FLIGHT);
+			attempts.incrementAndGet(index);
+			int rc = sessionHandle.subscribe(
+					Solclient.Allocator.newTopic(topics[index]),
+					SolEnum.SubscribeFlags.REQUEST_CONFIRM,
+					correlationKey(index));
+			if (rc == SolEnum.ReturnCode.OK
+					|| rc == SolEnum.ReturnCode.IN_PROGRESS)
+				return true;
+
+			// Not sent, no confirmation will come for it
+			states.set(index, PENDING);
+			window.release();
+			if (rc == SolEnum.ReturnCode.WOULD_BLOCK) {
+				attempts.decrementAndGet(index);
+				sleep(WOULD_BLOCK_BACKOFF_MS);
+			} else if (attempts.get(index) > maxRetries) {
+				fail(index, Solclient.getLastErrorInfo().toString());
+				return true;
+			} else {
+				retryCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Issues the queued retries until every topic is settled, or nothing
+	 * settled for idleTimeoutMs.
+	 */
+	private void awaitCompletion(long idleTimeoutMs) {
+		int lastSettled = -1;
+		long lastProgress = System.currentTimeMillis();
+		while (settledCount() < topics.length) {
+			Integer retry = retries.poll();
+			if (retry != null) {
+				if (!issue(retry.intValue(), idleTimeoutMs))
+					break;
+				continue;
+			}
+			int settled = settledCount();
+			long now = System.currentTimeMillis();
+			if (settled != lastSettled) {
+				lastSettled = settled;
+				lastProgress = now;
+			} else if (now - lastProgress > idleTimeoutMs) {
+				break;
+			}
+			sleep(1);
+		}
+	}
+
+	/**
+	 * To be called from the session event callback.
+	 *
+	 * @return true when the event was the confirmation or the rejection of a
+	 *         subscription of this manager
+	 */
+	public boolean onSessionEvent(SessionEvent se) {
+		int code = se.getSessionEventCode();
+		if (code != SolEnum.SessionEventCode.SUBSCRIPTION_OK
+				&& code != SolEnum.SessionEventCode.SUBSCRIPTION_ERROR)
+			return false;
+
+		int index = topicIndex(se.getCorrelationKey());
+		if (states == null || index < 0 || index >= states.length()
+				|| !states.compareAndSet(index, IN_FLIGHT, PENDING))
+			return false;
+
+		if (code == SolEnum.SessionEventCode.SUBSCRIPTION_OK) {
+			states.set(index, CONFIRMED);
+			confirmedCount.incrementAndGet();
+		} else if (attempts.get(index) > maxRetries) {
+			fail(index, se.toString());
+		} else {
+			retryCount.incrementAndGet();
+			retries.add(Integer.valueOf(index));
+		}
+		window.release();
+		return true;
+	}
+
+	private void fail(int index, String error) {
+		states.set(index, FAILED);
+		lastError = "[" + topics[index] + "] " + error;
+		failedCount.incrementAndGet();
+	}
+
+	private int settledCount() {
+		return confirmedCount.get() + failedCount.get();
+	}
+
+	/**
+	 * Keys start at 1, 0 means no correlation.
+	 */
+	private static int correlationKey(int index) {
+		return index + 1;
+	}
+
+	private static int topicIndex(long correlationKey) {
+		return (int) correlationKey - 1;
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getConfirmedCount() {
+		return confirmedCount.get();
+	}
+
+	public int getFailedCount() {
+		return failedCount.get();
+	}
+
+	public int getRetryCount() {
+		return retryCount.get();
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public void printReport() {
+		int total = topics == null ? 0 : topics.length;
+		double seconds = elapsedNanos / 1e9;
+		System.out.printf(
+				"%nSubscribed %d of %d topics in %.3f seconds = %.1f subscriptions/second%n",
+				confirmedCount.get(), total, seconds, confirmedCount.get()
+						/ seconds);
+		System.out.printf("%s, %d retries, %d failed, %d unconfirmed%n",
+				windowSize == 0 ? "One at a time" : "Window of " + windowSize,
+				retryCount.get(), failedCount.get(), total - settledCount());
+		if (lastError != null)
+			System.out.println("Last failure: " + lastError);
+	}
+
+}
@@ -4,13 +4,16 @@
  */
 package com.solace.samples.javarto.features;
 
+import java.util.Map;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
 import com.solacesystems.solclientj.core.Solclient;
 import com.solacesystems.solclientj.core.SolclientException;
+import com.solacesystems.solclientj.core.event.MessageCallback;
 import com.solacesystems.solclientj.core.event.SessionEventCallback;
 import com.solacesystems.solclientj.core.handle.ContextHandle;
+import com.solacesystems.solclientj.core.handle.Handle;
 import com.solacesystems.solclientj.core.handle.MessageDispatchTargetHandle;
 import com.solacesystems.solclientj.core.handle.MessageHandle;
 import com.solacesystems.solclientj.core.handle.SessionHandle;
@@ -37,6 +40,14 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * <li>publish on Topic c/e and verify receipt on only dispatch function 2
  * </ul>
  * 
+ * With -handlers N, the sample instead compares two ways of dispatching to
+ * N local handlers, one per topic: a {@link TopicTrieDispatcher} matching the
+ * destination of every message in a {@link TopicTrie} from the session
+ * callback, then one MessageDispatchTargetHandle per topic. It publishes -n
+ * messages round robin over the topics for each, and reports the rate at
+ * which the handlers received them.
+ * <p>
+ * 
  * <strong>This sample illustrates the ease of use of concepts, and may not be
  * GC-free.<br>
  * See Perf* samples for GC-free examples. </strong>
@@ -57,10 +68,22 @@ public class TopicDispatch extends AbstractSample {
 	private MessageDispatchTargetHandle messageDispatchTargetHandleTopic3;
 	private MessageDispatchTargetHandle messageDispatchTargetHandleTopic4;
 
+	private static final String DISPATCH_TOPIC_PREFIX = "d/h";
+
+	private int handlerCount = 0;
+	private int numOfMessages = 100000;
+	private MessageDispatchTargetHandle[] dispatchTargets;
+
 	@Override
 	protected void printUsage(boolean secureSession) {
 		String usage = ArgumentsParser.getCommonUsage(secureSession);
 		System.out.println(usage);
+		System.out
+				.println("\t -handlers N : compare dispatching to N local handlers through a topic trie and through dispatch targets [default: "
+						+ handlerCount + ", run the dispatch demo]\n");
+		System.out
+				.println("\t -n messages : number of messages per dispatch comparison run [default "
+						+ numOfMessages + "] \n");
 		finish(1);
 	}
 
@@ -71,7 +94,17 @@ public class TopicDispatch extends AbstractSample {
 	protected void run(String[] args, SessionConfiguration config, Level logLevel)
 			throws SolclientException {
 
-	    
+		Map<String, String> cmdLineArgs = config.getArgBag();
+		if (cmdLineArgs.containsKey("-handlers")) {
+			handlerCount = Integer.parseInt(cmdLineArgs.get("-handlers"));
+		}
+		if (cmdLineArgs.containsKey("-n")) {
+			numOfMessages = Integer.parseInt(cmdLineArgs.get("-n"));
+		}
+		if (handlerCount > 0) {
+			// Keep the per message and per handler output out of the way
+			beSilent();
+		}
 
 		// Init
 		print(" Initializing the Java RTO Messaging API...");
@@ -125,9 +158,18 @@ public class TopicDispatch extends AbstractSample {
 		MessageCallbackSample messageCallback1 = new MessageCallbackSample(
 				"session");
 
+		// In comparison mode the session callback dispatches through a trie
+		MessageCallback sessionMessageCallback = messageCallback1;
+		TopicTrieDispatcher trieDispatcher = null;
+		if (handlerCount > 0) {
+			trieDispatcher = new TopicTrieDispatcher(
+					new TopicTrie<MessageCallback>(), messageCallback1);
+			sessionMessageCallback = trieDispatcher;
+		}
+
 		/* Create the Session. */
 		rc = contextHandle.createSessionForHandle(sessionHandle, sessionProps,
-				messageCallback1, sessionEventCallback);
+				sessionMessageCallback, sessionEventCallback);
 		assertReturnCode("contextHandle.createSession() - session", rc,
 				SolEnum.ReturnCode.OK);
 
@@ -136,6 +178,11 @@ public class TopicDispatch extends AbstractSample {
 		rc = sessionHandle.connect();
 		assertReturnCode("sessionHandle.connect()", rc, SolEnum.ReturnCode.OK);
 
+		if (trieDispatcher != null) {
+			compareDispatch(trieDispatcher);
+			return;
+		}
+
 		/*************************************************************************
 		 * Add Session subscription
 		 *************************************************************************/
@@ -265,6 +312,140 @@ public class TopicDispatch extends AbstractSample {
 		print("Run() DONE");
 	}
 
+	/**
+	 * Publishes {@link #numOfMessages} over {@link #handlerCount} topics,
+	 * dispatched to one handler per topic through the trie, then through
+	 * dispatch targets.
+	 */
+	private void compareDispatch(TopicTrieDispatcher trieDispatcher) {
+		System.out.printf(
+				"%nDispatch comparison, %d handlers, %d messages per run%n",
+				handlerCount, numOfMessages);
+
+		String subscription = DISPATCH_TOPIC_PREFIX + "/>";
+		int rc = sessionHandle.subscribe(
+				Solclient.Allocator.newTopic(subscription),
+				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
+		assertReturnCode("sessionHandle.subscribe() to topic " + subscription,
+				rc, SolEnum.ReturnCode.OK);
+
+		rc = Solclient.createMessageForHandle(txMessageHandle);
+		assertReturnCode("Solclient.createMessage()", rc, SolEnum.ReturnCode.OK);
+		txMessageHandle
+				.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.DIRECT);
+
+		TopicUniverse universe = new TopicUniverse(DISPATCH_TOPIC_PREFIX,
+				handlerCount, TopicUniverse.Distribution.UNIFORM, 1.0,
+				SolEnum.SolConstants.MAX_TOPIC_SIZE);
+		Topic mutableTopic = Solclient.Allocator.newMutableTopic(universe
+				.getTopicBuffer());
+		CountingHandler[] handlers = new CountingHandler[handlerCount];
+		for (int i = 0; i < handlerCount; i++)
+			handlers[i] = new CountingHandler();
+
+		/*************************************************************************
+		 * Topic trie, a single session callback
+		 *************************************************************************/
+		TopicTrie<MessageCallback> trie = trieDispatcher.getTrie();
+		long setupStart = System.nanoTime();
+		for (int i = 0; i < handlerCount; i++)
+			trie.add(universe.getTopic(i), handlers[i]);
+		long trieSetupNanos = System.nanoTime() - setupStart;
+		double trieRate = publishRoundRobin(universe, mutableTopic, handlers);
+
+		for (int i = 0; i < handlerCount; i++)
+			trie.remove(universe.getTopic(i), handlers[i]);
+
+		/*************************************************************************
+		 * One local dispatch target per topic
+		 *************************************************************************/
+		dispatchTargets = new MessageDispatchTargetHandle[handlerCount];
+		setupStart = System.nanoTime();
+		for (int i = 0; i < handlerCount; i++) {
+			dispatchTargets[i] = Solclient.Allocator
+					.newMessageDispatchTargetHandle(
+							Solclient.Allocator.newTopic(universe.getTopic(i)),
+							handlers[i], true);
+			rc = sessionHandle.subscribe(dispatchTargets[i], 0, 0);
+			assertReturnCode(
+					"sessionHandle.subscribe with a MessageDispatchTargetHandle",
+					rc, SolEnum.ReturnCode.OK);
+		}
+		long nativeSetupNanos = System.nanoTime() - setupStart;
+		double nativeRate = publishRoundRobin(universe, mutableTopic, handlers);
+
+		System.out.printf("%n%18s %14s %14s%n", "", "setup ms", "msg/second");
+		System.out.printf("%18s %14.1f %14.1f%n", "topic trie",
+				trieSetupNanos / 1e6, trieRate);
+		System.out.printf("%18s %14.1f %14.1f%n", "dispatch targets",
+				nativeSetupNanos / 1e6, nativeRate);
+		if (trieDispatcher.getUnmatchedCount() > 0)
+			System.out.printf("%d messages matched no handler of the trie%n",
+					trieDispatcher.getUnmatchedCount());
+		System.out
+				.println("The topic trie matches without allocating, but reads every destination as a Destination and a String: solclientj has no call to read it into a buffer");
+	}
+
+	/**
+	 * @return the rate at which the handlers received the messages, from the
+	 *         first send to the last receipt
+	 */
+	private double publishRoundRobin(TopicUniverse universe,
+			Topic mutableTopic, CountingHandler[] handlers) {
+		for (int i = 0; i < handlers.length; i++)
+			handlers[i].messageCount = 0;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numOfMessages; i++) {
+			universe.select(i % handlerCount);
+			txMessageHandle.setDestination(mutableTopic);
+			sessionHandle.send(txMessageHandle);
+		}
+
+		long received = 0;
+		long lastReceived = -1;
+		long lastProgress = System.currentTimeMillis();
+		long end = System.nanoTime();
+		while (true) {
+			received = 0;
+			for (int i = 0; i < handlers.length; i++)
+				received += handlers[i].messageCount;
+			long now = System.currentTimeMillis();
+			if (received != lastReceived) {
+				lastReceived = received;
+				lastProgress = now;
+				end = System.nanoTime();
+			}
+			if (received >= numOfMessages || now - lastProgress > 2000)
+				break;
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				break;
+			}
+		}
+		if (received != numOfMessages) {
+			throw new IllegalStateException(numOfMessages
+					+ " messages were expected on the handlers, got ["
+					+ received + "] instead");
+		}
+		return received / ((end - start) / 1e9);
+	}
+
+	/**
+	 * A local handler, which only counts its messages.
+	 */
+	static class CountingHandler implements MessageCallback {
+
+		volatile long messageCount;
+
+		@Override
+		public void onMessage(Handle handle) {
+			messageCount++;
+		}
+	}
+
 	/**
 	 * Invoked when the sample finishes
 	 */
@@ -284,6 +465,13 @@ public class TopicDispatch extends AbstractSample {
 		finish_DestroyHandle(messageDispatchTargetHandleTopic4,
 				"messageDispatchTargetHandleTopic4");
 
+		if (dispatchTargets != null) {
+			for (int i = 0; i < dispatchTargets.length; i++) {
+				if (dispatchTargets[i] != null && dispatchTargets[i].isBound())
+					dispatchTargets[i].destroy();
+			}
+		}
+
 		finish_DestroyHandle(txMessageHandle, "messageHandle");
 
 		finish_Disconnect(sessionHandle);
@@ -0,0 +1,447 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Matches topics against subscriptions with the wildcards of the message
+ * router, to dispatch a received message to local handlers from a single
+ * session callback.
+ * <p>
+ * Levels are separated by '/'. A level made of '*' matches any one level, a
+ * level ending with '*' matches any level starting with its prefix, and a
+ * last level of '&gt;' matches one or more remaining levels.
+ * <p>
+ * Subscriptions are stored in a trie of levels. {@link #match(ByteBuffer, Visitor)}
+ * walks it directly over the bytes of the topic, hashing each level in
+ * place, so matching creates neither a String nor any other object. A
+ * handler added under several subscriptions matching the same topic is
+ * visited once per match.
+ * <p>
+ * The trie is not thread safe: subscriptions are meant to be added and
+ * removed from the thread which matches, usually the context thread, or
+ * under a lock shared with it.
+ *
+ * @param <T>
+ *            the type of the handlers
+ */
+public class TopicTrie<T> {
+
+	/**
+	 * Called with every handler whose subscription matches the topic.
+	 */
+	public interface Visitor<T> {
+		void onMatch(T handler);
+	}
+
+	private static final byte LEVEL_SEPARATOR = '/';
+	private static final byte WILDCARD = '*';
+	private static final byte MULTI_LEVEL_WILDCARD = '>';
+
+	private final Node<T> root = new Node<T>();
+	private final IdentityHashMap<T, Registration<T>> registrations = new IdentityHashMap<T, Registration<T>>();
+	private int subscriptionCount;
+	// Stamped on the registrations visited by the current match
+	private int matchStamp;
+
+	/**
+	 * Adds a handler under a subscription, a handler may be added under any
+	 * number of subscriptions.
+	 */
+	public void add(String subscription, T handler) {
+		if (handler == null)
+			throw new IllegalArgumentException("Handler may not be null");
+		byte[] bytes = toBytes(subscription);
+		Node<T> node = root;
+		int start = 0;
+		while (true) {
+			int end = levelEnd(bytes, start);
+			boolean last = end == bytes.length;
+			if (last && end - start == 1
+					&& bytes[start] == MULTI_LEVEL_WILDCARD) {
+				addHandler(node.multiLevelHandlers(), handler);
+				return;
+			}
+			node = node.childForLevel(bytes, start, end);
+			if (last) {
+				addHandler(node.handlers(), handler);
+				return;
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * @return false when the handler was not added under that subscription
+	 */
+	public boolean remove(String subscription, T handler) {
+		byte[] bytes = toBytes(subscription);
+		Node<T> node = root;
+		int start = 0;
+		while (node != null) {
+			int end = levelEnd(bytes, start);
+			boolean last = end == bytes.length;
+			if (last && end - start == 1
+					&& bytes[start] == MULTI_LEVEL_WILDCARD)
+				return removeHandler(node.multiLevelHandlers, handler);
+			node = node.findLevel(bytes, start, end);
+			if (last)
+				return node != null && removeHandler(node.handlers, handler);
+			start = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Visits the handlers of every subscription matching the topic, the bytes
+	 * of the buffer from its position to its limit. The buffer is left
+	 * untouched.
+	 *
+	 * @return the number of handlers visited
+	 */
+	public int match(ByteBuffer topic, Visitor<T> visitor) {
+		int start = topic.position();
+		int limit = topic.limit();
+		if (start == limit)
+			return 0;
+		if (++matchStamp == 0)
+			resetStamps();
+		return match(root, topic, start, limit, visitor);
+	}
+
+	/**
+	 * @return the number of distinct handlers
+	 */
+	public int getHandlerCount() {
+		return registrations.size();
+	}
+
+	/**
+	 * @return the number of (subscription, handler) pairs
+	 */
+	public int getSubscriptionCount() {
+		return subscriptionCount;
+	}
+
+	private int match(Node<T> node, ByteBuffer topic, int start, int limit,
+			Visitor<T> visitor) {
+		int end = start;
+		while (end < limit && topic.get(end) != LEVEL_SEPARATOR)
+			end++;
+		boolean last = end == limit;
+
+		// At least the current level remains
+		int visited = visit(node.multiLevelHandlers, visitor);
+
+		Node<T> child = node.findLevel(topic, start, end);
+		if (child != null)
+			visited += matchChild(child, topic, end, limit, last, visitor);
+
+		if (node.wildcard != null)
+			visited += matchChild(node.wildcard, topic, end, limit, last,
+					visitor);
+
+		if (node.prefixes != null) {
+			int levelLength = end - start;
+			for (int i = 0; i < node.prefixes.size(); i++) {
+				Node<T> prefixNode = node.prefixes.get(i);
+				byte[] prefix = prefixNode.level;
+				if (prefix.length <= levelLength
+						&& startsWith(topic, start, prefix))
+					visited += matchChild(prefixNode, topic, end, limit, last,
+							visitor);
+			}
+		}
+		return visited;
+	}
+
+	private int matchChild(Node<T> child, ByteBuffer topic, int end,
+			int limit, boolean last, Visitor<T> visitor) {
+		if (last)
+			return visit(child.handlers, visitor);
+		return match(child, topic, end + 1, limit, visitor);
+	}
+
+	private int visit(ArrayList<Registration<T>> handlers, Visitor<T> visitor) {
+		if (handlers == null)
+			return 0;
+		int visited = 0;
+		for (int i = 0; i < handlers.size(); i++) {
+			Registration<T> registration = handlers.get(i);
+			if (registration.stamp != matchStamp) {
+				registration.stamp = matchStamp;
+				visitor.onMatch(registration.handler);
+				visited++;
+			}
+		}
+		return visited;
+	}
+
+	private void addHandler(ArrayList<Registration<T>> handlers, T handler) {
+		Registration<T> registration = registrations.get(handler);
+		if (registration == null) {
+			registration = new Registration<T>(handler);
+			registrations.put(handler, registration);
+		}
+		if (handlers.contains(registration))
+			return;
+		handlers.add(registration);
+		registration.references++;
+		subscriptionCount++;
+	}
+
+	private boolean removeHandler(ArrayList<Registration<T>> handlers,
+			T handler) {
+		Registration<T> registration = registrations.get(handler);
+		if (handlers == null || registration == null
+				|| !handlers.remove(registration))
+			return false;
+		if (--registration.references == 0)
+			registrations.remove(handler);
+		subscriptionCount--;
+		return true;
+	}
+
+	private void resetStamps() {
+		for (Registration<T> registration : registrations.values())
+			registration.stamp = 0;
+		matchStamp = 1;
+	}
+
+	private static byte[] toBytes(String subscription) {
+		if (subscription == null || subscription.length() == 0)
+			throw new IllegalArgumentException(
+					"Subscription may not be empty");
+		return subscription.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int levelEnd(byte[] bytes, int start) {
+		int end = start;
+		while (end < bytes.length && bytes[end] != LEVEL_SEPARATOR)
+			end++;
+		return end;
+	}
+
+	private static boolean startsWith(ByteBuffer topic, int start,
+			byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (topic.get(start + i) != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * FNV-1a over the bytes of a level.
+	 */
+	static int hash(byte[] bytes, int start, int end) {
+		int h = 0x811C9DC5;
+		for (int i = start; i < end; i++) {
+			h ^= bytes[i] & 0xFF;
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	static int hash(ByteBuffer bytes, int start, int end) {
+		int h = 0x811C9DC5;
+		for (int i = start; i < end; i++) {
+			h ^= bytes.get(i) & 0xFF;
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	static class Registration<T> {
+
+		final T handler;
+		int stamp;
+		int references;
+
+		Registration(T handler) {
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * A level of the trie. Literal children are kept in an open addressing
+	 * table keyed by the bytes of their level, so that a level of the topic
+	 * is looked up without being copied.
+	 */
+	static class Node<T> {
+
+		// The literal level, or the prefix of a prefix wildcard
+		final byte[] level;
+		final int levelHash;
+
+		byte[][] keys;
+		int[] hashes;
+		Node<T>[] children;
+		int childCount;
+
+		Node<T> wildcard;
+		ArrayList<Node<T>> prefixes;
+
+		// Subscriptions ending at this level
+		ArrayList<Registration<T>> handlers;
+		// Subscriptions ending with '>' after this level
+		ArrayList<Registration<T>> multiLevelHandlers;
+
+		Node() {
+			this(null, 0);
+		}
+
+		Node(byte[] level, int levelHash) {
+			this.level = level;
+			this.levelHash = levelHash;
+		}
+
+		ArrayList<Registration<T>> handlers() {
+			if (handlers == null)
+				handlers = new ArrayList<Registration<T>>(2);
+			return handlers;
+		}
+
+		ArrayList<Registration<T>> multiLevelHandlers() {
+			if (multiLevelHandlers == null)
+				multiLevelHandlers = new ArrayList<Registration<T>>(2);
+			return multiLevelHandlers;
+		}
+
+		/**
+		 * @return the child of a subscription level, created when missing
+		 */
+		Node<T> childForLevel(byte[] bytes, int start, int end) {
+			Node<T> child = findLevel(bytes, start, end);
+			if (child != null)
+				return child;
+
+			int length = end - start;
+			byte[] key = new byte[length > 0 && bytes[end - 1] == WILDCARD ? length - 1
+					: length];
+			System.arraycopy(bytes, start, key, 0, key.length);
+			if (length == 1 && bytes[start] == WILDCARD) {
+				wildcard = new Node<T>(key, 0);
+				return wildcard;
+			}
+			if (key.length < length) {
+				if (prefixes == null)
+					prefixes = new ArrayList<Node<T>>(2);
+				child = new Node<T>(key, 0);
+				prefixes.add(child);
+				return child;
+			}
+			child = new Node<T>(key, hash(key, 0, key.length));
+			put(child);
+			return child;
+		}
+
+		/**
+		 * @return the child of a subscription level, wildcards included
+		 */
+		Node<T> findLevel(byte[] bytes, int start, int end) {
+			int length = end - start;
+			if (length == 1 && bytes[start] == WILDCARD)
+				return wildcard;
+			if (length > 0 && bytes[end - 1] == WILDCARD) {
+				if (prefixes == null)
+					return null;
+				for (int i = 0; i < prefixes.size(); i++) {
+					Node<T> prefixNode = prefixes.get(i);
+					if (equals(prefixNode.level, bytes, start, end - 1))
+						return prefixNode;
+				}
+				return null;
+			}
+			if (children == null)
+				return null;
+			int h = hash(bytes, start, end);
+			int mask = keys.length - 1;
+			for (int slot = h & mask; keys[slot] != null; slot = (slot + 1)
+					& mask) {
+				if (hashes[slot] == h && equals(keys[slot], bytes, start, end))
+					return children[slot];
+			}
+			return null;
+		}
+
+		/**
+		 * @return the literal child of a topic level
+		 */
+		Node<T> findLevel(ByteBuffer topic, int start, int end) {
+			if (children == null)
+				return null;
+			int h = hash(topic, start, end);
+			int mask = keys.length - 1;
+			for (int slot = h & mask; keys[slot] != null; slot = (slot + 1)
+					& mask) {
+				if (hashes[slot] == h && equals(keys[slot], topic, start, end))
+					return children[slot];
+			}
+			return null;
+		}
+
+		// Arrays of a generic type cannot be created, the cast is safe as the
+		// array never leaves the node
+		@SuppressWarnings("unchecked")
+		private static <T> Node<T>[] newNodes(int size) {
+			return (Node<T>[]) new Node<?>[size];
+		}
+
+		private void put(Node<T> child) {
+			if (children == null) {
+				keys = new byte[4][];
+				hashes = new int[4];
+				children = newNodes(4);
+			} else if ((childCount + 1) * 4 > keys.length * 3) {
+				byte[][] oldKeys = keys;
+				Node<T>[] oldChildren = children;
+				keys = new byte[oldKeys.length * 2][];
+				hashes = new int[oldKeys.length * 2];
+				children = newNodes(oldKeys.length * 2);
+				childCount = 0;
+				for (int i = 0; i < oldKeys.length; i++) {
+					if (oldKeys[i] != null)
+						put(oldChildren[i]);
+				}
+			}
+			int mask = keys.length - 1;
+			int slot = child.levelHash & mask;
+			while (keys[slot] != null)
+				slot = (slot + 1) & mask;
+			keys[slot] = child.level;
+			hashes[slot] = child.levelHash;
+			children[slot] = child;
+			childCount++;
+		}
+
+		private static boolean equals(byte[] key, byte[] bytes, int start,
+				int end) {
+			if (key.length != end - start)
+				return false;
+			for (int i = 0; i < key.length; i++) {
+				if (key[i] != bytes[start + i])
+					return false;
+			}
+			return true;
+		}
+
+		private static boolean equals(byte[] key, ByteBuffer topic, int start,
+				int end) {
+			if (key.length != end - start)
+				return false;
+			for (int i = 0; i < key.length; i++) {
+				if (key[i] != topic.get(start + i))
+					return false;
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.resource.Destination;
+
+/**
+ * A session MessageCallback which fans every received message out to the
+ * local handlers whose subscription matches its destination, through a
+ * {@link TopicTrie}, instead of one MessageDispatchTargetHandle per
+ * subscription.
+ * <p>
+ * The destination is encoded as UTF-8 into a reused buffer and matched as
+ * bytes, the trie match allocates nothing. Reading the destination does:
+ * solclientj only hands the destination of a received message out as a
+ * Destination object holding a String name, and has no call to read it into
+ * a buffer, so every message costs a Destination and a String.
+ * Messages no handler matched go to the fallback callback, if any.
+ * Handlers are added and removed on the trie, from the context thread or
+ * before the session receives messages.
+ */
+public class TopicTrieDispatcher implements MessageCallback,
+		TopicTrie.Visitor<MessageCallback> {
+
+	private final TopicTrie<MessageCallback> trie;
+	private final MessageCallback fallback;
+	private final ByteBuffer topicBuffer = ByteBuffer
+			.allocateDirect(SolEnum.SolConstants.MAX_TOPIC_SIZE);
+
+	private Handle current;
+	private volatile long messageCount;
+	private volatile long unmatchedCount;
+
+	/**
+	 * @param fallback
+	 *            receives the messages which matched no handler, may be null
+	 */
+	public TopicTrieDispatcher(TopicTrie<MessageCallback> trie,
+			MessageCallback fallback) {
+		this.trie = trie;
+		this.fallback = fallback;
+	}
+
+	public TopicTrie<MessageCallback> getTrie() {
+		return trie;
+	}
+
+	@Override
+	public void onMessage(Handle handle) {
+		messageCount++;
+		MessageHandle rxMessage = ((MessageSupport) handle).getRxMessage();
+		Destination destination = rxMessage.getDestination();
+		int matched = 0;
+		if (destination != null && copyName(destination.getName(), topicBuffer)) {
+			current = handle;
+			try {
+				matched = trie.match(topicBuffer, this);
+			} finally {
+				current = null;
+			}
+		}
+		if (matched == 0) {
+			unmatchedCount++;
+			if (fallback != null)
+				fallback.onMessage(handle);
+		}
+	}
+
+	@Override
+	public void onMatch(MessageCallback handler) {
+		handler.onMessage(current);
+	}
+
+	/**
+	 * Encodes the topic into the buffer as UTF-8, char by char so that no
+	 * byte array is allocated for non-ASCII topics. A lone surrogate is
+	 * encoded as '?', as String.getBytes() does. The buffer is flipped, ready
+	 * to be read.
+	 *
+	 * @return false when the topic is empty
+	 */
+	static boolean copyName(String name, ByteBuffer topicBuffer) {
+		topicBuffer.clear();
+		int length = name.length();
+		if (length == 0)
+			return false;
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (c < 0x80) {
+				topicBuffer.put((byte) c);
+			} else if (c < 0x800) {
+				topicBuffer.put((byte) (0xc0 | (c >> 6)));
+				topicBuffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (!Character.isSurrogate(c)) {
+				topicBuffer.put((byte) (0xe0 | (c >> 12)));
+				topicBuffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				topicBuffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(name.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, name.charAt(++i));
+				topicBuffer.put((byte) (0xf0 | (codePoint >> 18)));
+				topicBuffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+				topicBuffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+				topicBuffer.put((byte) (0x80 | (codePoint & 0x3f)));
+			} else {
+				topicBuffer.put((byte) '?');
+			}
+		}
+		topicBuffer.flip();
+		return true;
+	}
+
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	public long getUnmatchedCount() {
+		return unmatchedCount;
+	}
+
+}
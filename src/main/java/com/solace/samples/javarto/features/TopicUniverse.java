@@ -0,0 +1,174 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A universe of topics of the form <code>prefix/NNNNNNN</code>, one per key
+ * from 0 to cardinality - 1, written in place into a single direct buffer
+ * that backs a mutable topic (Solclient.Allocator.newMutableTopic()).
+ * <p>
+ * {@link #select(int)} patches the zero padded key digits at the end of the
+ * buffer, so moving from one topic to the next neither allocates nor changes
+ * the position and limit of the buffer.
+ * <p>
+ * Keys are drawn either uniformly or from a Zipf distribution (key 0 being
+ * the most popular), from a seeded generator so that runs are repeatable.
+ * {@link #fillKeys(int[])} draws them up front, keeping the sampling cost out
+ * of a measured loop.
+ */
+public class TopicUniverse {
+
+	public enum Distribution {
+		UNIFORM, ZIPF;
+
+		public static Distribution parse(String value) {
+			if (value == null || value.length() == 0)
+				return UNIFORM;
+			return Distribution.valueOf(value.toUpperCase());
+		}
+	}
+
+	private final int cardinality;
+	private final Distribution distribution;
+	private final ByteBuffer topicBuffer;
+	private final int digitsOffset;
+	private final int digits;
+	// Cumulative probabilities of the keys, Zipf only
+	private final double[] cdf;
+
+	private long seed;
+
+	/**
+	 * @param prefix
+	 *            the topic levels before the key, without a trailing '/'
+	 * @param cardinality
+	 *            the number of distinct topics
+	 * @param distribution
+	 * @param zipfExponent
+	 *            the exponent of the Zipf distribution, 1.0 is the classic
+	 *            one, ignored for UNIFORM
+	 * @param maxTopicSize
+	 *            the size of the topic buffer
+	 */
+	public TopicUniverse(String prefix, int cardinality,
+			Distribution distribution, double zipfExponent, int maxTopicSize) {
+		if (cardinality < 1)
+			throw new IllegalArgumentException(
+					"Topic cardinality must be at least 1, got " + cardinality);
+		this.cardinality = cardinality;
+		this.distribution = distribution;
+		this.digits = Integer.toString(cardinality - 1).length();
+
+		byte[] prefixBytes = (prefix + "/").getBytes(StandardCharsets.UTF_8);
+		if (prefixBytes.length + digits > maxTopicSize)
+			throw new IllegalArgumentException("Topic prefix [" + prefix
+					+ "] is too long");
+		this.digitsOffset = prefixBytes.length;
+		this.topicBuffer = ByteBuffer.allocateDirect(maxTopicSize);
+		topicBuffer.put(prefixBytes);
+		for (int i = 0; i < digits; i++)
+			topicBuffer.put((byte) '0');
+		topicBuffer.flip();
+
+		if (distribution == Distribution.ZIPF) {
+			cdf = new double[cardinality];
+			double sum = 0;
+			for (int k = 0; k < cardinality; k++) {
+				sum += 1.0 / Math.pow(k + 1, zipfExponent);
+				cdf[k] = sum;
+			}
+			for (int k = 0; k < cardinality; k++)
+				cdf[k] /= sum;
+		} else {
+			cdf = null;
+		}
+		this.seed = 0x9E3779B97F4A7C15L;
+	}
+
+	/**
+	 * @return the buffer to wrap in a mutable topic, positioned from 0 to the
+	 *         topic length
+	 */
+	public ByteBuffer getTopicBuffer() {
+		return topicBuffer;
+	}
+
+	public int getCardinality() {
+		return cardinality;
+	}
+
+	public Distribution getDistribution() {
+		return distribution;
+	}
+
+	/**
+	 * Rewrites the topic buffer in place for the given key.
+	 */
+	public void select(int key) {
+		int value = key;
+		for (int i = digitsOffset + digits - 1; i >= digitsOffset; i--) {
+			topicBuffer.put(i, (byte) ('0' + value % 10));
+			value /= 10;
+		}
+	}
+
+	/**
+	 * @return the topic of a key as a String, to subscribe to it
+	 */
+	public String getTopic(int key) {
+		byte[] prefix = new byte[digitsOffset];
+		for (int i = 0; i < digitsOffset; i++)
+			prefix[i] = topicBuffer.get(i);
+		StringBuilder topic = new StringBuilder(digitsOffset + digits);
+		topic.append(new String(prefix, StandardCharsets.UTF_8));
+		String number = Integer.toString(key);
+		for (int i = number.length(); i < digits; i++)
+			topic.append('0');
+		return topic.append(number).toString();
+	}
+
+	/**
+	 * @return the next key drawn from the distribution
+	 */
+	public int nextKey() {
+		double u = nextDouble();
+		if (cdf == null)
+			return (int) (u * cardinality);
+
+		// First key whose cumulative probability reaches u
+		int low = 0;
+		int high = cardinality - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (cdf[mid] < u)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Draws keys.length keys up front.
+	 */
+	public void fillKeys(int[] keys) {
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = nextKey();
+	}
+
+	/**
+	 * xorshift64*, uniform in [0, 1)
+	 */
+	private double nextDouble() {
+		seed ^= seed >>> 12;
+		seed ^= seed << 25;
+		seed ^= seed >>> 27;
+		return ((seed * 0x2545F4914F6CDD1DL) >>> 11) * 0x1.0p-53;
+	}
+
+}
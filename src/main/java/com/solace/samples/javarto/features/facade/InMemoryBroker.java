@@ -0,0 +1,351 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features.facade;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process stand-in for a message router, shared by the
+ * {@link InMemoryFacade} sessions connected to it.
+ * <p>
+ * It routes Direct messages to the sessions whose subscriptions match the
+ * topic, with the * and &gt; wildcards of the router, and spools persistent
+ * messages to durable queues. A queue delivers to one bound Flow at a time,
+ * keeps at most {@link #getWindowSize()} messages unacknowledged, and puts the
+ * unacknowledged messages back at its head, flagged as redelivered, when the
+ * Flow is closed.
+ * <p>
+ * A fixed latency can be added to every delivery, and a fraction of the
+ * Direct deliveries can be discarded, to exercise the loss and latency
+ * accounting of the samples. Persistent messages are never lost.
+ * <p>
+ * Messages are copied into byte arrays when published, the broker is meant
+ * to exercise the application side of the samples, not to be GC-free itself.
+ */
+public class InMemoryBroker {
+
+	private static final Map<String, InMemoryBroker> BROKERS = new HashMap<String, InMemoryBroker>();
+
+	private final String name;
+	private final List<InMemoryFacade> sessions = new CopyOnWriteArrayList<InMemoryFacade>();
+	private final Map<String, QueueState> queues = new HashMap<String, QueueState>();
+	private final Random random = new Random(0);
+
+	private volatile long latencyNanos;
+	private volatile double lossRate;
+	private volatile int windowSize = 255;
+
+	public InMemoryBroker(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the broker registered under that name, created on first use, so
+	 *         that several sessions of the same JVM reach the same broker
+	 */
+	public static synchronized InMemoryBroker get(String name) {
+		InMemoryBroker broker = BROKERS.get(name);
+		if (broker == null) {
+			broker = new InMemoryBroker(name);
+			BROKERS.put(name, broker);
+		}
+		return broker;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @param latencyMicros
+	 *            added to every delivery
+	 */
+	public void setLatencyMicros(long latencyMicros) {
+		this.latencyNanos = latencyMicros * 1000;
+	}
+
+	public long getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	/**
+	 * @param lossRate
+	 *            fraction of the Direct deliveries discarded, from 0 to 1
+	 */
+	public void setLossRate(double lossRate) {
+		if (lossRate < 0 || lossRate > 1)
+			throw new IllegalArgumentException("Loss rate must be between 0 and 1, got "
+					+ lossRate);
+		this.lossRate = lossRate;
+	}
+
+	public double getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * @param windowSize
+	 *            the most unacknowledged messages a Flow may hold
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	void addSession(InMemoryFacade session) {
+		sessions.add(session);
+	}
+
+	void removeSession(InMemoryFacade session) {
+		sessions.remove(session);
+		synchronized (this) {
+			for (QueueState queue : queues.values()) {
+				if (queue.boundSession == session)
+					unbind(queue);
+			}
+		}
+	}
+
+	/**
+	 * Routes a Direct message to every session with a matching subscription.
+	 */
+	void publish(String topic, byte[] payload) {
+		long due = System.nanoTime() + latencyNanos;
+		for (InMemoryFacade session : sessions) {
+			if (session.isSubscribed(topic) && !isLost())
+				session.deliver(topic, payload, due, null, null, false);
+		}
+	}
+
+	private boolean isLost() {
+		double rate = lossRate;
+		if (rate == 0)
+			return false;
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	/**
+	 * Spools a persistent message to a queue.
+	 */
+	synchronized void sendToQueue(String queueName, byte[] payload) {
+		spool(getQueue(queueName), queueName, payload);
+	}
+
+	/**
+	 * Spools a persistent message published on a topic to every queue
+	 * subscribed to it.
+	 */
+	synchronized void publishPersistent(String topic, byte[] payload) {
+		for (QueueState queue : queues.values()) {
+			for (int i = 0; i < queue.subscriptions.size(); i++) {
+				if (matches(queue.subscriptions.get(i), topic)) {
+					spool(queue, topic, payload);
+					break;
+				}
+			}
+		}
+	}
+
+	private void spool(QueueState queue, String destination, byte[] payload) {
+		queue.spooled.add(new StoredMessage(destination, payload));
+		pump(queue);
+	}
+
+	synchronized void provisionQueue(String queueName) {
+		if (!queues.containsKey(queueName))
+			queues.put(queueName, new QueueState(queueName));
+	}
+
+	synchronized void deprovisionQueue(String queueName) {
+		QueueState queue = queues.remove(queueName);
+		if (queue != null)
+			unbind(queue);
+	}
+
+	synchronized void subscribeQueue(String queueName, String topic) {
+		QueueState queue = getQueue(queueName);
+		if (!queue.subscriptions.contains(topic))
+			queue.subscriptions.add(topic);
+	}
+
+	synchronized void bind(String queueName, InMemoryFacade session,
+			MessageListener listener) {
+		QueueState queue = getQueue(queueName);
+		if (queue.boundSession != null)
+			throw new IllegalStateException("Queue [" + queueName
+					+ "] already has a Flow bound, it is exclusive");
+		queue.boundSession = session;
+		queue.listener = listener;
+		queue.bindEpoch++;
+		pump(queue);
+	}
+
+	synchronized void unbind(String queueName, InMemoryFacade session) {
+		QueueState queue = queues.get(queueName);
+		if (queue != null && queue.boundSession == session)
+			unbind(queue);
+	}
+
+	private void unbind(QueueState queue) {
+		queue.bindEpoch++;
+		queue.boundSession = null;
+		queue.listener = null;
+		// Unacknowledged messages go back to the head of the queue
+		for (int i = queue.unacked.size() - 1; i >= 0; i--) {
+			StoredMessage message = queue.unacked.get(i);
+			message.redelivered = true;
+			queue.spooled.addFirst(message);
+		}
+		queue.unacked.clear();
+	}
+
+	synchronized void ack(String queueName, StoredMessage message) {
+		QueueState queue = queues.get(queueName);
+		if (queue != null && queue.unacked.remove(message))
+			pump(queue);
+	}
+
+	/**
+	 * Hands spooled messages to the bound Flow while the window allows.
+	 */
+	private void pump(QueueState queue) {
+		if (queue.boundSession == null)
+			return;
+		long due = System.nanoTime() + latencyNanos;
+		while (!queue.spooled.isEmpty() && queue.unacked.size() < windowSize) {
+			StoredMessage message = queue.spooled.removeFirst();
+			queue.unacked.add(message);
+			queue.boundSession.deliver(message.destination, message.payload,
+					due, queue.listener, new AckTarget(queue, message),
+					message.redelivered);
+		}
+	}
+
+	private QueueState getQueue(String queueName) {
+		QueueState queue = queues.get(queueName);
+		if (queue == null)
+			throw new IllegalStateException("Unknown queue [" + queueName
+					+ "], provision it first");
+		return queue;
+	}
+
+	/**
+	 * @return the number of messages spooled or unacknowledged on the queue
+	 */
+	public synchronized int getQueueDepth(String queueName) {
+		QueueState queue = getQueue(queueName);
+		return queue.spooled.size() + queue.unacked.size();
+	}
+
+	/**
+	 * Matches a topic against a subscription the way the router does: levels
+	 * are separated by '/', a level made of '*' matches any one level, a level
+	 * ending with '*' matches any level starting with its prefix, and a last
+	 * level of '&gt;' matches one or more remaining levels.
+	 */
+	static boolean matches(String subscription, String topic) {
+		int s = 0;
+		int t = 0;
+		while (true) {
+			int sEnd = subscription.indexOf('/', s);
+			if (sEnd < 0)
+				sEnd = subscription.length();
+			int tEnd = topic.indexOf('/', t);
+			if (tEnd < 0)
+				tEnd = topic.length();
+			boolean lastSubscriptionLevel = sEnd == subscription.length();
+			boolean lastTopicLevel = tEnd == topic.length();
+			int levelLength = sEnd - s;
+
+			// The topic still has at least the current level
+			if (lastSubscriptionLevel && levelLength == 1
+					&& subscription.charAt(s) == '>')
+				return true;
+
+			if (levelLength > 0 && subscription.charAt(sEnd - 1) == '*') {
+				int prefixLength = levelLength - 1;
+				if (tEnd - t < prefixLength
+						|| !subscription.regionMatches(s, topic, t,
+								prefixLength))
+					return false;
+			} else if (levelLength != tEnd - t
+					|| !subscription.regionMatches(s, topic, t, levelLength)) {
+				return false;
+			}
+
+			if (lastSubscriptionLevel || lastTopicLevel)
+				return lastSubscriptionLevel && lastTopicLevel;
+			s = sEnd + 1;
+			t = tEnd + 1;
+		}
+	}
+
+	static class StoredMessage {
+
+		final String destination;
+		final byte[] payload;
+		boolean redelivered;
+
+		StoredMessage(String destination, byte[] payload) {
+			this.destination = destination;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * What a Flow message is acknowledged against.
+	 */
+	class AckTarget {
+
+		final QueueState queue;
+		final StoredMessage message;
+		final int bindEpoch;
+
+		AckTarget(QueueState queue, StoredMessage message) {
+			this.queue = queue;
+			this.message = message;
+			this.bindEpoch = queue.bindEpoch;
+		}
+
+		/**
+		 * @return false once the Flow the message was handed to is closed, the
+		 *         message was put back on the queue and must not be delivered
+		 */
+		boolean isCurrent() {
+			return queue.bindEpoch == bindEpoch;
+		}
+
+		void ack() {
+			InMemoryBroker.this.ack(queue.name, message);
+		}
+	}
+
+	static class QueueState {
+
+		final String name;
+		final List<String> subscriptions = new ArrayList<String>();
+		final LinkedList<StoredMessage> spooled = new LinkedList<StoredMessage>();
+		final List<StoredMessage> unacked = new ArrayList<StoredMessage>();
+		InMemoryFacade boundSession;
+		MessageListener listener;
+		volatile int bindEpoch;
+
+		QueueState(String name) {
+			this.name = name;
+		}
+	}
+
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features.facade;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The in-memory backend of the {@link MessagingFacade}: a session on an
+ * {@link InMemoryBroker}.
+ * <p>
+ * As with solclientj, every session has a context thread of its own which
+ * invokes the listeners, so the publishing thread never runs the callbacks.
+ * Deliveries are queued to that thread in order, each one waits for the
+ * latency injected by the broker.
+ */
+public class InMemoryFacade implements MessagingFacade {
+
+	private final InMemoryBroker broker;
+	private final CopyOnWriteArrayList<String> subscriptions = new CopyOnWriteArrayList<String>();
+	private final LinkedBlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<Delivery>();
+
+	private MessageListener listener;
+	private Thread contextThread;
+	private volatile boolean closed;
+
+	public InMemoryFacade(InMemoryBroker broker) {
+		this.broker = broker;
+	}
+
+	public InMemoryBroker getBroker() {
+		return broker;
+	}
+
+	@Override
+	public void connect(MessageListener listener) {
+		if (contextThread != null)
+			throw new IllegalStateException("Already connected");
+		this.listener = listener;
+		contextThread = new Thread(new Dispatcher(), "InMemoryContext-"
+				+ broker.getName());
+		contextThread.setDaemon(true);
+		contextThread.start();
+		broker.addSession(this);
+	}
+
+	@Override
+	public void subscribe(String topic) {
+		subscriptions.addIfAbsent(topic);
+	}
+
+	@Override
+	public void unsubscribe(String topic) {
+		subscriptions.remove(topic);
+	}
+
+	boolean isSubscribed(String topic) {
+		for (String subscription : subscriptions) {
+			if (InMemoryBroker.matches(subscription, topic))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean send(String topic, ByteBuffer payload) {
+		checkConnected();
+		broker.publish(topic, copy(payload));
+		return true;
+	}
+
+	@Override
+	public boolean sendPersistent(String topic, ByteBuffer payload) {
+		checkConnected();
+		broker.publishPersistent(topic, copy(payload));
+		return true;
+	}
+
+	@Override
+	public boolean sendToQueue(String queueName, ByteBuffer payload) {
+		checkConnected();
+		broker.sendToQueue(queueName, copy(payload));
+		return true;
+	}
+
+	private static byte[] copy(ByteBuffer payload) {
+		byte[] bytes = new byte[payload.remaining()];
+		int position = payload.position();
+		payload.get(bytes);
+		payload.position(position);
+		return bytes;
+	}
+
+	@Override
+	public void provisionQueue(String queueName) {
+		broker.provisionQueue(queueName);
+	}
+
+	@Override
+	public void deprovisionQueue(String queueName) {
+		broker.deprovisionQueue(queueName);
+	}
+
+	@Override
+	public void subscribeQueue(String queueName, String topic) {
+		broker.subscribeQueue(queueName, topic);
+	}
+
+	@Override
+	public Flow bindQueue(final String queueName, MessageListener listener) {
+		checkConnected();
+		broker.bind(queueName, this, listener);
+		return new Flow() {
+			@Override
+			public void close() {
+				broker.unbind(queueName, InMemoryFacade.this);
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		broker.removeSession(this);
+		if (contextThread != null) {
+			contextThread.interrupt();
+			try {
+				contextThread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void checkConnected() {
+		if (contextThread == null || closed)
+			throw new IllegalStateException("Session is not connected");
+	}
+
+	/**
+	 * Queues a message for the context thread, called by the broker.
+	 */
+	void deliver(String destination, byte[] payload, long dueNanos,
+			MessageListener flowListener, InMemoryBroker.AckTarget ackTarget,
+			boolean redelivered) {
+		if (closed)
+			return;
+		deliveries.add(new Delivery(destination, payload, dueNanos,
+				flowListener, ackTarget, redelivered));
+	}
+
+	static class Delivery {
+
+		final String destination;
+		final byte[] payload;
+		final long dueNanos;
+		final MessageListener flowListener;
+		final InMemoryBroker.AckTarget ackTarget;
+		final boolean redelivered;
+
+		Delivery(String destination, byte[] payload, long dueNanos,
+				MessageListener flowListener,
+				InMemoryBroker.AckTarget ackTarget, boolean redelivered) {
+			this.destination = destination;
+			this.payload = payload;
+			this.dueNanos = dueNanos;
+			this.flowListener = flowListener;
+			this.ackTarget = ackTarget;
+			this.redelivered = redelivered;
+		}
+	}
+
+	/**
+	 * The context thread: waits until each delivery is due and hands it to
+	 * its listener, through a reused {@link ReceivedMessage} view.
+	 */
+	class Dispatcher implements Runnable, ReceivedMessage {
+
+		private Delivery current;
+
+		@Override
+		public void run() {
+			while (!closed) {
+				Delivery delivery;
+				try {
+					delivery = deliveries.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				long wait = delivery.dueNanos - System.nanoTime();
+				while (wait > 0 && !closed) {
+					LockSupport.parkNanos(wait);
+					wait = delivery.dueNanos - System.nanoTime();
+				}
+
+				MessageListener target = delivery.flowListener != null ? delivery.flowListener
+						: listener;
+				if (delivery.ackTarget != null
+						&& !delivery.ackTarget.isCurrent())
+					continue;
+
+				current = delivery;
+				try {
+					target.onMessage(this);
+				} catch (Throwable t) {
+					t.printStackTrace();
+				} finally {
+					current = null;
+				}
+			}
+		}
+
+		@Override
+		public String getDestination() {
+			return current.destination;
+		}
+
+		@Override
+		public void getPayload(ByteBuffer dst) {
+			dst.put(current.payload);
+		}
+
+		@Override
+		public boolean isRedelivered() {
+			return current.redelivered;
+		}
+
+		@Override
+		public void ack() {
+			if (current.ackTarget != null)
+				current.ackTarget.ack();
+		}
+	}
+
+}
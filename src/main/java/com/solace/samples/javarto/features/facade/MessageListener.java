@@ -0,0 +1,19 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features.facade;
+
+/**
+ * Receives the messages of a session or a Flow, on the context thread.
+ */
+public interface MessageListener {
+
+	/**
+	 * @param message
+	 *            only valid for the duration of the call, it is reused for the
+	 *            next message
+	 */
+	void onMessage(ReceivedMessage message);
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features.facade;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A thin facade over the messaging calls the samples make: connecting a
+ * session, subscribing, publishing Direct and persistent messages, binding a
+ * Flow to a queue and receiving messages on callbacks.
+ * <p>
+ * Two backends are available, see {@link MessagingFacades}:
+ * {@link SolclientFacade} talks to a message router through solclientj, and
+ * {@link InMemoryFacade} is a session on an in-process {@link InMemoryBroker},
+ * so the application side of a sample (its callbacks, dispatch and
+ * correlation) can be run and profiled without a router.
+ * <p>
+ * Errors are reported with IllegalStateException, as assertReturnCode() does
+ * in the samples.
+ */
+public interface MessagingFacade {
+
+	/**
+	 * Creates and connects the session.
+	 *
+	 * @param listener
+	 *            receives the Direct messages matching the subscriptions of
+	 *            the session, on the context thread
+	 */
+	void connect(MessageListener listener);
+
+	/**
+	 * Adds a topic subscription to the session, waiting for the confirmation.
+	 *
+	 * @param topic
+	 *            may use the * and &gt; wildcards
+	 */
+	void subscribe(String topic);
+
+	void unsubscribe(String topic);
+
+	/**
+	 * Publishes a Direct message.
+	 *
+	 * @param topic
+	 * @param payload
+	 *            sent from its position to its limit, left unchanged
+	 * @return whether the message was accepted
+	 */
+	boolean send(String topic, ByteBuffer payload);
+
+	/**
+	 * Publishes a persistent message on a topic, it is spooled to the queues
+	 * subscribed to the topic.
+	 *
+	 * @param topic
+	 * @param payload
+	 *            sent from its position to its limit, left unchanged
+	 * @return whether the message was accepted
+	 */
+	boolean sendPersistent(String topic, ByteBuffer payload);
+
+	/**
+	 * Publishes a persistent message to a queue.
+	 *
+	 * @param queueName
+	 * @param payload
+	 *            sent from its position to its limit, left unchanged
+	 * @return whether the message was accepted
+	 */
+	boolean sendToQueue(String queueName, ByteBuffer payload);
+
+	/**
+	 * Provisions a durable queue, unless it already exists.
+	 */
+	void provisionQueue(String queueName);
+
+	/**
+	 * Deprovisions a queue, with the messages it holds.
+	 */
+	void deprovisionQueue(String queueName);
+
+	/**
+	 * Adds a topic subscription to a provisioned queue, persistent messages
+	 * published on matching topics are spooled to the queue.
+	 */
+	void subscribeQueue(String queueName, String topic);
+
+	/**
+	 * Binds a Flow to a provisioned queue, in client acknowledgement mode.
+	 *
+	 * @param listener
+	 *            receives the messages of the queue, on the context thread.
+	 *            Each message must be acknowledged with
+	 *            {@link ReceivedMessage#ack()} from the callback, otherwise
+	 *            it is redelivered once the Flow is closed and bound again.
+	 */
+	Flow bindQueue(String queueName, MessageListener listener);
+
+	/**
+	 * Closes the Flows, disconnects and destroys the session.
+	 */
+	void close();
+
+	/**
+	 * A Flow bound to a queue.
+	 */
+	interface Flow {
+
+		void close();
+	}
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features.facade;
+
+/**
+ * Picks the {@link MessagingFacade} backend from the host given with -h.
+ * <p>
+ * A host starting with {@value #IN_MEMORY_SCHEME} selects an
+ * {@link InMemoryBroker}, any other host is a message router reached through
+ * solclientj. The in-memory host is of the form
+ * <code>mem://[name][?latency=micros&amp;loss=fraction&amp;window=size]</code>,
+ * for instance <code>mem://?latency=50&amp;loss=0.001</code>. Sessions using
+ * the same name share the same broker.
+ */
+public final class MessagingFacades {
+
+	public static final String IN_MEMORY_SCHEME = "mem://";
+
+	private MessagingFacades() {
+	}
+
+	public static boolean isInMemory(String host) {
+		return host != null && host.startsWith(IN_MEMORY_SCHEME);
+	}
+
+	/**
+	 * @param host
+	 *            the -h argument
+	 * @param sessionProps
+	 *            the session properties, only used by the solclientj backend
+	 */
+	public static MessagingFacade create(String host, String[] sessionProps) {
+		if (isInMemory(host))
+			return new InMemoryFacade(getBroker(host));
+		return new SolclientFacade(sessionProps);
+	}
+
+	/**
+	 * @return the broker named by an in-memory host, configured with the
+	 *         options of the host
+	 */
+	public static InMemoryBroker getBroker(String host) {
+		if (!isInMemory(host))
+			throw new IllegalArgumentException("Not an in-memory host: "
+					+ host);
+		String rest = host.substring(IN_MEMORY_SCHEME.length());
+		String name = rest;
+		String options = null;
+		int query = rest.indexOf('?');
+		if (query >= 0) {
+			name = rest.substring(0, query);
+			options = rest.substring(query + 1);
+		}
+		if (name.length() == 0)
+			name = "default";
+
+		InMemoryBroker broker = InMemoryBroker.get(name);
+		if (options != null) {
+			for (String option : options.split("&")) {
+				int equals = option.indexOf('=');
+				if (equals < 0)
+					throw new IllegalArgumentException("Invalid option ["
+							+ option + "] in " + host);
+				String key = option.substring(0, equals);
+				String value = option.substring(equals + 1);
+				if (key.equals("latency"))
+					broker.setLatencyMicros(Long.parseLong(value));
+				else if (key.equals("loss"))
+					broker.setLossRate(Double.parseDouble(value));
+				else if (key.equals("window"))
+					broker.setWindowSize(Integer.parseInt(value));
+				else
+					throw new IllegalArgumentException("Unknown option ["
+							+ key + "] in " + host);
+			}
+		}
+		return broker;
+	}
+
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features.facade;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message handed to a {@link MessageListener}, only valid during the
+ * callback.
+ */
+public interface ReceivedMessage {
+
+	/**
+	 * @return the topic or queue name the message was published to. May
+	 *         allocate, avoid it on GC-free paths.
+	 */
+	String getDestination();
+
+	/**
+	 * Copies the payload into dst, from its position. dst must have room for
+	 * the whole payload.
+	 */
+	void getPayload(ByteBuffer dst);
+
+	/**
+	 * @return whether the message was delivered before, on a Flow that was
+	 *         closed without acknowledging it
+	 */
+	boolean isRedelivered();
+
+	/**
+	 * Acknowledges a message received on a Flow, does nothing for Direct
+	 * messages.
+	 */
+	void ack();
+
+}
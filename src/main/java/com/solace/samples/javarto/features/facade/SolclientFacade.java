@@ -0,0 +1,280 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features.facade;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.event.FlowEventCallback;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.event.SessionEventCallback;
+import com.solacesystems.solclientj.core.handle.ContextHandle;
+import com.solacesystems.solclientj.core.handle.FlowHandle;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Endpoint;
+import com.solacesystems.solclientj.core.resource.Queue;
+
+/**
+ * The solclientj backend of the {@link MessagingFacade}: one context, one
+ * session and one reused tx message, as in the samples.
+ * <p>
+ * Topics and queues are looked up by name on every call, so send() allocates
+ * a Topic per message. The samples that must be GC-free keep using
+ * solclientj directly.
+ */
+public class SolclientFacade implements MessagingFacade {
+
+	// Solclient is initialized once per process, whatever the sessions
+	private static boolean initialized;
+
+	private final String[] sessionProps;
+
+	private final ContextHandle contextHandle = Solclient.Allocator
+			.newContextHandle();
+	private final SessionHandle sessionHandle = Solclient.Allocator
+			.newSessionHandle();
+	private final MessageHandle txMessageHandle = Solclient.Allocator
+			.newMessageHandle();
+
+	private final Map<String, Queue> queues = new HashMap<String, Queue>();
+	private final List<FlowHandle> flowHandles = new ArrayList<FlowHandle>();
+
+	/**
+	 * @param sessionProps
+	 *            as built by AbstractSample.getSessionProps()
+	 */
+	public SolclientFacade(String[] sessionProps) {
+		this.sessionProps = sessionProps;
+	}
+
+	@Override
+	public void connect(MessageListener listener) {
+		init();
+
+		check("Solclient.createContext()",
+				Solclient.createContextForHandle(contextHandle, new String[0]));
+
+		Delivery delivery = new Delivery(listener, null);
+		check("contextHandle.createSession()",
+				contextHandle.createSessionForHandle(sessionHandle,
+						sessionProps, delivery, delivery));
+
+		check("sessionHandle.connect()", sessionHandle.connect());
+
+		check("Solclient.createMessage()",
+				Solclient.createMessageForHandle(txMessageHandle));
+	}
+
+	@Override
+	public void subscribe(String topic) {
+		check("sessionHandle.subscribe()", sessionHandle.subscribe(
+				Solclient.Allocator.newTopic(topic),
+				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0));
+	}
+
+	@Override
+	public void unsubscribe(String topic) {
+		check("sessionHandle.unsubscribe()", sessionHandle.unsubscribe(
+				Solclient.Allocator.newTopic(topic),
+				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0));
+	}
+
+	@Override
+	public boolean send(String topic, ByteBuffer payload) {
+		txMessageHandle
+				.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.DIRECT);
+		txMessageHandle.setDestination(Solclient.Allocator.newTopic(topic));
+		return send(payload);
+	}
+
+	@Override
+	public boolean sendPersistent(String topic, ByteBuffer payload) {
+		txMessageHandle
+				.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.PERSISTENT);
+		txMessageHandle.setDestination(Solclient.Allocator.newTopic(topic));
+		return send(payload);
+	}
+
+	@Override
+	public boolean sendToQueue(String queueName, ByteBuffer payload) {
+		txMessageHandle
+				.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.PERSISTENT);
+		txMessageHandle.setDestination(getQueue(queueName));
+		return send(payload);
+	}
+
+	private boolean send(ByteBuffer payload) {
+		int position = payload.position();
+		txMessageHandle.setBinaryAttachment(payload);
+		payload.position(position);
+		return sessionHandle.send(txMessageHandle) == SolEnum.ReturnCode.OK;
+	}
+
+	@Override
+	public void provisionQueue(String queueName) {
+		String[] queueProperties = new String[6];
+		int queueProps = 0;
+		queueProperties[queueProps++] = Endpoint.PROPERTIES.ACCESSTYPE;
+		queueProperties[queueProps++] = SolEnum.EndpointAccessType.EXCLUSIVE;
+		queueProperties[queueProps++] = Endpoint.PROPERTIES.PERMISSION;
+		queueProperties[queueProps++] = SolEnum.EndpointPermission.DELETE;
+		queueProperties[queueProps++] = Endpoint.PROPERTIES.QUOTA_MB;
+		queueProperties[queueProps++] = "100";
+
+		Queue queue = Solclient.Allocator.newQueue(queueName, queueProperties);
+		check("sessionHandle.provision()", sessionHandle.provision(queue,
+				SolEnum.ProvisionFlags.WAIT_FOR_CONFIRM
+						| SolEnum.ProvisionFlags.IGNORE_EXIST_ERRORS, 0));
+		queues.put(queueName, queue);
+	}
+
+	@Override
+	public void deprovisionQueue(String queueName) {
+		int rc = sessionHandle.deprovision(getQueue(queueName),
+				SolEnum.ProvisionFlags.WAIT_FOR_CONFIRM
+						| SolEnum.ProvisionFlags.IGNORE_EXIST_ERRORS, 0);
+		if (rc == SolEnum.ReturnCode.FAIL)
+			throw new IllegalStateException("sessionHandle.deprovision()");
+		queues.remove(queueName);
+	}
+
+	@Override
+	public void subscribeQueue(String queueName, String topic) {
+		check("sessionHandle.subscribe()", sessionHandle.subscribe(
+				getQueue(queueName), Solclient.Allocator.newTopic(topic),
+				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0));
+	}
+
+	@Override
+	public Flow bindQueue(String queueName, MessageListener listener) {
+		String[] flowProperties = new String[4];
+		int flowProps = 0;
+		flowProperties[flowProps++] = FlowHandle.PROPERTIES.BIND_BLOCKING;
+		flowProperties[flowProps++] = SolEnum.BooleanValue.ENABLE;
+		flowProperties[flowProps++] = FlowHandle.PROPERTIES.ACKMODE;
+		flowProperties[flowProps++] = SolEnum.AckMode.CLIENT;
+
+		final FlowHandle flowHandle = Solclient.Allocator.newFlowHandle();
+		Delivery delivery = new Delivery(listener, flowHandle);
+		check("sessionHandle.createFlowForHandle()",
+				sessionHandle.createFlowForHandle(flowHandle, flowProperties,
+						getQueue(queueName), null, delivery, delivery));
+		flowHandles.add(flowHandle);
+
+		return new Flow() {
+			@Override
+			public void close() {
+				flowHandles.remove(flowHandle);
+				if (flowHandle.isBound())
+					flowHandle.destroy();
+			}
+		};
+	}
+
+	private Queue getQueue(String queueName) {
+		Queue queue = queues.get(queueName);
+		if (queue == null) {
+			queue = Solclient.Allocator.newQueue(queueName, null);
+			queues.put(queueName, queue);
+		}
+		return queue;
+	}
+
+	@Override
+	public void close() {
+		for (FlowHandle flowHandle : flowHandles) {
+			if (flowHandle.isBound())
+				flowHandle.destroy();
+		}
+		flowHandles.clear();
+		if (txMessageHandle.isBound())
+			txMessageHandle.destroy();
+		if (sessionHandle.isBound()) {
+			sessionHandle.disconnect();
+			sessionHandle.destroy();
+		}
+		if (contextHandle.isBound())
+			contextHandle.destroy();
+	}
+
+	private static synchronized void init() {
+		if (!initialized) {
+			check("Solclient.init()", Solclient.init(new String[0]));
+			initialized = true;
+		}
+	}
+
+	private static void check(String operation, int rc) {
+		if (rc != SolEnum.ReturnCode.OK)
+			throw new IllegalStateException(String.format(
+					"%s returned %d, expected OK", operation, rc));
+	}
+
+	/**
+	 * Adapts the session and Flow callbacks to a {@link MessageListener},
+	 * and is the {@link ReceivedMessage} view of the message being
+	 * delivered.
+	 */
+	static class Delivery implements MessageCallback, SessionEventCallback,
+			FlowEventCallback, ReceivedMessage {
+
+		private final MessageListener listener;
+		private final FlowHandle flowHandle;
+		private MessageHandle current;
+
+		Delivery(MessageListener listener, FlowHandle flowHandle) {
+			this.listener = listener;
+			this.flowHandle = flowHandle;
+		}
+
+		@Override
+		public void onMessage(Handle handle) {
+			current = ((MessageSupport) handle).getRxMessage();
+			try {
+				listener.onMessage(this);
+			} finally {
+				current = null;
+			}
+		}
+
+		@Override
+		public void onEvent(SessionHandle sessionHandle) {
+		}
+
+		@Override
+		public void onEvent(FlowHandle flowHandle) {
+		}
+
+		@Override
+		public String getDestination() {
+			return current.getDestination().getName();
+		}
+
+		@Override
+		public void getPayload(ByteBuffer dst) {
+			current.getBinaryAttachment(dst);
+		}
+
+		@Override
+		public boolean isRedelivered() {
+			return current.isRedelivered();
+		}
+
+		@Override
+		public void ack() {
+			if (flowHandle != null)
+				flowHandle.ack(current);
+		}
+	}
+
+}
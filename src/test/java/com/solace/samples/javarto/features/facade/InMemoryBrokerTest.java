@@ -0,0 +1,115 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features.facade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class InMemoryBrokerTest {
+
+	@Test
+	public void matchesLiteralTopics() {
+		assertTrue(InMemoryBroker.matches("a/b/c", "a/b/c"));
+		assertFalse(InMemoryBroker.matches("a/b/c", "a/b/d"));
+		assertFalse(InMemoryBroker.matches("a/b", "a/b/c"));
+		assertFalse(InMemoryBroker.matches("a/b/c", "a/b"));
+		assertFalse(InMemoryBroker.matches("a/bc", "a/b"));
+	}
+
+	@Test
+	public void matchesOneLevelWildcard() {
+		assertTrue(InMemoryBroker.matches("a/*/c", "a/b/c"));
+		assertTrue(InMemoryBroker.matches("a/*", "a/anything"));
+		assertFalse(InMemoryBroker.matches("a/*", "a/b/c"));
+		assertFalse(InMemoryBroker.matches("a/*/c", "a/b/d"));
+	}
+
+	@Test
+	public void matchesPrefixWildcard() {
+		assertTrue(InMemoryBroker.matches("a/pre*/c", "a/prefix/c"));
+		assertTrue(InMemoryBroker.matches("a/pre*/c", "a/pre/c"));
+		assertFalse(InMemoryBroker.matches("a/pre*/c", "a/pr/c"));
+		assertFalse(InMemoryBroker.matches("a/pre*/c", "a/other/c"));
+	}
+
+	@Test
+	public void matchesRemainingLevelsWildcard() {
+		assertTrue(InMemoryBroker.matches("a/>", "a/b"));
+		assertTrue(InMemoryBroker.matches("a/>", "a/b/c/d"));
+		assertTrue(InMemoryBroker.matches(">", "a"));
+		// > matches one or more levels, not none
+		assertFalse(InMemoryBroker.matches("a/>", "a"));
+		assertFalse(InMemoryBroker.matches("a/>", "b/c"));
+		// > is only a wildcard as the last level
+		assertFalse(InMemoryBroker.matches("a/>/c", "a/b/c"));
+	}
+
+	@Test
+	public void provisioningIsIdempotent() {
+		InMemoryBroker broker = new InMemoryBroker("test");
+		broker.provisionQueue("q");
+		broker.sendToQueue("q", new byte[] { 1 });
+		broker.provisionQueue("q");
+		assertEquals(1, broker.getQueueDepth("q"));
+	}
+
+	@Test
+	public void unknownQueueIsRejected() {
+		InMemoryBroker broker = new InMemoryBroker("test");
+		try {
+			broker.sendToQueue("missing", new byte[] { 1 });
+			fail("A message was spooled to a queue never provisioned");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void deprovisioningDropsTheMessages() {
+		InMemoryBroker broker = new InMemoryBroker("test");
+		broker.provisionQueue("q");
+		broker.sendToQueue("q", new byte[] { 1 });
+		broker.deprovisionQueue("q");
+		broker.provisionQueue("q");
+		assertEquals(0, broker.getQueueDepth("q"));
+	}
+
+	@Test
+	public void persistentMessagesAreSpooledToSubscribedQueues() {
+		InMemoryBroker broker = new InMemoryBroker("test");
+		broker.provisionQueue("orders");
+		broker.provisionQueue("other");
+		broker.subscribeQueue("orders", "shop/orders/>");
+		// A second identical subscription does not spool twice
+		broker.subscribeQueue("orders", "shop/orders/>");
+		broker.subscribeQueue("other", "shop/other");
+
+		broker.publishPersistent("shop/orders/eu/1", new byte[] { 1 });
+		broker.publishPersistent("shop/orders/us/2", new byte[] { 2 });
+		broker.publishPersistent("shop/returns/3", new byte[] { 3 });
+
+		assertEquals(2, broker.getQueueDepth("orders"));
+		assertEquals(0, broker.getQueueDepth("other"));
+	}
+
+	@Test
+	public void lossRateIsBounded() {
+		InMemoryBroker broker = new InMemoryBroker("test");
+		broker.setLossRate(0);
+		broker.setLossRate(1);
+		try {
+			broker.setLossRate(1.5);
+			fail("A loss rate above 1 was accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(1, broker.getLossRate(), 0);
+	}
+
+}
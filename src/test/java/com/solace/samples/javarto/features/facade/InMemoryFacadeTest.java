@@ -0,0 +1,263 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features.facade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.solace.samples.javarto.features.ProgressWait;
+
+public class InMemoryFacadeTest {
+
+	private static final long IDLE_TIMEOUT_MS = 500;
+
+	private InMemoryBroker broker;
+	private InMemoryFacade session;
+	private Recorder direct;
+
+	@Before
+	public void setUp() {
+		broker = new InMemoryBroker("test");
+		session = new InMemoryFacade(broker);
+		direct = new Recorder(false);
+		session.connect(direct);
+	}
+
+	@After
+	public void tearDown() {
+		session.close();
+	}
+
+	@Test
+	public void directMessagesFollowTheSubscriptions() {
+		session.subscribe("prices/*/eur");
+		session.send("prices/fx/eur", payload(1));
+		session.send("prices/fx/usd", payload(2));
+		session.send("prices/bonds/eur", payload(3));
+		assertTrue(direct.await(2));
+
+		session.unsubscribe("prices/*/eur");
+		session.send("prices/fx/eur", payload(4));
+		// Nothing more is delivered once unsubscribed
+		assertFalse(direct.await(3));
+
+		assertEquals(2, direct.size());
+		assertEquals("prices/fx/eur", direct.get(0).destination);
+		assertEquals(1, direct.get(0).value);
+		assertEquals("prices/bonds/eur", direct.get(1).destination);
+		assertEquals(3, direct.get(1).value);
+	}
+
+	@Test
+	public void sendLeavesThePayloadUnchanged() {
+		session.subscribe("a");
+		ByteBuffer payload = payload(7);
+		session.send("a", payload);
+		assertEquals(0, payload.position());
+		assertEquals(4, payload.remaining());
+	}
+
+	@Test
+	public void acknowledgedMessagesLeaveTheQueue() {
+		broker.provisionQueue("q");
+		Recorder flowListener = new Recorder(true);
+		MessagingFacade.Flow flow = session.bindQueue("q", flowListener);
+		for (int i = 0; i < 10; i++)
+			session.sendToQueue("q", payload(i));
+
+		assertTrue(flowListener.await(10));
+		flow.close();
+		assertEquals(0, broker.getQueueDepth("q"));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, flowListener.get(i).value);
+			assertFalse(flowListener.get(i).redelivered);
+		}
+	}
+
+	@Test
+	public void unacknowledgedMessagesAreRedeliveredInOrder() {
+		broker.provisionQueue("q");
+		broker.subscribeQueue("q", "orders/>");
+		Recorder holding = new Recorder(false);
+		MessagingFacade.Flow flow = session.bindQueue("q", holding);
+		for (int i = 0; i < 3; i++)
+			session.sendPersistent("orders/" + i, payload(i));
+		assertTrue(holding.await(3));
+		flow.close();
+		assertEquals(3, broker.getQueueDepth("q"));
+
+		Recorder acking = new Recorder(true);
+		flow = session.bindQueue("q", acking);
+		session.sendPersistent("orders/3", payload(3));
+		assertTrue(acking.await(4));
+		flow.close();
+
+		assertEquals(0, broker.getQueueDepth("q"));
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i, acking.get(i).value);
+			assertEquals("orders/" + i, acking.get(i).destination);
+			assertEquals(i < 3, acking.get(i).redelivered);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void queuesAreExclusive() {
+		broker.provisionQueue("q");
+		session.bindQueue("q", new Recorder(true));
+		session.bindQueue("q", new Recorder(true));
+	}
+
+	@Test
+	public void windowLimitsTheUnacknowledgedMessages() {
+		broker.setWindowSize(2);
+		broker.provisionQueue("q");
+		for (int i = 0; i < 5; i++)
+			session.sendToQueue("q", payload(i));
+
+		Recorder holding = new Recorder(false);
+		MessagingFacade.Flow flow = session.bindQueue("q", holding);
+		assertTrue(holding.await(2));
+		// No more than the window is handed out until acknowledged
+		assertFalse(holding.await(3));
+		flow.close();
+
+		Recorder acking = new Recorder(true);
+		flow = session.bindQueue("q", acking);
+		assertTrue(acking.await(5));
+		flow.close();
+		assertEquals(5, acking.size());
+		assertEquals(0, broker.getQueueDepth("q"));
+	}
+
+	@Test
+	public void latencyDelaysEveryDelivery() {
+		long latencyMicros = 20000;
+		broker.setLatencyMicros(latencyMicros);
+		session.subscribe("a");
+		long start = System.nanoTime();
+		session.send("a", payload(1));
+		assertTrue(direct.await(1));
+		assertTrue(direct.get(0).receivedNanos - start >= latencyMicros * 1000);
+	}
+
+	@Test
+	public void lossDiscardsDirectMessagesOnly() {
+		broker.setLossRate(1);
+		broker.provisionQueue("q");
+		broker.subscribeQueue("q", "a");
+		session.subscribe("a");
+		Recorder flowListener = new Recorder(true);
+		session.bindQueue("q", flowListener);
+		for (int i = 0; i < 100; i++) {
+			session.send("a", payload(i));
+			session.sendPersistent("a", payload(i));
+		}
+
+		assertTrue(flowListener.await(100));
+		assertEquals(0, direct.size());
+	}
+
+	@Test
+	public void lossRateIsApplied() {
+		broker.setLossRate(0.5);
+		session.subscribe("a");
+		int count = 4000;
+		for (int i = 0; i < count; i++)
+			session.send("a", payload(i));
+		direct.await(count);
+
+		int received = direct.size();
+		assertTrue("received " + received, received > count * 0.4
+				&& received < count * 0.6);
+	}
+
+	private static ByteBuffer payload(int value) {
+		ByteBuffer payload = ByteBuffer.allocate(4);
+		payload.putInt(0, value);
+		return payload;
+	}
+
+	static class Received {
+
+		final String destination;
+		final int value;
+		final boolean redelivered;
+		final long receivedNanos;
+
+		Received(String destination, int value, boolean redelivered,
+				long receivedNanos) {
+			this.destination = destination;
+			this.value = value;
+			this.redelivered = redelivered;
+			this.receivedNanos = receivedNanos;
+		}
+	}
+
+	/**
+	 * Records the messages received on the context thread, acknowledging them
+	 * or not.
+	 */
+	static class Recorder implements MessageListener {
+
+		private final boolean ack;
+		private final ByteBuffer content = ByteBuffer.allocate(4);
+		private final List<Received> received = new ArrayList<Received>();
+
+		Recorder(boolean ack) {
+			this.ack = ack;
+		}
+
+		@Override
+		public void onMessage(ReceivedMessage message) {
+			long now = System.nanoTime();
+			content.clear();
+			message.getPayload(content);
+			Received record = new Received(message.getDestination(),
+					content.getInt(0), message.isRedelivered(), now);
+			// Acknowledged before it is counted, for the waits on the count
+			if (ack)
+				message.ack();
+			synchronized (received) {
+				received.add(record);
+			}
+		}
+
+		int size() {
+			synchronized (received) {
+				return received.size();
+			}
+		}
+
+		Received get(int index) {
+			synchronized (received) {
+				return received.get(index);
+			}
+		}
+
+		/**
+		 * @return true once count messages were received, false when no more
+		 *         came for {@link InMemoryFacadeTest#IDLE_TIMEOUT_MS}
+		 */
+		boolean await(int count) {
+			return ProgressWait.await(new ProgressWait.Progress() {
+				@Override
+				public long get() {
+					return size();
+				}
+			}, count, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+}